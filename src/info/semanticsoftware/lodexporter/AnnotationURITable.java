@@ -0,0 +1,127 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter;
+
+import java.util.Arrays;
+
+/**
+ * A per-document table from GATE annotation IDs to the URIs minted for them
+ * during the subject export. The IDs are kept as primitive ints in an
+ * open-addressing hash table, so a relation member is resolved with a single
+ * probe, without boxing and without going back to the annotation set.
+ * 
+ * <p>
+ * Each {@link DocumentContext} has its own table; it is not thread-safe.
+ * </p>
+ */
+final class AnnotationURITable {
+	private static final int EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private int[] keys;
+	private String[] values;
+	private int size;
+	private int mask;
+
+	/**
+	 * Creates an empty table.
+	 */
+	AnnotationURITable() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(final int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new String[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	private static int slot(final int key, final int mask) {
+		// spread the (mostly sequential) annotation IDs over the table
+		final int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * Records the URI minted for an annotation, replacing any previous one.
+	 * 
+	 * @param annotationID
+	 *            the GATE annotation ID (non-negative)
+	 * @param uri
+	 *            the URI of the exported annotation
+	 */
+	void put(final int annotationID, final String uri) {
+		if ((size + 1) * 4 > keys.length * 3) {
+			grow();
+		}
+		int i = slot(annotationID, mask);
+		while (keys[i] != EMPTY) {
+			if (keys[i] == annotationID) {
+				values[i] = uri;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = annotationID;
+		values[i] = uri;
+		size++;
+	}
+
+	/**
+	 * @param annotationID
+	 *            the GATE annotation ID
+	 * @return the URI minted for the annotation, or null if it was not exported
+	 */
+	String get(final int annotationID) {
+		int i = slot(annotationID, mask);
+		while (keys[i] != EMPTY) {
+			if (keys[i] == annotationID) {
+				return values[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of annotations in the table
+	 */
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		final int[] oldKeys = keys;
+		final String[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
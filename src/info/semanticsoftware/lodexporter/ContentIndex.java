@@ -0,0 +1,165 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed export of the covered text of annotations (the
+ * <tt>content</tt> attribute). Each distinct text becomes a resource named
+ * by the SHA-1 hash of the text, which is written once per document with
+ * <tt>cnt:chars</tt>, as tracked by the {@link DocumentContext}. The
+ * annotations link to the resource instead of repeating the text as a
+ * literal. Texts longer than a maximum length are not exported at all,
+ * leaving only the offsets of the annotation.
+ * 
+ * <p>
+ * The index also counts the bytes that the exported content takes compared
+ * to one literal per annotation, for the report logged at the end of a run.
+ * The sizes are those of the N-Triples terms; a TDB node table already
+ * stores identical literals once, so the saving there comes mostly from the
+ * length limit. The index is thread-safe and shared by all documents of a
+ * run.
+ * </p>
+ */
+public final class ContentIndex {
+	/** Default namespace of the content resources. */
+	public static final String DEFAULT_BASE_URI = "http://lod.semanticsoftware.info/content/";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String baseURI;
+	private final boolean hashed;
+	private final int maxLength;
+	private final ThreadLocal<MessageDigest> sha1;
+	private final LongAdder annotations = new LongAdder();
+	private final LongAdder distinct = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder literalBytes = new LongAdder();
+	private final LongAdder exportedBytes = new LongAdder();
+
+	/**
+	 * Creates an index.
+	 * 
+	 * @param myBaseURI
+	 *            the namespace of the content resources
+	 * @param myHashed
+	 *            true to link annotations to content resources, false to keep
+	 *            literals (only applying the length limit)
+	 * @param myMaxLength
+	 *            the maximum length of an exported text in characters, or 0
+	 *            for no limit
+	 */
+	public ContentIndex(final String myBaseURI, final boolean myHashed, final int myMaxLength) {
+		this.baseURI = myBaseURI;
+		this.hashed = myHashed;
+		this.maxLength = myMaxLength;
+		this.sha1 = ThreadLocal.withInitial(() -> {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 not available", e);
+			}
+		});
+	}
+
+	/**
+	 * Returns the value to export for the content of an annotation.
+	 * 
+	 * @param content
+	 *            the covered text
+	 * @return null if the text is too long, the text itself if content is
+	 *         exported as literals, or the URI of the content resource
+	 */
+	public Object valueFor(final String content) {
+		final int bytes = content.getBytes(StandardCharsets.UTF_8).length;
+		annotations.increment();
+		literalBytes.add(bytes + 2);
+		if (maxLength > 0 && content.length() > maxLength) {
+			dropped.increment();
+			return null;
+		}
+		if (!hashed) {
+			exportedBytes.add(bytes + 2);
+			return content;
+		}
+		final String uri = uriFor(content);
+		exportedBytes.add(uri.length() + 2);
+		return URI.create(uri);
+	}
+
+	/**
+	 * Counts a content resource written for a document.
+	 * 
+	 * @param content
+	 *            the covered text
+	 */
+	public void recordWritten(final String content) {
+		distinct.increment();
+		exportedBytes.add(content.getBytes(StandardCharsets.UTF_8).length + 2);
+	}
+
+	private String uriFor(final String content) {
+		final byte[] digest = sha1.get().digest(content.getBytes(StandardCharsets.UTF_8));
+		final StringBuilder uri = new StringBuilder(baseURI.length() + 2 * digest.length).append(baseURI);
+		for (final byte b : digest) {
+			uri.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		return uri.toString();
+	}
+
+	/**
+	 * @return the bytes saved compared to one literal per annotation
+	 */
+	public long getSavedBytes() {
+		return literalBytes.sum() - exportedBytes.sum();
+	}
+
+	/**
+	 * Clears the counters at the start of a run.
+	 */
+	public void reset() {
+		annotations.reset();
+		distinct.reset();
+		dropped.reset();
+		literalBytes.reset();
+		exportedBytes.reset();
+	}
+
+	/**
+	 * Returns a report of the space used by the exported content.
+	 * 
+	 * @return the counts and sizes as String
+	 */
+	public String getStatistics() {
+		return String.format(
+				"content: %d annotations, %d texts written, %d over the length limit, %d bytes instead of %d (%d saved, %.1f%%)",
+				annotations.sum(), distinct.sum(), dropped.sum(), exportedBytes.sum(), literalBytes.sum(),
+				getSavedBytes(), literalBytes.sum() == 0 ? 0.0 : 100.0 * getSavedBytes() / literalBytes.sum());
+	}
+}
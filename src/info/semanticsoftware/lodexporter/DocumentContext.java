@@ -0,0 +1,201 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import gate.Annotation;
+import gate.Document;
+
+/**
+ * The state of exporting one document: its URL and export session, the URIs
+ * minted for its annotations and the content resources already written for
+ * it. {@link LODeXporter} creates one context per document and passes it
+ * through the export, so the PR itself only holds the mapping rules and the
+ * run-wide resources, and several documents can be exported concurrently.
+ * 
+ * <p>
+ * A context is used by a single thread.
+ * </p>
+ */
+final class DocumentContext {
+	private final Document document;
+	private final String docURL;
+	private final String sessionID;
+
+	/** The URIs minted for the exported annotations of the document. */
+	private final AnnotationURITable annotationURIs = new AnnotationURITable();
+
+	/** Base URI plus session ID, keyed by base URI. */
+	private final Map<String, String> sessionPrefixes = new HashMap<>();
+
+	/** The content resources written for the document. */
+	private final Set<String> writtenContent = new HashSet<>();
+
+	/** A map reused for the exported properties of each annotation. */
+	private final Map<String, Object> exportPropertyMap = new HashMap<>();
+
+	/** Provenance attributes recorded once for the document, see {@link LODeXporter.ProvenanceMode}. */
+	private final Map<String, Object> provenance = new LinkedHashMap<>();
+
+	private final boolean chunkedCommits;
+
+	/** Annotations and relations stored since the last commit, when committing in chunks. */
+	private int uncommitted;
+
+	/** Annotations exported so far. */
+	private int annotations;
+
+	/**
+	 * Creates the context of a document.
+	 * 
+	 * @param myDocument
+	 *            the document
+	 * @param myDocURL
+	 *            the URL identifying the document in the exported triples
+	 * @param mySessionID
+	 *            the export session of the document
+	 * @param myChunkedCommits
+	 *            true if the document is committed in chunks of annotations
+	 */
+	DocumentContext(final Document myDocument, final String myDocURL, final String mySessionID,
+			final boolean myChunkedCommits) {
+		this.document = myDocument;
+		this.docURL = myDocURL;
+		this.sessionID = mySessionID;
+		this.chunkedCommits = myChunkedCommits;
+	}
+
+	/**
+	 * @return the exported document
+	 */
+	Document getDocument() {
+		return document;
+	}
+
+	/**
+	 * @return the URL of the document
+	 */
+	String getDocURL() {
+		return docURL;
+	}
+
+	/**
+	 * @return the export session ID of the document
+	 */
+	String getSessionID() {
+		return sessionID;
+	}
+
+	/**
+	 * @return the table of the URIs minted for the exported annotations
+	 */
+	AnnotationURITable getAnnotationURIs() {
+		return annotationURIs;
+	}
+
+	/**
+	 * @return the cleared map for the exported properties of an annotation
+	 */
+	Map<String, Object> newPropertyMap() {
+		exportPropertyMap.clear();
+		return exportPropertyMap;
+	}
+
+	/**
+	 * @return the provenance attributes of the document and their values,
+	 *         collected while exporting its annotations
+	 */
+	Map<String, Object> getProvenance() {
+		return provenance;
+	}
+
+	/**
+	 * Returns the URI of an annotation exported by a subject mapping rule.
+	 * 
+	 * @param annotation
+	 *            the annotation
+	 * @param baseURI
+	 *            the base URI of the rule
+	 * @param ruleName
+	 *            the name of the rule
+	 * @return the URI of the annotation within the export session
+	 */
+	String uriFor(final Annotation annotation, final String baseURI, final String ruleName) {
+		final String prefix = sessionPrefixes.computeIfAbsent(baseURI, base -> base + sessionID + "/");
+		return prefix + annotation.getType() + "/" + annotation.getId() + "#" + ruleName;
+	}
+
+	/**
+	 * Tests whether a content resource still has to be written for the
+	 * document, and marks it as written.
+	 * 
+	 * @param contentURI
+	 *            the URI of the content resource
+	 * @return true the first time the resource is seen in the document
+	 */
+	boolean firstContent(final String contentURI) {
+		return writtenContent.add(contentURI);
+	}
+
+	/**
+	 * Counts an annotation exported by a subject mapping rule.
+	 */
+	void countAnnotation() {
+		annotations++;
+	}
+
+	/**
+	 * @return the number of annotations exported so far
+	 */
+	int getAnnotations() {
+		return annotations;
+	}
+
+	/**
+	 * @return true if the document is committed in chunks of annotations
+	 */
+	boolean isChunkedCommits() {
+		return chunkedCommits;
+	}
+
+	/**
+	 * Counts an exported annotation or relation.
+	 * 
+	 * @param chunkSize
+	 *            the number of annotations and relations per commit
+	 * @return true if a chunk is full and has to be committed
+	 */
+	boolean chunkFull(final int chunkSize) {
+		if (++uncommitted >= chunkSize) {
+			uncommitted = 0;
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import gate.Annotation;
+
+/**
+ * A filter of a subject mapping rule, declared in the mapping rules with
+ * <tt>map:hasFilter</tt>. A filter tests either a GATE feature
+ * (<tt>map:GATEfeature</tt>) or one of the attributes <tt>startOffset</tt>,
+ * <tt>endOffset</tt> and <tt>length</tt> (<tt>map:GATEattribute</tt>) of an
+ * annotation against a value (<tt>map:value</tt>), using a
+ * <tt>map:operator</tt>:
+ * 
+ * <ul>
+ * <li><tt>=</tt>, <tt>!=</tt>: equal values, compared as numbers if both are
+ * numeric and as strings otherwise</li>
+ * <li><tt>&lt;</tt>, <tt>&lt;=</tt>, <tt>&gt;</tt>, <tt>&gt;=</tt>: numeric
+ * comparison; non-numeric feature values do not pass</li>
+ * <li><tt>exists</tt>: the feature has a non-empty value (no
+ * <tt>map:value</tt>)</li>
+ * <li><tt>matches</tt>: the value is a regular expression matching the whole
+ * feature value</li>
+ * </ul>
+ * 
+ * <p>
+ * An annotation is exported only if it passes all filters of its rule. The
+ * filters are compiled once in {@link LODeXporter#init()} and tested before
+ * any URI or triple is created for the annotation.
+ * </p>
+ */
+public class FilterMapping extends Mapping {
+
+	/** The comparison operators of a filter. */
+	public enum Operator {
+		EQUALS("="), NOT_EQUALS("!="), LESS("<"), LESS_OR_EQUAL("<="), GREATER(">"), GREATER_OR_EQUAL(">="),
+		EXISTS("exists"), MATCHES("matches");
+
+		private final String symbol;
+
+		Operator(final String mySymbol) {
+			this.symbol = mySymbol;
+		}
+
+		/**
+		 * Returns the operator written as <tt>map:operator</tt> value.
+		 * 
+		 * @param symbol
+		 *            the operator symbol (e.g., "&gt;=")
+		 * @return the operator
+		 * @throws IllegalArgumentException
+		 *             if the symbol is unknown
+		 */
+		public static Operator forSymbol(final String symbol) {
+			for (final Operator op : values()) {
+				if (op.symbol.equals(symbol)) {
+					return op;
+				}
+			}
+			throw new IllegalArgumentException("Unsupported filter operator: " + symbol);
+		}
+
+		@Override
+		public String toString() {
+			return symbol;
+		}
+	}
+
+	private final String gateFeature;
+	private final String gateAttribute;
+	private final Operator operator;
+	private final String value;
+	private final double number;
+	private final boolean numeric;
+	private final Pattern pattern;
+
+	/**
+	 * Creates and compiles a filter.
+	 * 
+	 * @param mRule
+	 *            the name of the filtered subject rule
+	 * @param myGATEfeature
+	 *            the tested feature, or null
+	 * @param myGATEattribute
+	 *            the tested attribute, or null
+	 * @param myOperator
+	 *            the operator symbol
+	 * @param myValue
+	 *            the value compared with, or null for <tt>exists</tt>
+	 * @throws IllegalArgumentException
+	 *             if the filter is incomplete or invalid
+	 */
+	public FilterMapping(final String mRule, final String myGATEfeature, final String myGATEattribute,
+			final String myOperator, final String myValue) {
+		super(mRule, null, null);
+		if ((myGATEfeature == null) == (myGATEattribute == null)) {
+			throw new IllegalArgumentException("Filter of rule " + mRule + " needs either a GATEfeature or a GATEattribute");
+		}
+		if (myGATEattribute != null && !"startOffset".equals(myGATEattribute) && !"endOffset".equals(myGATEattribute)
+				&& !"length".equals(myGATEattribute)) {
+			throw new IllegalArgumentException("Unsupported GATEattribute in filter of rule " + mRule + ": " + myGATEattribute);
+		}
+		this.gateFeature = myGATEfeature;
+		this.gateAttribute = myGATEattribute;
+		this.operator = Operator.forSymbol(myOperator == null ? null : myOperator.trim());
+		if (operator != Operator.EXISTS && myValue == null) {
+			throw new IllegalArgumentException("Filter of rule " + mRule + " needs a value for operator " + operator);
+		}
+		this.value = myValue;
+		final Double parsed = myValue == null ? null : parseNumber(myValue);
+		this.numeric = parsed != null;
+		this.number = numeric ? parsed : Double.NaN;
+		switch (operator) {
+		case LESS:
+		case LESS_OR_EQUAL:
+		case GREATER:
+		case GREATER_OR_EQUAL:
+			if (!numeric) {
+				throw new IllegalArgumentException("Filter of rule " + mRule + " needs a numeric value for operator "
+						+ operator + ": " + myValue);
+			}
+			this.pattern = null;
+			break;
+		case MATCHES:
+			try {
+				this.pattern = Pattern.compile(myValue);
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid pattern in filter of rule " + mRule + ": " + myValue, e);
+			}
+			break;
+		default:
+			this.pattern = null;
+		}
+	}
+
+	/**
+	 * Parses a number as {@link Double#valueOf(String)} does. Strings that
+	 * cannot be numbers, such as most feature values tested by a numeric
+	 * filter, are rejected by a scan of their characters, without the cost
+	 * of a {@link NumberFormatException}.
+	 * 
+	 * @param str
+	 *            the string
+	 * @return the number, or null if the string is not a number
+	 */
+	static Double parseNumber(final String str) {
+		final String s = str.trim();
+		if (!isDecimal(s) && !isSpecialNumber(s)) {
+			return null;
+		}
+		try {
+			return Double.valueOf(s);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tests for a decimal number: an optional sign, digits with an optional
+	 * fraction, an optional exponent and an optional type suffix.
+	 */
+	private static boolean isDecimal(final String s) {
+		final int length = s.length();
+		int i = 0;
+		if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+			i++;
+		}
+		int digits = 0;
+		while (i < length && isDigit(s.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (i < length && s.charAt(i) == '.') {
+			i++;
+			while (i < length && isDigit(s.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < length && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			i++;
+			if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+				i++;
+			}
+			final int exponentStart = i;
+			while (i < length && isDigit(s.charAt(i))) {
+				i++;
+			}
+			if (i == exponentStart) {
+				return false;
+			}
+		}
+		if (i < length && "fFdD".indexOf(s.charAt(i)) >= 0) {
+			i++;
+		}
+		return i == length;
+	}
+
+	private static boolean isDigit(final char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Tests for the start of NaN, an infinity or a hexadecimal number, which
+	 * are left to {@link Double#valueOf(String)}.
+	 */
+	private static boolean isSpecialNumber(final String s) {
+		final int i = s.startsWith("+") || s.startsWith("-") ? 1 : 0;
+		return s.startsWith("NaN", i) || s.startsWith("Infinity", i) || s.startsWith("0x", i)
+				|| s.startsWith("0X", i);
+	}
+
+	/**
+	 * Tests whether an annotation passes all filters of a rule.
+	 * 
+	 * @param filters
+	 *            the filters of the rule, or null
+	 * @param annot
+	 *            the annotation
+	 * @return true if the annotation is to be exported
+	 */
+	public static boolean acceptsAll(final List<FilterMapping> filters, final Annotation annot) {
+		if (filters != null) {
+			for (final FilterMapping filter : filters) {
+				if (!filter.accepts(annot)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tests whether an annotation passes this filter.
+	 * 
+	 * @param annot
+	 *            the annotation
+	 * @return true if the annotation passes
+	 */
+	public final boolean accepts(final Annotation annot) {
+		final Object actual;
+		if (gateAttribute == null) {
+			actual = annot.getFeatures() == null ? null : annot.getFeatures().get(gateFeature);
+		} else if ("startOffset".equals(gateAttribute)) {
+			actual = annot.getStartNode().getOffset();
+		} else if ("endOffset".equals(gateAttribute)) {
+			actual = annot.getEndNode().getOffset();
+		} else {
+			actual = annot.getEndNode().getOffset() - annot.getStartNode().getOffset();
+		}
+		if (actual == null) {
+			return operator == Operator.NOT_EQUALS;
+		}
+		switch (operator) {
+		case EXISTS:
+			return actual.toString().length() > 0;
+		case MATCHES:
+			return pattern.matcher(actual.toString()).matches();
+		case EQUALS:
+			return equalsValue(actual);
+		case NOT_EQUALS:
+			return !equalsValue(actual);
+		default:
+			final Double actualNumber = actual instanceof Number ? ((Number) actual).doubleValue()
+					: parseNumber(actual.toString());
+			if (actualNumber == null) {
+				return false;
+			}
+			final int cmp = Double.compare(actualNumber, number);
+			switch (operator) {
+			case LESS:
+				return cmp < 0;
+			case LESS_OR_EQUAL:
+				return cmp <= 0;
+			case GREATER:
+				return cmp > 0;
+			default:
+				return cmp >= 0;
+			}
+		}
+	}
+
+	private boolean equalsValue(final Object actual) {
+		if (numeric) {
+			final Double actualNumber = actual instanceof Number ? ((Number) actual).doubleValue()
+					: parseNumber(actual.toString());
+			if (actualNumber != null) {
+				return Double.compare(actualNumber, number) == 0;
+			}
+		}
+		return value.equals(actual.toString());
+	}
+
+	/* (non-Javadoc)
+	 * @see info.semanticsoftware.lodexporter.Mapping#toString()
+	 */
+	@Override
+	public String toString() {
+		return super.toString() + " filter=" + (gateFeature != null ? gateFeature : "@" + gateAttribute) + " "
+				+ operator + (value == null ? "" : " " + value);
+	}
+}
@@ -25,27 +25,59 @@
 package info.semanticsoftware.lodexporter;
 
 import info.semanticsoftware.lodexporter.TripleStoreInterface.TransactionType;
+import info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore;
+import info.semanticsoftware.lodexporter.jena.PatchLog;
+import info.semanticsoftware.lodexporter.jena.QueryCache;
+import info.semanticsoftware.lodexporter.jena.TermDictionary;
+import info.semanticsoftware.lodexporter.jfr.ExportRecorder;
+import info.semanticsoftware.lodexporter.mem.InMemoryTripleStoreImpl;
+import info.semanticsoftware.lodexporter.remote.RemoteTripleStoreImpl;
+import info.semanticsoftware.lodexporter.sink.GraphPublisher;
+import info.semanticsoftware.lodexporter.sink.HDTSink;
+import info.semanticsoftware.lodexporter.sink.NQuadsFileSink;
+import info.semanticsoftware.lodexporter.sink.SortedNQuadsSink;
+import info.semanticsoftware.lodexporter.sink.StoreSink;
+import info.semanticsoftware.lodexporter.sink.TripleDeduplicator;
+import info.semanticsoftware.lodexporter.tdb.ShardedTDBTripleStoreImpl;
 import info.semanticsoftware.lodexporter.tdb.TDBTripleStoreImpl;
+import info.semanticsoftware.lodexporter.tdb2.TDB2TripleStoreImpl;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.jena.atlas.RuntimeIOException;
 import org.apache.jena.datatypes.xsd.XSDDateTime;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.graph.GraphReadOnly;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NullIterator;
 
 import gate.Annotation;
 import gate.AnnotationSet;
 import gate.Controller;
+import gate.Document;
 import gate.FeatureMap;
 import gate.ProcessingResource;
 import gate.creole.AbstractLanguageAnalyser;
@@ -54,9 +86,11 @@ import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
 import gate.relations.Relation;
 import gate.relations.RelationSet;
+import gate.util.GateRuntimeException;
 import org.apache.log4j.Logger;
 
 /**
@@ -65,7 +99,60 @@ import org.apache.log4j.Logger;
 @CreoleResource(name = "LODeXporter", comment = "A PR to transform GATE annotations to RDF triples.")
 public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingResource, ControllerAwarePR {
 	private static final long serialVersionUID = 1L;
+
+	/** The triple store implementations the PR can export to. */
+	public enum TripleStoreType {
+		/**
+		 * A TDB store directory. In file export mode, documents are staged in
+		 * memory instead, see {@link InMemoryTripleStoreImpl}.
+		 */
+		TDB,
+		/** A TDB2 store directory, or an in-memory TDB2 dataset in file export mode. */
+		TDB2,
+		/** A remote SPARQL server, see {@link RemoteTripleStoreImpl}. */
+		REMOTE,
+		/**
+		 * Several TDB store directories below the RDF store directory, see
+		 * {@link ShardedTDBTripleStoreImpl}.
+		 */
+		SHARDED_TDB
+	}
+
+	/** How the covered text of annotations (the content attribute) is exported. */
+	public enum ContentMode {
+		/** One literal per annotation. */
+		LITERAL,
+		/** One resource per distinct text, see {@link ContentIndex}. */
+		HASHED
+	}
+
+	/** Where the annotatedAt and annotatedBy attributes are exported. */
+	public enum ProvenanceMode {
+		/** On every annotation mapped with the attribute, as in earlier versions. */
+		ANNOTATION,
+		/**
+		 * Once on the export of the document, if any of its annotations is
+		 * mapped with the attribute; annotatedAt is the time of the document
+		 * export.
+		 */
+		DOCUMENT
+	}
+
 	protected static final String LODEXPORTER_SESSION_FEATURE = "LODeXporterSession";
+	protected static final String LODEXPORTER_COMPLETE_FEATURE = "LODeXporterComplete";
+
+	/**
+	 * Document feature holding the exported triples of the document as a
+	 * read-only Jena {@link Graph}, if publishGraphs is set.
+	 */
+	public static final String LODEXPORTER_GRAPH_FEATURE = "LODeXporterGraph";
+
+	/** Prefix of the export activities holding the provenance of a document export. */
+	private static final String EXPORT_BASE_URI = "http://semanticsoftware.info/lodexporter/Export/";
+
+	/** Asks for the export session marker written after the final chunk of a document. */
+	private static final String EXPORT_SESSION_SPARQL =
+			"ASK { ?doc <http://lod.semanticsoftware.info/pubo/pubo#exportSession> ?session }";
 	private Boolean exportToFile; // true if we export triples to file, false if we use an external KB
 
 	/**
@@ -85,10 +172,64 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 
 	/**  */
 	private transient Map<String, LinkedList<RelationMapping>> relationMapList;
+
+	/**
+	 * The compiled {@link FilterMapping}s of the subject mapping rules, keyed
+	 * by rule name; rules without filters have no entry.
+	 */
+	private transient Map<String, LinkedList<FilterMapping>> filterMapList;
+
+	/**
+	 * The {@link RelationStrategy} of each relation mapping rule, keyed by rule
+	 * name and resolved once in {@link #init()}.
+	 */
+	private transient Map<String, RelationStrategy> relationStrategies;
 	private TripleStoreInterface myTripleStore;
 	private String pipelineName;
 	private String corpusName;
-	private transient String sessionID;
+
+	/** Serializes the documents of a store that is re-initialized after each document. */
+	private final transient Object reInitLock = new Object();
+
+	/**
+	 * The recurring URI terms of the whole run; kept outside the triple store
+	 * so they survive its re-initialization between documents.
+	 */
+	private transient TermDictionary termDictionary;
+
+	/** Parsed SPARQL queries of the run; kept outside the triple store like {@link #termDictionary}. */
+	private transient QueryCache queryCache;
+
+	/** Suppresses duplicate triples in file export mode, if enabled. */
+	private transient TripleDeduplicator deduplicator;
+
+	/** Content-addressed export of the content attribute, or null for plain literals. */
+	private transient ContentIndex contentIndex;
+
+	/** Collects the triples of a run into an HDT file, or null. */
+	private transient HDTSink hdtSink;
+
+	/** Collects the triples of a run into a sorted N-Quads file, or null. */
+	private transient SortedNQuadsSink sortedSink;
+
+	/** Hands the triples of each document to in-process subscribers and the sinks, or null. */
+	private transient GraphPublisher graphPublisher;
+
+	/** The subscriptions of the additional sinks, empty if there are none. */
+	private transient List<GraphPublisher.Subscription> sinkSubscriptions;
+
+	/** The triple stores of the additional sinks, disconnected in {@link #cleanup()}. */
+	private transient List<TripleStoreInterface> sinkStores;
+
+	/** Patch log of the store, or null. */
+	private transient PatchLog patchLog;
+
+	/** Threads encoding exported files, or null to encode on the calling thread. */
+	private transient ExecutorService exportEncoders;
+
+	/** Number of threads in {@link #exportEncoders}. */
+	private transient int exportEncoderThreads;
+
 	protected static final Logger LOGGER = Logger.getLogger(LODeXporter.class);
 
 	// creole parameters
@@ -102,11 +243,12 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 	@RunTime
 	private String exportFilePath;
 
-	@CreoleParameter(comment = "SubjectMapping SPARQL query", defaultValue = "SELECT ?rule ?type ?baseURI ?GATEtype "
+	@CreoleParameter(comment = "SubjectMapping SPARQL query", defaultValue = "SELECT ?rule ?type ?baseURI ?GATEtype ?GATEannotationSet "
 			+ "WHERE { " + "?rule ?p <map:Mapping> . "
 			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#type> ?type . "
 			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#baseURI> ?baseURI . "
-			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#GATEtype> ?GATEtype .} ")
+			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#GATEtype> ?GATEtype . "
+			+ "OPTIONAL {?rule <http://lod.semanticsoftware.info/mapping/mapping#GATEannotationSet> ?GATEannotationSet . }} ")
 	private String subjectMappingSparql;
 
 	@CreoleParameter(comment = "PropertyMapping SPARQL query", defaultValue = "SELECT ?rule ?GATEtype ?GATEattribute ?GATEfeature ?type "
@@ -118,21 +260,718 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 			+ "OPTIONAL {?mapping <http://lod.semanticsoftware.info/mapping/mapping#GATEfeature> ?GATEfeature . }}")
 	private String propertyMappingSparql;
 
-	@CreoleParameter(comment = "RelationMapping SPARQL query", defaultValue = "SELECT ?rule ?type ?domain ?range ?GATEattribute "
+	@CreoleParameter(comment = "RelationMapping SPARQL query", defaultValue = "SELECT ?rule ?type ?domain ?range ?GATEattribute ?maxDistance "
 			+ "WHERE { " + "?rule ?p <map:Mapping> . "
 			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#type> ?type . "
 			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#domain> ?domain . "
 			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#range> ?range . "
-			+ "OPTIONAL {?rule <http://lod.semanticsoftware.info/mapping/mapping#GATEattribute> ?GATEattribute . }}")
+			+ "OPTIONAL {?rule <http://lod.semanticsoftware.info/mapping/mapping#GATEattribute> ?GATEattribute . }"
+			+ "OPTIONAL {?rule <http://lod.semanticsoftware.info/mapping/mapping#maxDistance> ?maxDistance . }}")
 	private String relationMappingSparql;
 
-	@CreoleParameter(comment = "The annotation set to use as input", defaultValue = "")
+	@CreoleParameter(comment = "FilterMapping SPARQL query", defaultValue = "SELECT ?rule ?GATEfeature ?GATEattribute ?operator ?value "
+			+ "WHERE { " + "?rule ?p <map:Mapping> . "
+			+ "?rule <http://lod.semanticsoftware.info/mapping/mapping#hasFilter> ?filter . "
+			+ "?filter <http://lod.semanticsoftware.info/mapping/mapping#operator> ?operator . "
+			+ "OPTIONAL {?filter <http://lod.semanticsoftware.info/mapping/mapping#GATEfeature> ?GATEfeature . }"
+			+ "OPTIONAL {?filter <http://lod.semanticsoftware.info/mapping/mapping#GATEattribute> ?GATEattribute . }"
+			+ "OPTIONAL {?filter <http://lod.semanticsoftware.info/mapping/mapping#value> ?value . }}")
+	private String filterMappingSparql;
+
+	@CreoleParameter(comment = "The annotation set to use as input", defaultValue = "")
+	@RunTime
+	private String inputASName;
+
+	@CreoleParameter(comment = "The annotation sets to export in one pass (overrides inputASName when not empty)", collectionElementType = String.class)
+	@RunTime
+	@Optional
+	private List<String> inputASNames;
+
+	@CreoleParameter(comment = "Use custom URIs", defaultValue = "false")
+	@RunTime
+	private Boolean customURI;
+
+	@CreoleParameter(comment = "The triple store implementation to export to", defaultValue = "TDB")
+	private TripleStoreType tripleStoreType;
+
+	@CreoleParameter(comment = "Graph Store Protocol or SPARQL Update endpoint (remote triple store only)", defaultValue = "")
+	private String remoteEndpoint;
+
+	@CreoleParameter(comment = "Protocol for sending triples to the remote endpoint", defaultValue = "GSP")
+	private RemoteTripleStoreImpl.Protocol remoteProtocol;
+
+	@CreoleParameter(comment = "Graph URI for the remote triple store (empty for the default graph)", defaultValue = "")
+	private String remoteGraph;
+
+	@CreoleParameter(comment = "Number of triples per request to the remote triple store", defaultValue = "10000")
+	private Integer remoteBatchSize;
+
+	@CreoleParameter(comment = "Number of concurrent requests to the remote triple store", defaultValue = "4")
+	private Integer remoteConcurrency;
+
+	@CreoleParameter(comment = "Number of retries of a failed request to the remote triple store", defaultValue = "5")
+	private Integer remoteMaxRetries;
+
+	/**
+	 * @return the triple store implementation to export to
+	 */
+	public final TripleStoreType getTripleStoreType() {
+		return tripleStoreType;
+	}
+
+	/**
+	 * Selects the triple store implementation. The remote store requires a
+	 * mappingFile and a remoteEndpoint.
+	 * 
+	 * @param myTripleStoreType
+	 *            the triple store implementation
+	 */
+	public final void setTripleStoreType(final TripleStoreType myTripleStoreType) {
+		this.tripleStoreType = myTripleStoreType;
+	}
+
+	/**
+	 * @return the remote endpoint URL
+	 */
+	public final String getRemoteEndpoint() {
+		return remoteEndpoint;
+	}
+
+	/**
+	 * @param myRemoteEndpoint
+	 *            the Graph Store Protocol or SPARQL Update endpoint URL
+	 */
+	public final void setRemoteEndpoint(final String myRemoteEndpoint) {
+		this.remoteEndpoint = myRemoteEndpoint;
+	}
+
+	/**
+	 * @return the protocol used for the remote endpoint
+	 */
+	public final RemoteTripleStoreImpl.Protocol getRemoteProtocol() {
+		return remoteProtocol;
+	}
+
+	/**
+	 * @param myRemoteProtocol
+	 *            the protocol used for the remote endpoint
+	 */
+	public final void setRemoteProtocol(final RemoteTripleStoreImpl.Protocol myRemoteProtocol) {
+		this.remoteProtocol = myRemoteProtocol;
+	}
+
+	/**
+	 * @return the remote graph URI, or an empty string for the default graph
+	 */
+	public final String getRemoteGraph() {
+		return remoteGraph;
+	}
+
+	/**
+	 * @param myRemoteGraph
+	 *            the remote graph URI, or an empty string for the default graph
+	 */
+	public final void setRemoteGraph(final String myRemoteGraph) {
+		this.remoteGraph = myRemoteGraph;
+	}
+
+	/**
+	 * @return the number of triples per remote request
+	 */
+	public final Integer getRemoteBatchSize() {
+		return remoteBatchSize;
+	}
+
+	/**
+	 * @param myRemoteBatchSize
+	 *            the number of triples per remote request
+	 */
+	public final void setRemoteBatchSize(final Integer myRemoteBatchSize) {
+		this.remoteBatchSize = myRemoteBatchSize;
+	}
+
+	/**
+	 * @return the number of concurrent remote requests
+	 */
+	public final Integer getRemoteConcurrency() {
+		return remoteConcurrency;
+	}
+
+	/**
+	 * @param myRemoteConcurrency
+	 *            the number of concurrent remote requests
+	 */
+	public final void setRemoteConcurrency(final Integer myRemoteConcurrency) {
+		this.remoteConcurrency = myRemoteConcurrency;
+	}
+
+	/**
+	 * @return the number of retries of a failed remote request
+	 */
+	public final Integer getRemoteMaxRetries() {
+		return remoteMaxRetries;
+	}
+
+	/**
+	 * @param myRemoteMaxRetries
+	 *            the number of retries of a failed remote request
+	 */
+	public final void setRemoteMaxRetries(final Integer myRemoteMaxRetries) {
+		this.remoteMaxRetries = myRemoteMaxRetries;
+	}
+
+	@CreoleParameter(comment = "Number of TDB directories of the sharded triple store", defaultValue = "4")
+	private Integer storeShards;
+
+	/**
+	 * @return the number of shards of the sharded triple store
+	 */
+	public final Integer getStoreShards() {
+		return storeShards;
+	}
+
+	/**
+	 * Sets the number of TDB directories the documents are partitioned
+	 * across. Must match the number of shards of an existing sharded store.
+	 * 
+	 * @param myStoreShards
+	 *            the number of shards
+	 */
+	public final void setStoreShards(final Integer myStoreShards) {
+		this.storeShards = myStoreShards;
+	}
+
+	@CreoleParameter(comment = "Merge the counts of the exported predicates and classes into the optimizer statistics of the RDF store directory after each run", defaultValue = "true")
+	private Boolean updateStoreStatistics;
+
+	/**
+	 * @return whether the optimizer statistics of the store are updated
+	 */
+	public final Boolean getUpdateStoreStatistics() {
+		return updateStoreStatistics;
+	}
+
+	/**
+	 * Keeps TDB's optimizer statistics (<tt>stats.opt</tt>) of an RDF store
+	 * directory up to date by adding the per-predicate and per-class counts of
+	 * each run. Ignored in file export mode and for the remote store.
+	 * 
+	 * @param myUpdateStoreStatistics
+	 *            whether to update the statistics
+	 */
+	public final void setUpdateStoreStatistics(final Boolean myUpdateStoreStatistics) {
+		this.updateStoreStatistics = myUpdateStoreStatistics;
+	}
+
+	@CreoleParameter(comment = "Directory of the RDF Patch log of the triples added to the store (empty for no log)", defaultValue = "")
+	private String patchLogDir;
+
+	/**
+	 * @return the directory of the patch log, or an empty string
+	 */
+	public final String getPatchLogDir() {
+		return patchLogDir;
+	}
+
+	/**
+	 * Sets a directory receiving an RDF Patch for each committed document,
+	 * which replicas of the store can apply instead of reloading a full dump.
+	 * Ignored in file export mode.
+	 * 
+	 * @param myPatchLogDir
+	 *            the log directory, or an empty string for no log
+	 */
+	public final void setPatchLogDir(final String myPatchLogDir) {
+		this.patchLogDir = myPatchLogDir;
+	}
+
+	@CreoleParameter(comment = "Size in MB after which the patch log starts a new segment file", defaultValue = "64")
+	private Integer patchSegmentSize;
+
+	/**
+	 * @return the size in MB of a patch log segment
+	 */
+	public final Integer getPatchSegmentSize() {
+		return patchSegmentSize;
+	}
+
+	/**
+	 * Sets the size in MB after which the patch log starts a new segment file.
+	 * Each run of the controller also starts a new segment.
+	 * 
+	 * @param myPatchSegmentSize
+	 *            the segment size in MB
+	 */
+	public final void setPatchSegmentSize(final Integer myPatchSegmentSize) {
+		this.patchSegmentSize = myPatchSegmentSize;
+	}
+
+	@CreoleParameter(comment = "Export the content attribute as literals or as hashed resources holding each distinct text once", defaultValue = "LITERAL")
+	private ContentMode contentMode;
+
+	/**
+	 * @return how the content attribute is exported
+	 */
+	public final ContentMode getContentMode() {
+		return contentMode;
+	}
+
+	/**
+	 * With {@link ContentMode#HASHED}, annotations link to a resource named
+	 * by the hash of their text, and each distinct text is written once per
+	 * document.
+	 * 
+	 * @param myContentMode
+	 *            how the content attribute is exported
+	 */
+	public final void setContentMode(final ContentMode myContentMode) {
+		this.contentMode = myContentMode;
+	}
+
+	@CreoleParameter(comment = "Export annotatedAt and annotatedBy once per document or on every annotation", defaultValue = "DOCUMENT")
+	private ProvenanceMode provenanceMode;
+
+	/**
+	 * @return where the provenance attributes are exported
+	 */
+	public final ProvenanceMode getProvenanceMode() {
+		return provenanceMode;
+	}
+
+	/**
+	 * The annotatedAt and annotatedBy attributes have the same values for all
+	 * annotations of a document. With {@link ProvenanceMode#DOCUMENT}, their
+	 * properties are exported once per export session instead of two triples
+	 * per annotation. Their subject is a prov:Activity named after the
+	 * {@link #LODEXPORTER_SESSION_FEATURE}, linked from the document with
+	 * pubo:hasExport, so the values of each re-export stay apart; use
+	 * {@link ProvenanceMode#ANNOTATION} for consumers expecting them on the
+	 * annotations.
+	 * 
+	 * @param myProvenanceMode
+	 *            where the provenance attributes are exported
+	 */
+	public final void setProvenanceMode(final ProvenanceMode myProvenanceMode) {
+		this.provenanceMode = myProvenanceMode;
+	}
+
+	@CreoleParameter(comment = "Maximum length in characters of an exported content attribute (0 = no limit)", defaultValue = "0")
+	private Integer maxContentLength;
+
+	/**
+	 * @return the maximum length of an exported content attribute
+	 */
+	public final Integer getMaxContentLength() {
+		return maxContentLength;
+	}
+
+	/**
+	 * Sets the length past which the content of an annotation is not exported,
+	 * keeping only its offsets (if mapped).
+	 * 
+	 * @param myMaxContentLength
+	 *            the maximum length in characters, or 0 for no limit
+	 */
+	public final void setMaxContentLength(final Integer myMaxContentLength) {
+		this.maxContentLength = myMaxContentLength;
+	}
+
+	@CreoleParameter(comment = "HDT file receiving the triples exported during each run (empty for no HDT file)", defaultValue = "")
+	private String hdtFile;
+
+	/**
+	 * @return the HDT file written at the end of each run, or an empty string
+	 */
+	public final String getHdtFile() {
+		return hdtFile;
+	}
+
+	/**
+	 * Sets a file receiving a compressed HDT dump of the triples exported
+	 * during a run, which can be queried without loading it into a store. The
+	 * triples are spilled to disk during the run and the file is built when
+	 * the run finishes.
+	 * 
+	 * @param myHdtFile
+	 *            the HDT file, or an empty string for no HDT file
+	 */
+	public final void setHdtFile(final String myHdtFile) {
+		this.hdtFile = myHdtFile;
+	}
+
+	@CreoleParameter(comment = "Sorted, duplicate-free N-Quads file receiving the triples exported during each run (empty for no sorted file)", defaultValue = "")
+	private String sortedExportFile;
+
+	/**
+	 * @return the sorted N-Quads file written at the end of each run, or an
+	 *         empty string
+	 */
+	public final String getSortedExportFile() {
+		return sortedExportFile;
+	}
+
+	/**
+	 * Sets a file receiving all triples exported during a run, sorted and
+	 * without duplicates, for bulk loading and reproducible dumps. The
+	 * triples are spilled to sorted run files during the run and merged when
+	 * the run finishes.
+	 * 
+	 * @param mySortedExportFile
+	 *            the N-Quads file, or an empty string for no sorted file
+	 */
+	public final void setSortedExportFile(final String mySortedExportFile) {
+		this.sortedExportFile = mySortedExportFile;
+	}
+
+	@CreoleParameter(comment = "Heap size in MB of the triples buffered before a sorted run is spilled to disk", defaultValue = "64")
+	private Integer sortBufferSize;
+
+	/**
+	 * @return the size in MB of the sort buffer
+	 */
+	public final Integer getSortBufferSize() {
+		return sortBufferSize;
+	}
+
+	/**
+	 * Sets the estimated heap size in MB of the triples kept in memory before
+	 * they are sorted and spilled to a run file, see sortedExportFile.
+	 * 
+	 * @param mySortBufferSize
+	 *            the buffer size in MB
+	 */
+	public final void setSortBufferSize(final Integer mySortBufferSize) {
+		this.sortBufferSize = mySortBufferSize;
+	}
+
+	@CreoleParameter(comment = "Put the exported triples of each document on a document feature and publish them to in-process subscribers", defaultValue = "false")
+	private Boolean publishGraphs;
+
+	/**
+	 * @return whether the triples of each document are handed over in memory
+	 */
+	public final Boolean getPublishGraphs() {
+		return publishGraphs;
+	}
+
+	/**
+	 * Hands the exported triples of each document to components in the same
+	 * JVM without a round-trip through a file: they are put on the
+	 * {@link #LODEXPORTER_GRAPH_FEATURE} document feature (remove it before
+	 * storing the document, the graph is not serializable) and published to
+	 * the subscribers of {@link #getGraphPublisher()}.
+	 * 
+	 * @param myPublishGraphs
+	 *            whether to hand the triples over in memory
+	 */
+	public final void setPublishGraphs(final Boolean myPublishGraphs) {
+		this.publishGraphs = myPublishGraphs;
+	}
+
+	/**
+	 * @return the publisher of the exported documents, for registering
+	 *         subscribers, or null if neither publishGraphs nor a sink is set
+	 */
+	public final GraphPublisher getGraphPublisher() {
+		return graphPublisher;
+	}
+
+	@CreoleParameter(comment = "Directory receiving an N-Quads file per document in addition to the triple store (empty for none)", defaultValue = "")
+	private String sinkExportFilePath;
+
+	@CreoleParameter(comment = "TDB directory receiving the exported triples in addition to the triple store (empty for none)", defaultValue = "")
+	private String sinkStoreDir;
+
+	@CreoleParameter(comment = "Remote endpoint receiving the exported triples in addition to the triple store, using the remote* parameters (empty for none)", defaultValue = "")
+	private String sinkRemoteEndpoint;
+
+	@CreoleParameter(comment = "Number of documents buffered for each additional sink", defaultValue = "16")
+	private Integer sinkBufferSize;
+
+	/**
+	 * @return the directory receiving a file per document, or an empty string
+	 */
+	public final String getSinkExportFilePath() {
+		return sinkExportFilePath;
+	}
+
+	/**
+	 * Sets a directory receiving the triples of each document as an N-Quads
+	 * file, as in file export mode but without the mapping rules, in
+	 * addition to the triple store. Like the other sinks, the files are
+	 * written from the triples mapped for the triple store, by a thread of
+	 * their own.
+	 * 
+	 * @param mySinkExportFilePath
+	 *            the directory, or an empty string for no files
+	 */
+	public final void setSinkExportFilePath(final String mySinkExportFilePath) {
+		this.sinkExportFilePath = mySinkExportFilePath;
+	}
+
+	/**
+	 * @return the TDB directory receiving a copy of the triples, or an empty
+	 *         string
+	 */
+	public final String getSinkStoreDir() {
+		return sinkStoreDir;
+	}
+
+	/**
+	 * @param mySinkStoreDir
+	 *            a TDB directory receiving the exported triples in addition
+	 *            to the triple store, or an empty string for none
+	 */
+	public final void setSinkStoreDir(final String mySinkStoreDir) {
+		this.sinkStoreDir = mySinkStoreDir;
+	}
+
+	/**
+	 * @return the remote endpoint receiving a copy of the triples, or an
+	 *         empty string
+	 */
+	public final String getSinkRemoteEndpoint() {
+		return sinkRemoteEndpoint;
+	}
+
+	/**
+	 * @param mySinkRemoteEndpoint
+	 *            a remote endpoint receiving the exported triples in addition
+	 *            to the triple store, configured like the remote triple
+	 *            store, or an empty string for none
+	 */
+	public final void setSinkRemoteEndpoint(final String mySinkRemoteEndpoint) {
+		this.sinkRemoteEndpoint = mySinkRemoteEndpoint;
+	}
+
+	/**
+	 * @return the number of documents buffered for each sink
+	 */
+	public final Integer getSinkBufferSize() {
+		return sinkBufferSize;
+	}
+
+	/**
+	 * Sets the number of documents buffered for each additional sink. The
+	 * export waits once the buffer of a sink is full, but a slow sink does
+	 * not hold up the other sinks before that.
+	 * 
+	 * @param mySinkBufferSize
+	 *            the number of buffered documents
+	 */
+	public final void setSinkBufferSize(final Integer mySinkBufferSize) {
+		this.sinkBufferSize = mySinkBufferSize;
+	}
+
+	@CreoleParameter(comment = "Compact the TDB2 store directory after each run", defaultValue = "false")
+	@RunTime
+	private Boolean compactStore;
+
+	/**
+	 * @return whether a TDB2 store directory is compacted after each run
+	 */
+	public final Boolean getCompactStore() {
+		return compactStore;
+	}
+
+	/**
+	 * Compacting a TDB2 store releases the space held by the data of earlier
+	 * transactions. Ignored for other store types and in file export mode.
+	 * 
+	 * @param myCompactStore
+	 *            whether to compact the store after each run
+	 */
+	public final void setCompactStore(final Boolean myCompactStore) {
+		this.compactStore = myCompactStore;
+	}
+
+	@CreoleParameter(comment = "Number of threads encoding the exported files (1 = calling thread only, 0 = one per core)", defaultValue = "1")
+	private Integer exportThreads;
+
+	/**
+	 * @return the number of threads encoding the exported files
+	 */
+	public final Integer getExportThreads() {
+		return exportThreads;
+	}
+
+	/**
+	 * Sets the number of threads encoding the triples of an exported file;
+	 * only files larger than one chunk of triples are encoded in parallel.
+	 * Parallel encoding is off by default, no encoder threads are started
+	 * unless more than one thread is configured.
+	 * 
+	 * @param myExportThreads
+	 *            the number of threads, 1 to encode on the calling thread or 0
+	 *            for one thread per core
+	 */
+	public final void setExportThreads(final Integer myExportThreads) {
+		this.exportThreads = myExportThreads;
+	}
+
+	@CreoleParameter(comment = "Number of recurring URI terms (document, class and property URIs) cached during a run", defaultValue = "10000")
+	private Integer termCacheSize;
+
+	/**
+	 * @return the capacity of the term dictionary
+	 */
+	public final Integer getTermCacheSize() {
+		return termCacheSize;
+	}
+
+	/**
+	 * @param myTermCacheSize
+	 *            the number of recurring URI terms cached during a run
+	 */
+	public final void setTermCacheSize(final Integer myTermCacheSize) {
+		this.termCacheSize = myTermCacheSize;
+	}
+
+	@CreoleParameter(comment = "Number of parsed SPARQL queries cached for the mapping rules and the read methods of the triple store", defaultValue = "100")
+	private Integer queryCacheSize;
+
+	@CreoleParameter(comment = "Time in milliseconds after which a SPARQL query of the triple store is cancelled (0 = no timeout)", defaultValue = "0")
+	private Integer queryTimeout;
+
+	/**
+	 * @return the capacity of the query cache
+	 */
+	public final Integer getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
+	/**
+	 * @param myQueryCacheSize
+	 *            the number of parsed SPARQL queries cached
+	 */
+	public final void setQueryCacheSize(final Integer myQueryCacheSize) {
+		this.queryCacheSize = myQueryCacheSize;
+	}
+
+	/**
+	 * @return the query timeout in milliseconds, or 0 for no timeout
+	 */
+	public final Integer getQueryTimeout() {
+		return queryTimeout;
+	}
+
+	/**
+	 * Sets the time after which the queries of the triple store are
+	 * cancelled, including those of other components using
+	 * {@link #getTripleStore()}.
+	 * 
+	 * @param myQueryTimeout
+	 *            the timeout in milliseconds, or 0 for no timeout
+	 */
+	public final void setQueryTimeout(final Integer myQueryTimeout) {
+		this.queryTimeout = myQueryTimeout;
+	}
+
+	/**
+	 * Returns the triple store of the exporter, so that other components in
+	 * the same JVM can query it through its read methods (e.g.,
+	 * {@link TripleStoreInterface#select(String, Map, java.util.function.Consumer)})
+	 * instead of opening the store directory again. In file export mode, the
+	 * store may be replaced between documents; do not keep it.
+	 * 
+	 * @return the connected triple store, or null before initialization
+	 */
+	public final TripleStoreInterface getTripleStore() {
+		return myTripleStore;
+	}
+
+	@CreoleParameter(comment = "Expected number of distinct triples per run for suppressing duplicates in exported files (0 = no deduplication)", defaultValue = "0")
+	private Long dedupExpectedTriples;
+
+	@CreoleParameter(comment = "Fraction of new triples that may wrongly be suppressed as duplicates of earlier documents", defaultValue = "0.001")
+	private Double dedupFalsePositiveRate;
+
+	/**
+	 * @return the expected number of distinct triples per run used to size
+	 *         the duplicate filter, or 0 if deduplication is disabled
+	 */
+	public final Long getDedupExpectedTriples() {
+		return dedupExpectedTriples;
+	}
+
+	/**
+	 * Enables suppressing triples in file export mode that were already
+	 * written for an earlier document of the run, using a Bloom filter sized
+	 * for the given number of triples. The filter has no exact check, so a
+	 * fraction of genuinely new triples, set by dedupFalsePositiveRate
+	 * (0.001 by default), is silently dropped as well. The mapping rules are
+	 * only written into the first exported file of a run; later files no
+	 * longer contain them.
+	 * 
+	 * @param myDedupExpectedTriples
+	 *            the expected number of distinct triples, or 0 to disable
+	 */
+	public final void setDedupExpectedTriples(final Long myDedupExpectedTriples) {
+		this.dedupExpectedTriples = myDedupExpectedTriples;
+	}
+
+	/**
+	 * @return the false-positive rate of the duplicate filter
+	 */
+	public final Double getDedupFalsePositiveRate() {
+		return dedupFalsePositiveRate;
+	}
+
+	/**
+	 * @param myDedupFalsePositiveRate
+	 *            the fraction of new triples that may wrongly be suppressed
+	 */
+	public final void setDedupFalsePositiveRate(final Double myDedupFalsePositiveRate) {
+		this.dedupFalsePositiveRate = myDedupFalsePositiveRate;
+	}
+
+	@CreoleParameter(comment = "Commit to the RDF store directory every N annotations and relations of a document (0 = one transaction per document)", defaultValue = "0")
 	@RunTime
-	private String inputASName;
+	private Integer commitChunkSize;
 
-	@CreoleParameter(comment = "Use custom URIs", defaultValue = "false")
-	@RunTime
-	private Boolean customURI;
+	/**
+	 * @return the number of annotations and relations per commit within a
+	 *         document (0 for one transaction per document)
+	 */
+	public final Integer getCommitChunkSize() {
+		return commitChunkSize;
+	}
+
+	/**
+	 * Sets how many annotations and relations of a document are stored per
+	 * transaction when exporting to an RDF store directory. A document
+	 * exported in chunks is only marked complete after its final chunk has
+	 * been committed, with a pubo:exportSession triple holding its
+	 * {@link #LODEXPORTER_SESSION_FEATURE}. The markers of earlier exports of
+	 * the same document stay in the store, so use
+	 * {@link #isExportComplete(Document)} to check the last export.
+	 * 
+	 * @param myCommitChunkSize
+	 *            annotations and relations per commit, or 0 for one
+	 *            transaction per document
+	 */
+	public final void setCommitChunkSize(final Integer myCommitChunkSize) {
+		this.commitChunkSize = myCommitChunkSize;
+	}
+
+	/**
+	 * Tests whether the store holds the export session marker of the last
+	 * export of a document in chunks, i.e., whether all of its chunks were
+	 * committed. Markers of earlier sessions do not count.
+	 * 
+	 * @param doc
+	 *            the exported document
+	 * @return true if the last export of the document was committed
+	 *         completely
+	 */
+	public final boolean isExportComplete(final Document doc) {
+		final Object sessionID = doc.getFeatures().get(LODEXPORTER_SESSION_FEATURE);
+		if (sessionID == null) {
+			return false;
+		}
+		return myTripleStore.ask(EXPORT_SESSION_SPARQL,
+				Collections.singletonMap("session", ResourceFactory.createStringLiteral(sessionID.toString())));
+	}
 
 	/**
 	 * Sets whether custom URI generation style should be used.
@@ -236,6 +1075,21 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 		this.propertyMappingSparql = myPropertyMappingSparql;
 	}
 
+	/**
+	 * @return the filterMappingSparql
+	 */
+	public final String getFilterMappingSparql() {
+		return filterMappingSparql;
+	}
+
+	/**
+	 * @param myFilterMappingSparql
+	 *            the filterMappingSparql to set
+	 */
+	public final void setFilterMappingSparql(final String myFilterMappingSparql) {
+		this.filterMappingSparql = myFilterMappingSparql;
+	}
+
 	/**
 	 * @return the relationMappingSparql
 	 */
@@ -259,6 +1113,27 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 		this.inputASName = myInputASName;
 	}
 
+	/**
+	 * Sets the annotation sets exported together in the transaction of each
+	 * document. A subject mapping rule with a
+	 * <tt>map:GATEannotationSet</tt> is only applied to that set; other rules
+	 * are applied to all sets. An empty name selects the default set.
+	 * 
+	 * @param myInputASNames
+	 *            the annotation set names, or null/empty to export only
+	 *            inputASName
+	 */
+	public final void setInputASNames(final List<String> myInputASNames) {
+		this.inputASNames = myInputASNames;
+	}
+
+	/**
+	 * @return the annotation sets exported in one pass
+	 */
+	public final List<String> getInputASNames() {
+		return this.inputASNames;
+	}
+
 	/**
 	 * @return the inputASName
 	 */
@@ -274,13 +1149,96 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 	@Override
 	public final gate.Resource init() throws ResourceInstantiationException {
 		LOGGER.debug("LODeXporter loaded!");
-		myTripleStore = new TDBTripleStoreImpl();
+		final int maxContent = getMaxContentLength() == null ? 0 : getMaxContentLength();
+		if (contentIndex == null && (getContentMode() == ContentMode.HASHED || maxContent > 0)) {
+			contentIndex = new ContentIndex(ContentIndex.DEFAULT_BASE_URI, getContentMode() == ContentMode.HASHED,
+					maxContent);
+		}
+		if (sortedSink == null && getSortedExportFile() != null && getSortedExportFile().trim().length() > 0) {
+			try {
+				sortedSink = new SortedNQuadsSink(Paths.get(getSortedExportFile().trim()), getSortBufferSize() == null
+						? SortedNQuadsSink.DEFAULT_BUFFER_SIZE : getSortBufferSize() * 1024L * 1024L);
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInstantiationException(e);
+			}
+		}
+		if (graphPublisher == null && Boolean.TRUE.equals(getPublishGraphs())) {
+			graphPublisher = new GraphPublisher();
+		}
+		if (hdtSink == null && getHdtFile() != null && getHdtFile().trim().length() > 0) {
+			hdtSink = new HDTSink(Paths.get(getHdtFile().trim()));
+		}
+		if (termDictionary == null) {
+			try {
+				termDictionary = new TermDictionary(
+						getTermCacheSize() == null ? TermDictionary.DEFAULT_CAPACITY : getTermCacheSize());
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInstantiationException(e);
+			}
+		}
+		if (queryCache == null) {
+			try {
+				queryCache = new QueryCache(
+						getQueryCacheSize() == null ? QueryCache.DEFAULT_CAPACITY : getQueryCacheSize());
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInstantiationException(e);
+			}
+		}
+		if (deduplicator == null && getDedupExpectedTriples() != null && getDedupExpectedTriples() > 0) {
+			try {
+				deduplicator = new TripleDeduplicator(getDedupExpectedTriples(),
+						getDedupFalsePositiveRate() == null ? 0.001 : getDedupFalsePositiveRate());
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInstantiationException(e);
+			}
+		}
+		if (exportEncoders == null) {
+			exportEncoderThreads = getExportThreads() == null ? 1 : getExportThreads() == 0
+					? Runtime.getRuntime().availableProcessors() : getExportThreads();
+			if (exportEncoderThreads > 1) {
+				exportEncoders = Executors.newFixedThreadPool(exportEncoderThreads, r -> {
+					final Thread t = new Thread(r, "lodexporter-encoder");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+		}
 		// check if user wants to use file export mode using a mapping file
 		final URL mappingRulesFile = getMappingFile() == null || getMappingFile().toString().length() == 0 ? null : getMappingFile();
 		// check if user wants to connect to an existing TDB-based triplestore
 		final String tdbDiskDirectory = getrdfStoreDir() == null || getrdfStoreDir().trim().length() == 0 ? null : getrdfStoreDir();
+		final boolean fileMode = mappingRulesFile != null && tdbDiskDirectory == null;
+		if (patchLog == null && !fileMode && getPatchLogDir() != null && getPatchLogDir().trim().length() > 0) {
+			try {
+				patchLog = new PatchLog(Paths.get(getPatchLogDir().trim()), getPatchSegmentSize() == null
+						? PatchLog.DEFAULT_SEGMENT_SIZE : getPatchSegmentSize() * 1024L * 1024L);
+			} catch (IOException | IllegalArgumentException e) {
+				throw new ResourceInstantiationException("Cannot open the patch log in " + getPatchLogDir(), e);
+			}
+		}
+		if (sinkSubscriptions == null) {
+			sinkSubscriptions = createSinks(tdbDiskDirectory);
+		}
+		myTripleStore = createTripleStore(fileMode);
+		exportToFile = null; // set once the store is connected
 
-		if (mappingRulesFile != null && tdbDiskDirectory == null) {
+		if (getTripleStoreType() == TripleStoreType.REMOTE) {
+			if (mappingRulesFile == null || tdbDiskDirectory != null) {
+				throw new ResourceInstantiationException("The remote triple store requires a mappingFile and no RDFStoreDir.");
+			}
+			// mapping rules are kept locally, triples go to the remote endpoint
+			myTripleStore.connect();
+			exportToFile = false;
+			LOGGER.debug("[init] created remote store " + myTripleStore.printDataset());
+		} else if (getTripleStoreType() == TripleStoreType.SHARDED_TDB) {
+			if (mappingRulesFile == null || tdbDiskDirectory == null) {
+				throw new ResourceInstantiationException("The sharded triple store requires a mappingFile and an RDFStoreDir.");
+			}
+			// mapping rules are kept locally, triples go to the shards below rdfStoreDir
+			myTripleStore.connect(tdbDiskDirectory);
+			exportToFile = false;
+			LOGGER.debug("[init] created " + myTripleStore.printDataset() + " in " + tdbDiskDirectory);
+		} else if (mappingRulesFile != null && tdbDiskDirectory == null) {
 			// create a memory-backed dataset
 			myTripleStore.connect();
 			exportToFile = true;
@@ -295,6 +1253,7 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 		} else {
 			throw new ResourceInstantiationException("Must set exactly one of mappingFile or RDFStoreDir.");
 		}
+		final Object loadEvent = ExportRecorder.INSTANCE.beginMappingLoad();
 		try {
 			myTripleStore.beginTransaction(TransactionType.WRITE);
 			myTripleStore.initModel();
@@ -307,15 +1266,221 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 					.getPropertyMappings(getPropertyMappingSparql());
 			relationMapList = (HashMap<String, LinkedList<RelationMapping>>) myTripleStore
 					.getRelationMappings(getRelationMappingSparql());
+			relationStrategies = resolveRelationStrategies();
+			filterMapList = getFilterMappingSparql() == null ? new HashMap<>()
+					: myTripleStore.getFilterMappings(getFilterMappingSparql());
+		} catch (IllegalArgumentException e) {
+			throw new ResourceInstantiationException(e.getMessage(), e);
+		} catch (ResourceInstantiationException e) {
+			throw e;
 		} catch (Exception e) { // NOPMD
 			throw new ResourceInstantiationException("Error initializing LODeXporter", e);
 		} finally {
 			myTripleStore.endTransaction();
 		}
+		ExportRecorder.INSTANCE.endMappingLoad(loadEvent,
+				mappingRulesFile != null ? mappingRulesFile.toString() : tdbDiskDirectory, subjectMap.size(),
+				propertyMapList.size(), relationMapList.size());
 
 		return this;
 	}
 
+	/**
+	 * Creates the triple store implementation selected by the
+	 * tripleStoreType parameter.
+	 * 
+	 * @param fileMode
+	 *            true if the triples are exported to files
+	 * @return the (not yet connected) triple store
+	 * @throws ResourceInstantiationException
+	 *             if the store parameters are invalid
+	 */
+	private TripleStoreInterface createTripleStore(final boolean fileMode) throws ResourceInstantiationException {
+		final AbstractJenaTripleStore store;
+		if (getTripleStoreType() == TripleStoreType.REMOTE) {
+			if (getRemoteEndpoint() == null || getRemoteEndpoint().trim().length() == 0) {
+				throw new ResourceInstantiationException("The remote triple store requires a remoteEndpoint.");
+			}
+			try {
+				store = new RemoteTripleStoreImpl(termDictionary, getRemoteEndpoint().trim(),
+						getRemoteProtocol() == null ? RemoteTripleStoreImpl.Protocol.GSP : getRemoteProtocol(),
+						getRemoteGraph(), getRemoteBatchSize(), getRemoteConcurrency(), getRemoteMaxRetries());
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInstantiationException(e);
+			}
+		} else if (getTripleStoreType() == TripleStoreType.SHARDED_TDB) {
+			try {
+				store = new ShardedTDBTripleStoreImpl(termDictionary, getStoreShards());
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInstantiationException(e);
+			}
+		} else if (getTripleStoreType() == TripleStoreType.TDB2) {
+			store = new TDB2TripleStoreImpl(termDictionary);
+		} else if (fileMode) {
+			store = new InMemoryTripleStoreImpl(termDictionary);
+		} else {
+			store = new TDBTripleStoreImpl(termDictionary);
+		}
+		store.setDeduplicator(deduplicator);
+		store.setPatchLog(fileMode ? null : patchLog);
+		if (hdtSink != null) {
+			store.addTripleSink(hdtSink);
+		}
+		if (sortedSink != null) {
+			store.addTripleSink(sortedSink);
+		}
+		store.setExportEncoders(exportEncoders, exportEncoderThreads);
+		store.setUpdateStatistics(Boolean.TRUE.equals(getUpdateStoreStatistics()));
+		store.setQueryCache(queryCache);
+		store.setQueryTimeout(getQueryTimeout() == null ? 0 : getQueryTimeout());
+		return store;
+	}
+
+	/**
+	 * Creates the additional sinks receiving the triples mapped for the
+	 * triple store, each subscribed to the {@link #graphPublisher} with a
+	 * buffer and thread of its own.
+	 * 
+	 * @param tdbDiskDirectory
+	 *            the directory of the triple store, or null
+	 * @return the subscriptions of the sinks
+	 * @throws ResourceInstantiationException
+	 *             if a sink cannot be created
+	 */
+	private List<GraphPublisher.Subscription> createSinks(final String tdbDiskDirectory)
+			throws ResourceInstantiationException {
+		final List<GraphPublisher.Subscriber> sinks = new ArrayList<>();
+		sinkStores = new ArrayList<>();
+		if (getSinkExportFilePath() != null && getSinkExportFilePath().trim().length() > 0) {
+			try {
+				sinks.add(new NQuadsFileSink(Paths.get(getSinkExportFilePath().trim())));
+			} catch (IOException e) {
+				throw new ResourceInstantiationException("Cannot create the sink directory " + getSinkExportFilePath(), e);
+			}
+		}
+		if (getSinkStoreDir() != null && getSinkStoreDir().trim().length() > 0) {
+			if (tdbDiskDirectory != null
+					&& Paths.get(getSinkStoreDir().trim()).toAbsolutePath().equals(Paths.get(tdbDiskDirectory.trim()).toAbsolutePath())) {
+				throw new ResourceInstantiationException("The sinkStoreDir must differ from the RDFStoreDir.");
+			}
+			final TDBTripleStoreImpl store = new TDBTripleStoreImpl(termDictionary);
+			store.setUpdateStatistics(Boolean.TRUE.equals(getUpdateStoreStatistics()));
+			store.connect(getSinkStoreDir().trim());
+			sinkStores.add(store);
+			sinks.add(new StoreSink(store));
+		}
+		if (getSinkRemoteEndpoint() != null && getSinkRemoteEndpoint().trim().length() > 0) {
+			final RemoteTripleStoreImpl store;
+			try {
+				store = new RemoteTripleStoreImpl(termDictionary, getSinkRemoteEndpoint().trim(),
+						getRemoteProtocol() == null ? RemoteTripleStoreImpl.Protocol.GSP : getRemoteProtocol(),
+						getRemoteGraph(), getRemoteBatchSize(), getRemoteConcurrency(), getRemoteMaxRetries());
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInstantiationException(e);
+			}
+			store.connect();
+			sinkStores.add(store);
+			sinks.add(new StoreSink(store));
+		}
+		final List<GraphPublisher.Subscription> subscriptions = new ArrayList<>();
+		if (sinks.isEmpty()) {
+			return subscriptions;
+		}
+		if (graphPublisher == null) {
+			graphPublisher = new GraphPublisher();
+		}
+		try {
+			for (final GraphPublisher.Subscriber sink : sinks) {
+				subscriptions.add(graphPublisher.subscribe(sink, getSinkBufferSize() == null
+						? GraphPublisher.DEFAULT_BUFFER_SIZE : getSinkBufferSize()));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new ResourceInstantiationException(e);
+		}
+		LOGGER.debug("[init] created sinks " + subscriptions);
+		return subscriptions;
+	}
+
+	/**
+	 * Resolves the {@link RelationStrategy} of every relation mapping rule and
+	 * checks that the rules referring to other annotations have a domain and
+	 * a range mapping.
+	 * 
+	 * @return a map of &lt;rulename, {@link RelationStrategy}&gt;
+	 * @throws ResourceInstantiationException
+	 *             if a rule is incomplete or uses an unsupported GATEattribute
+	 */
+	private Map<String, RelationStrategy> resolveRelationStrategies() throws ResourceInstantiationException {
+		final Map<String, RelationStrategy> strategies = new HashMap<>();
+		for (final LinkedList<RelationMapping> relations : relationMapList.values()) {
+			for (final RelationMapping rMap : relations) {
+				final RelationStrategy strategy;
+				try {
+					strategy = RelationStrategy.forMapping(rMap);
+				} catch (IllegalArgumentException e) {
+					throw new ResourceInstantiationException(e.getMessage(), e);
+				}
+				if (strategy != RelationStrategy.SAME_ANNOTATION && subjectMap.get(rMap.getDomain()) == null) {
+					throw new ResourceInstantiationException("No subject mapping for domain of relation rule: "
+							+ rMap.getRule());
+				}
+				if (strategy != RelationStrategy.SAME_ANNOTATION && subjectMap.get(rMap.getRange()) == null) {
+					throw new ResourceInstantiationException("No subject mapping for range of relation rule: "
+							+ rMap.getRule());
+				}
+				strategies.put(rMap.getRule(), strategy);
+			}
+		}
+		LOGGER.debug("[init] relation strategies: " + strategies);
+		return strategies;
+	}
+
+	/* (non-Javadoc)
+	 * @see gate.creole.AbstractResource#cleanup()
+	 */
+	@Override
+	public final void cleanup() {
+		if (exportToFile != null) {
+			myTripleStore.disconnect();
+		}
+		if (patchLog != null) {
+			patchLog.close();
+			patchLog = null;
+		}
+		if (graphPublisher != null) {
+			graphPublisher.close();
+			graphPublisher = null;
+		}
+		if (sinkStores != null) {
+			for (final TripleStoreInterface store : sinkStores) {
+				store.disconnect();
+			}
+			sinkStores = null;
+			sinkSubscriptions = null;
+		}
+		if (hdtSink != null) {
+			try {
+				hdtSink.startRun(); // deletes the spill file of an unfinished run
+			} catch (RuntimeIOException e) {
+				LOGGER.warn("Cannot delete the HDT spill file", e);
+			}
+			hdtSink = null;
+		}
+		if (sortedSink != null) {
+			try {
+				sortedSink.startRun(); // deletes the run files of an unfinished run
+			} catch (RuntimeIOException e) {
+				LOGGER.warn("Cannot delete the sorted run files", e);
+			}
+			sortedSink = null;
+		}
+		if (exportEncoders != null) {
+			exportEncoders.shutdown();
+			exportEncoders = null;
+		}
+		super.cleanup();
+	}
+
 	/* (non-Javadoc)
 	 * @see gate.creole.AbstractProcessingResource#reInit()
 	 */
@@ -327,7 +1492,41 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 
 	@Override
 	public final void execute() throws ExecutionException {
-		sessionID = UUID.randomUUID().toString();
+		exportDocument(document);
+	}
+
+	/**
+	 * Exports a document with the mapping rules of this PR. Unlike
+	 * {@link #execute()}, this method may be called by several threads at
+	 * once, e.g., from a worker pool exporting the documents of a corpus with
+	 * a single PR: all state of a document is kept in its own
+	 * {@link DocumentContext}. Each document is mapped in a
+	 * {@link TransactionType#STAGED} transaction, so concurrent documents
+	 * overlap in the GATE-side work and in writing export files, and only
+	 * wait for each other while the mapped triples are written to the
+	 * triple store. A store that is re-initialized after each
+	 * document (file export mode with a TDB or TDB2 store type) exports one
+	 * document at a time. A document whose URL cannot be determined is
+	 * logged and skipped.
+	 * 
+	 * @param doc
+	 *            the document to export
+	 * @throws ExecutionException
+	 *             if interrupted while publishing the exported graph of the
+	 *             document
+	 */
+	public final void exportDocument(final Document doc) throws ExecutionException {
+		if (exportToFile && !(myTripleStore instanceof InMemoryTripleStoreImpl)) {
+			synchronized (reInitLock) {
+				exportDocument(doc, exportToFile);
+			}
+		} else {
+			exportDocument(doc, exportToFile);
+		}
+	}
+
+	private void exportDocument(final Document doc, final boolean toFile) throws ExecutionException {
+		final String sessionID = UUID.randomUUID().toString();
 		String docURL = "";
 		String corpusURI = "";
 		// find out whether we should use custom URIs for corpus and documents
@@ -335,7 +1534,7 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 			LOGGER.info("generating custom URIs");
 			try {
 				corpusURI = java.net.URLDecoder.decode(corpusName, "UTF-8");
-				String docName = document.getName();
+				String docName = doc.getName();
 				int index = docName.indexOf(".txt");
 				if (index > -1) {
 					docName = docName.substring(0, index);
@@ -346,11 +1545,11 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 				e.printStackTrace();
 			}
 		} else {
-			if (document.getSourceUrl() == null) {
+			if (doc.getSourceUrl() == null) {
 				LOGGER.error("Document URL is null, cannot export.");
 				return;
 			}
-			docURL = document.getSourceUrl().toString();
+			docURL = doc.getSourceUrl().toString();
 			docURL = fixProtocol(docURL);
 			docURL = fixURI(docURL); // TODO handle in more generic fashion
 			corpusURI = "http://semanticsoftware.info/lodexporter/Corpus/" + corpusName;
@@ -358,156 +1557,363 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 		}
 		
 		// store the session ID as a document-level feature (used as name in file-based export)
-        document.getFeatures().put(LODEXPORTER_SESSION_FEATURE, sessionID); 
+        doc.getFeatures().put(LODEXPORTER_SESSION_FEATURE, sessionID); 
+
+		// chunked commits only bound the journal of a disk-based store
+		final DocumentContext ctx = new DocumentContext(doc, docURL, sessionID,
+				!toFile && commitChunkSize != null && commitChunkSize > 0);
+		boolean completed = false;
+		if (ctx.isChunkedCommits()) {
+			doc.getFeatures().put(LODEXPORTER_COMPLETE_FEATURE, Boolean.FALSE);
+		}
 
 		/*
 		 * System.out.println("Mapping inside execute:"); for (SubjectMapping m
 		 * : subjectMapList) { System.out.println(m.toString()); }
 		 */
 
+		final Object event = ExportRecorder.INSTANCE.beginDocument();
+		final Graph captured = graphPublisher == null ? null : GraphFactory.createGraphMem();
+		final TripleCounter counter = event != null && captured == null ? new TripleCounter() : null;
+		myTripleStore.captureTriples(captured != null ? captured : counter);
+		long mappingTime = 0;
+		long commitTime = 0;
+		long fileTime = 0;
 		try {
 			// one transaction per document
-			myTripleStore.beginTransaction(TransactionType.WRITE);
+			myTripleStore.beginTransaction(TransactionType.STAGED);
+			if (event != null) {
+				mappingTime = System.nanoTime();
+			}
 			// first, export the document-corpus relation triple
 			myTripleStore.storeTriple(docURL, corpusURI);
 
-			final AnnotationSet inputAS = inputASName == null || inputASName.trim().length() == 0
-					? document.getAnnotations() : document.getAnnotations(inputASName); // NOPMD
-
-			final Map<String, Object> exportPropertyMap = new HashMap<String, Object>();
-			final Map<String, Object> exportRelationMap = new HashMap<String, Object>();
-
-			for (final SubjectMapping aMapping : subjectMap.values()) {
-				final AnnotationSet annotSet = inputAS.get(aMapping.getGateType());
-				final String currentRule = aMapping.getRule();
-				final List<PropertyMapping> propsForType = propertyMapList.get(currentRule);
-				final List<RelationMapping> relationsForType = relationMapList.get(currentRule);
-
-				LOGGER.debug("Mapping " + aMapping.getGateType() + " with props: " + propsForType + " and relations "
-						+ relationsForType + " for rule: " + currentRule);
-
-				for (final Annotation currAnnot : annotSet) {
-					exportPropertyMap.clear();
-					exportRelationMap.clear();
-
-					final FeatureMap feats = currAnnot.getFeatures();
-					processProperties(docURL, propsForType, currAnnot, exportPropertyMap, feats);
-
-					myTripleStore.storeTriple(docURL,
-							getURIforAnnotation(currAnnot, aMapping.getBaseURI(), currentRule),
-							aMapping.getType(), exportPropertyMap, propertyMapList);
-
-					processRelations(docURL, relationsForType, currAnnot, exportRelationMap, aMapping);
-				}
+			for (final String setName : getExportedSetNames()) {
+				exportAnnotationSet(ctx, setName);
+			}
+			if (!ctx.getProvenance().isEmpty()) {
+				final String activityURI = EXPORT_BASE_URI + sessionID;
+				myTripleStore.storeExportActivity(docURL, activityURI);
+				myTripleStore.storeProperties(docURL, activityURI, ctx.getProvenance());
 			}
 
-			// the second empty string means the relations are in the default
-			// annotation set
-			processRelationsAdHoc(docURL, "");
-
+			if (ctx.isChunkedCommits()) {
+				// committed together with the final chunk
+				myTripleStore.storeExportSession(docURL, sessionID);
+			}
+			completed = true;
 		} catch (Exception e) {
-			LOGGER.error("Error in processing document " + document.getName(), e);
+			LOGGER.error("Error in processing document " + doc.getName(), e);
 		} finally {
+			if (event != null) {
+				commitTime = System.nanoTime();
+				mappingTime = mappingTime == 0 ? 0 : commitTime - mappingTime;
+			}
 			myTripleStore.endTransaction();
-			if (exportToFile) {
+			myTripleStore.captureTriples(null);
+			if (event != null) {
+				commitTime = System.nanoTime() - commitTime;
+				fileTime = System.nanoTime();
+			}
+			if (ctx.isChunkedCommits() && completed) {
+				doc.getFeatures().put(LODEXPORTER_COMPLETE_FEATURE, Boolean.TRUE);
+			}
+			if (toFile) {
 				myTripleStore.beginTransaction(TransactionType.READ);
 				myTripleStore.exportTriplesToFile(getExportFilePath() + "/" + sessionID + ".nq");
 				myTripleStore.endTransaction();
-				try {
-					reInit(); // FIXME do we really need a re-init here?
-				} catch (ResourceInstantiationException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				if (myTripleStore instanceof InMemoryTripleStoreImpl) {
+					// keeps the mapping rules, no need to re-initialize
+					((InMemoryTripleStoreImpl) myTripleStore).clear();
+				} else {
+					try {
+						reInit(); // FIXME do we really need a re-init here?
+					} catch (ResourceInstantiationException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					}
 				}
 			}
+			if (event != null) {
+				fileTime = toFile ? System.nanoTime() - fileTime : 0;
+				ExportRecorder.INSTANCE.endDocument(event, docURL, ctx.getAnnotations(),
+						captured != null ? captured.size() : counter.count, mappingTime, commitTime, fileTime);
+			}
+		}
+		if (captured != null && completed) {
+			publishGraph(ctx, new GraphReadOnly(captured));
 		}
 	}
 
-	private void processRelationsAdHoc(final String docURL, final String annotationSetName) {
-		final RelationSet relationSet = document.getAnnotations(annotationSetName).getRelations();
-		String domainURI = null;
-		String rangeURI = null;
+	/** Graph only counting the triples added to it, for the export events. */
+	private static final class TripleCounter extends GraphBase {
+		private long count;
 
-		for (final Relation relation : relationSet) {
-			final String relationURI = getURIforRelation(relation, "http://semanticsoftware.info/lodexporter/",
-					relation.getType());
-			// System.out.println("Storing rel: " + relationURI);
-
-			final int[] members = relation.getMembers();
-			if (members.length == 2) {
-				final Annotation domainAnnot = document.getAnnotations().get(members[0]);
-				final Annotation rangeAnnot = document.getAnnotations().get(members[1]);
-
-				for (final SubjectMapping aMapping : subjectMap.values()) {
-					if (aMapping.getGateType().equals(domainAnnot.getType())) {
-						domainURI = getURIforAnnotation(domainAnnot, aMapping.getBaseURI(), aMapping.getRule());
-					} else if (aMapping.getGateType().equals(rangeAnnot.getType())) {
-						rangeURI = getURIforAnnotation(rangeAnnot, aMapping.getBaseURI(), aMapping.getRule());
-					}
+		@Override
+		public void performAdd(final Triple triple) {
+			count++;
+		}
+
+		@Override
+		protected ExtendedIterator<Triple> graphBaseFind(final Triple triple) {
+			return NullIterator.instance();
+		}
+	}
+
+	/**
+	 * Hands the triples of an exported document over in memory.
+	 * 
+	 * @param ctx
+	 *            the exported document
+	 * @param graph
+	 *            the triples of the document
+	 * @throws ExecutionException
+	 *             if interrupted while waiting for a subscriber
+	 */
+	private void publishGraph(final DocumentContext ctx, final Graph graph) throws ExecutionException {
+		if (Boolean.TRUE.equals(getPublishGraphs())) {
+			ctx.getDocument().getFeatures().put(LODEXPORTER_GRAPH_FEATURE, graph);
+		}
+		try {
+			graphPublisher.publish(ctx.getDocURL(), ctx.getSessionID(), graph);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecutionException("Interrupted while publishing " + ctx.getDocURL(), e);
+		}
+	}
+
+	/**
+	 * @return the names of the annotation sets exported for each document
+	 */
+	private List<String> getExportedSetNames() {
+		if (inputASNames != null && !inputASNames.isEmpty()) {
+			return inputASNames;
+		}
+		return Collections.singletonList(inputASName);
+	}
+
+	/**
+	 * Exports the annotations and relations of one annotation set, using the
+	 * subject mapping rules that apply to the set.
+	 * 
+	 * @param ctx
+	 *            the document being exported
+	 * @param setName
+	 *            the annotation set name, empty or null for the default set
+	 * @throws ExecutionException
+	 *             if a property mapping is invalid
+	 */
+	private void exportAnnotationSet(final DocumentContext ctx, final String setName) throws ExecutionException {
+		final Document doc = ctx.getDocument();
+		final AnnotationSet inputAS = setName == null || setName.trim().length() == 0
+				? doc.getAnnotations() : doc.getAnnotations(setName); // NOPMD
+
+		for (final SubjectMapping aMapping : subjectMap.values()) {
+			if (!aMapping.appliesTo(setName)) {
+				continue;
+			}
+			final AnnotationSet annotSet = inputAS.get(aMapping.getGateType());
+			final String currentRule = aMapping.getRule();
+			final List<PropertyMapping> propsForType = propertyMapList.get(currentRule);
+			final List<RelationMapping> relationsForType = relationMapList.get(currentRule);
+			final List<FilterMapping> filtersForType = filterMapList.get(currentRule);
+
+			LOGGER.debug("Mapping " + aMapping.getGateType() + " with props: " + propsForType + " and relations "
+					+ relationsForType + " for rule: " + currentRule);
+
+			for (final Annotation currAnnot : annotSet) {
+				if (filtersForType != null && !FilterMapping.acceptsAll(filtersForType, currAnnot)) {
+					continue;
 				}
+				final Map<String, Object> exportPropertyMap = ctx.newPropertyMap();
+				ctx.countAnnotation();
+
+				final FeatureMap feats = currAnnot.getFeatures();
+				processProperties(ctx, propsForType, currAnnot, exportPropertyMap, feats);
 
-				myTripleStore.storeTriple(docURL, relationURI, relation.getFeatures(), domainURI, rangeURI);
+				final String annotURI = ctx.uriFor(currAnnot, aMapping.getBaseURI(), currentRule);
+				ctx.getAnnotationURIs().put(currAnnot.getId(), annotURI);
+				myTripleStore.storeTriple(ctx.getDocURL(), annotURI, aMapping.getType(), exportPropertyMap,
+						propertyMapList);
 
-			} else {
-				System.out.println("This relation does not have two members. Skipping relation #" + relation.getId());
+				processRelations(ctx, relationsForType, currAnnot, aMapping, inputAS);
+				commitChunk(ctx);
 			}
 		}
+
+		// span relations are joined once per document over the sorted annotations
+		processSpanRelations(ctx, setName, inputAS);
+
+		processRelationsAdHoc(ctx, inputAS);
+	}
+
+	/**
+	 * Counts an exported annotation or relation and, when committing in
+	 * chunks, commits the current transaction and starts a new one once the
+	 * chunk is full.
+	 * 
+	 * @param ctx
+	 *            the document being exported
+	 */
+	private void commitChunk(final DocumentContext ctx) {
+		if (ctx.isChunkedCommits() && ctx.chunkFull(commitChunkSize)) {
+			myTripleStore.endTransaction();
+			myTripleStore.beginTransaction(TransactionType.STAGED);
+			LOGGER.debug("Committed a chunk of " + commitChunkSize + " annotations and relations of "
+					+ ctx.getDocument().getName());
+		}
 	}
 
-	// FIXME merge with the other with a superclass of annotation and relation?
-	private String getURIforRelation(final Relation relation, final String baseURI, final String rule) {
-		final String reID = relation.getId().toString();
-		return baseURI + sessionID + "/" + relation.getType() + "/" + reID + "#" + rule;
+	/**
+	 * Exports the GATE relations of the input annotation set. Relations are
+	 * processed grouped by type, and their members are resolved through the
+	 * URIs recorded during the subject export; relations with a member that
+	 * was not exported are skipped.
+	 * 
+	 * @param ctx
+	 *            the document being exported
+	 * @param inputAS
+	 *            the annotation set being exported
+	 */
+	private void processRelationsAdHoc(final DocumentContext ctx, final AnnotationSet inputAS) {
+		final RelationSet relationSet = inputAS.getRelations();
+		if (relationSet.size() == 0) {
+			return;
+		}
+		final Map<String, List<Relation>> relationsByType = new HashMap<>();
+		for (final Relation relation : relationSet) {
+			relationsByType.computeIfAbsent(relation.getType(), type -> new ArrayList<>()).add(relation);
+		}
+
+		for (final Map.Entry<String, List<Relation>> group : relationsByType.entrySet()) {
+			final String relationType = group.getKey();
+			// FIXME merge the URI scheme with DocumentContext#uriFor()?
+			final String uriPrefix = "http://semanticsoftware.info/lodexporter/" + ctx.getSessionID() + "/" + relationType + "/";
+			final String uriSuffix = "#" + relationType;
+
+			for (final Relation relation : group.getValue()) {
+				final int[] members = relation.getMembers();
+				if (members.length != 2) {
+					LOGGER.warn("This relation does not have two members. Skipping relation #" + relation.getId());
+					continue;
+				}
+				final String domainURI = ctx.getAnnotationURIs().get(members[0]);
+				final String rangeURI = ctx.getAnnotationURIs().get(members[1]);
+				if (domainURI == null || rangeURI == null) {
+					LOGGER.warn("Relation #" + relation.getId() + " has a member that was not exported. Skipping it.");
+					continue;
+				}
+				myTripleStore.storeTriple(ctx.getDocURL(), uriPrefix + relation.getId() + uriSuffix,
+						relation.getFeatures(), domainURI, rangeURI);
+				commitChunk(ctx);
+			}
+		}
 	}
 
-	// FIXME look into why exportRelationMap is passed but not used?
-	private void processRelations(final String docURL, final List<RelationMapping> relationsForType,
-			final Annotation currAnnot, final Map<String, Object> exportRelationMap,
-			final SubjectMapping currentSubjMapping) {
+	private void processRelations(final DocumentContext ctx, final List<RelationMapping> relationsForType,
+			final Annotation currAnnot, final SubjectMapping currentSubjMapping, final AnnotationSet inputAS) {
 		if (relationsForType != null) {
 			for (final RelationMapping rMap : relationsForType) {
-				if (rMap.getGATEattribute() != null && rMap.getGATEattribute().equals("contains")) {
+				switch (relationStrategies.get(rMap.getRule())) {
+				case FEATURE_REFERENCE:
 					final SubjectMapping rangeMapping = subjectMap.get(rMap.getRange());
-					final String rangeGATEType = rangeMapping.getGateType();
-					final String rangeBaseURI = rangeMapping.getBaseURI();
-					final String rangeRuleName = rangeMapping.getRule();
-
-					// System.out.println("----------------------- range " +
-					// rMap.getRange() + " - type: " + rangeGATEType +
-					// " baseuri: " + rangeBaseURI + " rule: " + rangeRuleName);
-
-					final AnnotationSet containedEntities = document.getAnnotations()
-							.getContained(currAnnot.getStartNode().getOffset(), currAnnot.getEndNode().getOffset())
-							.get(rangeGATEType);
-
-					for (final Annotation aNE : containedEntities) {
-						final String rangeURI = getURIforAnnotation(aNE, rangeBaseURI, rangeRuleName);
-						myTripleStore.storeTriple(docURL, rMap, getURIforAnnotation(currAnnot,
-								currentSubjMapping.getBaseURI(), rMap.getDomain()), rangeURI);
+					final Integer referencedID = (Integer) currAnnot.getFeatures().get(rMap.getGATEattribute());
+					if (referencedID == null) {
+						break;
 					}
-				} else if (rMap.getGATEattribute() != null && rMap.getGATEattribute().equals("employedBy")) {
-					SubjectMapping rangeMapping = subjectMap.get(rMap.getRange());
-					String rangeBaseURI = rangeMapping.getBaseURI();
-					String rangeRuleName = rangeMapping.getRule();
-
-					Integer affiliationID = (Integer) currAnnot.getFeatures().get("employedBy");
-					Annotation affiliationAnnot = document.getAnnotations().get(affiliationID);
-					String rangeURI = getURIforAnnotation(affiliationAnnot, rangeBaseURI, rangeRuleName);
-					myTripleStore.storeTriple(docURL, rMap, getURIforAnnotation(currAnnot,
-							currentSubjMapping.getBaseURI(), rMap.getDomain()), rangeURI);
-
-				} else {
+					// the referenced annotation must be in the set being exported
+					final Annotation referencedAnnot = inputAS.get(referencedID);
+					if (referencedAnnot == null) {
+						LOGGER.warn("Annotation #" + currAnnot.getId() + " references annotation #" + referencedID
+								+ " that is not in the exported set. Skipping relation " + rMap.getRule());
+						break;
+					}
+					final String referencedURI = ctx.uriFor(referencedAnnot, rangeMapping.getBaseURI(),
+							rangeMapping.getRule());
+					myTripleStore.storeTriple(ctx.getDocURL(), rMap, ctx.uriFor(currAnnot,
+							currentSubjMapping.getBaseURI(), rMap.getDomain()), referencedURI);
+					break;
+				case SAME_ANNOTATION:
 					// we have the URI of the domain (i.e., the subject), we
 					// only need to find the URI of the range (i.e., the object)
-					final String rangeURI = getURIforAnnotation(currAnnot, currentSubjMapping.getBaseURI(), rMap.getRange());
-					myTripleStore.storeTriple(docURL, rMap, getURIforAnnotation(currAnnot,
+					final String rangeURI = ctx.uriFor(currAnnot, currentSubjMapping.getBaseURI(), rMap.getRange());
+					myTripleStore.storeTriple(ctx.getDocURL(), rMap, ctx.uriFor(currAnnot,
 							currentSubjMapping.getBaseURI(), rMap.getDomain()), rangeURI);
+					break;
+				default:
+					// span relations are handled by processSpanRelations()
+					break;
 				}
 			}
 		}
 	}
 
-	private void processProperties(final String docURL, final List<PropertyMapping> propsForType,
+	/**
+	 * Exports all span relations (e.g., "contains", "overlaps") of the
+	 * document. Each GATE type taking part in a span relation is sorted by
+	 * offset once, then every relation rule is computed with one
+	 * {@link SpanJoin} sweep.
+	 * 
+	 * @param ctx
+	 *            the document being exported
+	 * @param setName
+	 *            the name of the annotation set, selecting the applicable rules
+	 * @param inputAS
+	 *            the annotation set being exported
+	 */
+	private void processSpanRelations(final DocumentContext ctx, final String setName, final AnnotationSet inputAS) {
+		final Map<String, SpanJoin.SortedSpans> sortedByRule = new HashMap<>();
+		for (final LinkedList<RelationMapping> relations : relationMapList.values()) {
+			for (final RelationMapping rMap : relations) {
+				final RelationStrategy strategy = relationStrategies.get(rMap.getRule());
+				if (!strategy.isSpanJoin()) {
+					continue;
+				}
+				final SubjectMapping domainMapping = subjectMap.get(rMap.getDomain());
+				final SubjectMapping rangeMapping = subjectMap.get(rMap.getRange());
+				if (!domainMapping.appliesTo(setName) || !rangeMapping.appliesTo(setName)) {
+					continue;
+				}
+				final SpanJoin.SortedSpans domains = sortedByRule.computeIfAbsent(domainMapping.getRule(),
+						rule -> new SpanJoin.SortedSpans(filtered(inputAS, domainMapping)));
+				final SpanJoin.SortedSpans ranges = sortedByRule.computeIfAbsent(rangeMapping.getRule(),
+						rule -> new SpanJoin.SortedSpans(filtered(inputAS, rangeMapping)));
+
+				SpanJoin.join(domains, ranges, rMap, strategy, (domain, range) -> {
+					myTripleStore.storeTriple(ctx.getDocURL(), rMap,
+							ctx.uriFor(domain, domainMapping.getBaseURI(), rMap.getDomain()),
+							ctx.uriFor(range, rangeMapping.getBaseURI(), rangeMapping.getRule()));
+					commitChunk(ctx);
+				});
+			}
+		}
+	}
+
+	/**
+	 * Returns the annotations of a subject mapping that pass its filters.
+	 * 
+	 * @param inputAS
+	 *            the annotation set being exported
+	 * @param mapping
+	 *            the subject mapping
+	 * @return the exported annotations of the mapping
+	 */
+	private Collection<Annotation> filtered(final AnnotationSet inputAS, final SubjectMapping mapping) {
+		final AnnotationSet annots = inputAS.get(mapping.getGateType());
+		final List<FilterMapping> filters = filterMapList.get(mapping.getRule());
+		if (filters == null) {
+			return annots;
+		}
+		final List<Annotation> passed = new ArrayList<>(annots.size());
+		for (final Annotation annot : annots) {
+			if (FilterMapping.acceptsAll(filters, annot)) {
+				passed.add(annot);
+			}
+		}
+		return passed;
+	}
+
+	private void processProperties(final DocumentContext ctx, final List<PropertyMapping> propsForType,
 			final Annotation currAnnot, final Map<String, Object> exportPropertyMap, final FeatureMap feats)
 			throws ExecutionException {
 		if (propsForType != null) {
@@ -524,14 +1930,29 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 							exportPropertyMap.put(pMap.getGATEfeature(), featValue);
 						} else {
 							System.err.println("WARNING: " + pMap.getGATEfeature() + " has a NULL value in document ("
-									+ docURL + ") for annotation #" + currAnnot.getId()
+									+ ctx.getDocURL() + ") for annotation #" + currAnnot.getId()
 									+ ". I'm going to skip exporting this feature.");
 						}
 					}
 
+				} else if (contentIndex != null && "content".equals(pMap.getGATEattribute())) {
+					final String content = (String) getValueforGATEAttribute(ctx, pMap.getGATEattribute(), currAnnot);
+					final Object value = content == null ? null : contentIndex.valueFor(content);
+					if (value instanceof URI && ctx.firstContent(value.toString())) {
+						contentIndex.recordWritten(content);
+						myTripleStore.storeContent(ctx.getDocURL(), value.toString(), content);
+					}
+					if (value != null) {
+						exportPropertyMap.put(pMap.getGATEattribute(), value);
+					}
+				} else if (getProvenanceMode() != ProvenanceMode.ANNOTATION
+						&& ("annotatedAt".equals(pMap.getGATEattribute()) || "annotatedBy".equals(pMap.getGATEattribute()))) {
+					// stored once for the document
+					ctx.getProvenance().computeIfAbsent(pMap.getGATEattribute(),
+							attribute -> getValueforGATEAttribute(ctx, attribute, currAnnot));
 				} else if (pMap.getGATEattribute() != null) {
 					exportPropertyMap.put(pMap.getGATEattribute(),
-							getValueforGATEAttribute(pMap.getGATEattribute(), currAnnot));
+							getValueforGATEAttribute(ctx, pMap.getGATEattribute(), currAnnot));
 				} else {
 					throw new ExecutionException("Both GATE feature and attributes are null.");
 				}
@@ -539,12 +1960,13 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 		}
 	}
 
-	private Object getValueforGATEAttribute(final String gateAttribute, final Annotation currAnnot) {
+	private Object getValueforGATEAttribute(final DocumentContext ctx, final String gateAttribute,
+			final Annotation currAnnot) {
 		Object value = null;
 		try {
 			switch (gateAttribute) {
 			case "content":
-				value = document
+				value = ctx.getDocument()
 						.getContent()
 						.getContent(currAnnot.getStartNode().getOffset(), currAnnot.getEndNode().getOffset()).toString()
 						.replaceAll("\n", " ");
@@ -556,7 +1978,7 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 				value = currAnnot.getEndNode().getOffset();
 				break;
 			case "docURL":
-				value = new URI((String) document.getFeatures().get("gate.SourceURL"));
+				value = new URI((String) ctx.getDocument().getFeatures().get("gate.SourceURL"));
 				break;
 			case "annotatedAt":
 				// TODO keep the time zone in a separate properties file
@@ -577,11 +1999,6 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 		return value;
 	}
 
-	private String getURIforAnnotation(final Annotation re, final String baseURI, final String ruleName) {
-		final String reID = re.getId().toString();
-		return baseURI + sessionID + "/" + re.getType() + "/" + reID + "#" + ruleName;
-	}
-
 	private String fixProtocol(final String docURL) {
 		return docURL.replaceFirst("file:\\/", "http://");
 	}
@@ -610,6 +2027,22 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 		} catch (UnsupportedEncodingException e) {
 			LOGGER.error("Exception in controllerExecutionFinished", e);
 		}
+		if (deduplicator != null) {
+			deduplicator.reset();
+		}
+		if (contentIndex != null) {
+			contentIndex.reset();
+		}
+		try {
+			if (hdtSink != null) {
+				hdtSink.startRun();
+			}
+			if (sortedSink != null) {
+				sortedSink.startRun();
+			}
+		} catch (RuntimeIOException e) {
+			throw new ExecutionException(e);
+		}
 		LOGGER.debug("[controllerExecutionStarted] Dataset is now: " + myTripleStore.printDataset());
 	}
 	
@@ -619,6 +2052,55 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 	@Override
 	public final void controllerExecutionFinished(final Controller controller) throws ExecutionException {
 		LOGGER.debug("[controllerExecutionFinished] Dataset is now: " + myTripleStore.printDataset());
+		if (!exportToFile) {
+			// waits for pending writes and updates the optimizer statistics
+			try {
+				myTripleStore.finishRun();
+			} catch (GateRuntimeException e) {
+				throw new ExecutionException(e);
+			}
+		}
+		// waits for the sinks to store the documents of the run
+		for (final GraphPublisher.Subscription sink : sinkSubscriptions) {
+			try {
+				if (!sink.flush()) {
+					throw new ExecutionException("Sink cancelled after an error, see the log: " + sink);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ExecutionException("Interrupted while waiting for " + sink, e);
+			}
+			LOGGER.info("[controllerExecutionFinished] " + sink);
+		}
+		LOGGER.info("[controllerExecutionFinished] " + myTripleStore.printStatistics());
+		if (patchLog != null) {
+			// the next run starts a new segment
+			patchLog.endSegment();
+		}
+		if (contentIndex != null) {
+			LOGGER.info("[controllerExecutionFinished] " + contentIndex.getStatistics());
+		}
+		if (hdtSink != null) {
+			LOGGER.info("[controllerExecutionFinished] building " + getHdtFile() + " from " + hdtSink.getTriples()
+					+ " triples");
+			try {
+				hdtSink.finishRun(corpusName == null ? "http://semanticsoftware.info/lodexporter/"
+						: "http://semanticsoftware.info/lodexporter/Corpus/" + corpusName);
+			} catch (IOException | RuntimeIOException e) {
+				throw new ExecutionException(e);
+			}
+		}
+		if (sortedSink != null) {
+			try {
+				sortedSink.finishRun();
+			} catch (IOException | RuntimeIOException e) {
+				throw new ExecutionException(e);
+			}
+			LOGGER.info("[controllerExecutionFinished] " + sortedSink.getStatistics());
+		}
+		if (!exportToFile && Boolean.TRUE.equals(getCompactStore()) && myTripleStore instanceof TDB2TripleStoreImpl) {
+			((TDB2TripleStoreImpl) myTripleStore).compact();
+		}
 	}
 
 	/* (non-Javadoc)
@@ -627,5 +2109,19 @@ public class LODeXporter extends AbstractLanguageAnalyser implements ProcessingR
 	@Override
 	public final void controllerExecutionAborted(final Controller controller, final Throwable t) throws ExecutionException {
 		LOGGER.debug("[controllerExecutionAborted] Dataset is now: " + myTripleStore.printDataset());
+		if (patchLog != null) {
+			patchLog.endSegment();
+		}
+		try {
+			// discards the spilled triples
+			if (hdtSink != null) {
+				hdtSink.startRun();
+			}
+			if (sortedSink != null) {
+				sortedSink.startRun();
+			}
+		} catch (RuntimeIOException e) {
+			throw new ExecutionException(e);
+		}
 	}
 }
\ No newline at end of file
@@ -29,12 +29,18 @@ public class RelationMapping extends Mapping {
 	private final String domain;
 	private final String range;
     private final String gateAttribute;
+    private final long maxDistance;
     
 	public RelationMapping(final String mRule, final String mType, final String myDomain, final String myRange, final String myGATEattribute){
+		this(mRule, mType, myDomain, myRange, myGATEattribute, -1);
+	}
+
+	public RelationMapping(final String mRule, final String mType, final String myDomain, final String myRange, final String myGATEattribute, final long myMaxDistance){
 		super(mRule,mType,null);
 		this.domain = myDomain;
 		this.range = myRange;
 		this.gateAttribute = myGATEattribute;
+		this.maxDistance = myMaxDistance;
 	}
 
 	/**
@@ -43,6 +49,13 @@ public class RelationMapping extends Mapping {
 	public final String getGATEattribute() {
 		return gateAttribute;
 	}
+	/**
+	 * @return the maximum distance in characters between domain and range
+	 *         (only for span relations), or -1 if not set
+	 */
+	public final long getMaxDistance() {
+		return maxDistance;
+	}
 	/**
 	 * @return the domain
 	 */
@@ -61,6 +74,6 @@ public class RelationMapping extends Mapping {
 	 */
 	@Override
 	public String toString(){
-		return super.toString() + " domain=" + domain + " range=" + range + " GATEattribute=" + gateAttribute; 
+		return super.toString() + " domain=" + domain + " range=" + range + " GATEattribute=" + gateAttribute + " maxDistance=" + maxDistance; 
 	}
 }
@@ -0,0 +1,168 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The strategies available for computing the (domain, range) pairs of a
+ * {@link RelationMapping}. The strategy of a rule is selected through its
+ * <tt>map:GATEattribute</tt> value and resolved once in
+ * {@link LODeXporter#init()}.
+ * 
+ * <p>
+ * Per-annotation strategies are evaluated while the domain annotation is
+ * exported. Span strategies compare the offsets of two annotation types and
+ * are computed for the whole document by a single sweep over the
+ * offset-sorted annotations, see {@link SpanJoin}.
+ * </p>
+ * 
+ * @author Bahar Sateli
+ * @author René Witte
+ */
+public enum RelationStrategy {
+	/** Domain and range are two URIs minted for the same annotation (no GATEattribute). */
+	SAME_ANNOTATION(null, false),
+
+	/** The range is the annotation whose ID is stored in the feature named by the GATEattribute. */
+	FEATURE_REFERENCE("employedBy", false),
+
+	/** The range annotation lies within the span of the domain annotation. */
+	CONTAINS("contains", true),
+
+	/** The range annotation shares at least one character with the domain annotation. */
+	OVERLAPS("overlaps", true),
+
+	/** The range annotation has exactly the same span as the domain annotation. */
+	COEXTENSIVE("coextensive", true),
+
+	/**
+	 * The range annotation starts after the end of the domain annotation, at
+	 * most <tt>map:maxDistance</tt> characters away.
+	 */
+	PRECEDES("precedes", true);
+
+	private static final Map<String, RelationStrategy> REGISTRY = new HashMap<>();
+
+	static {
+		for (final RelationStrategy strategy : values()) {
+			if (strategy.attribute != null) {
+				REGISTRY.put(strategy.attribute, strategy);
+			}
+		}
+	}
+
+	private final String attribute;
+	private final boolean spanJoin;
+
+	RelationStrategy(final String myAttribute, final boolean mySpanJoin) {
+		this.attribute = myAttribute;
+		this.spanJoin = mySpanJoin;
+	}
+
+	/**
+	 * @return the GATEattribute value selecting this strategy, or null for
+	 *         {@link #SAME_ANNOTATION}
+	 */
+	public final String getAttribute() {
+		return attribute;
+	}
+
+	/**
+	 * @return true if the pairs are computed by an offset sweep over the
+	 *         whole document rather than per domain annotation
+	 */
+	public final boolean isSpanJoin() {
+		return spanJoin;
+	}
+
+	/**
+	 * Returns how many characters past the end of a domain annotation a range
+	 * annotation may start and still be related to it.
+	 * 
+	 * @param rMap
+	 *            the relation mapping using this strategy
+	 * @return the look-ahead window in characters
+	 */
+	final long window(final RelationMapping rMap) {
+		return this == PRECEDES ? rMap.getMaxDistance() : 0;
+	}
+
+	/**
+	 * Tests whether a range span is related to a domain span.
+	 * 
+	 * @param domainStart
+	 *            start offset of the domain annotation
+	 * @param domainEnd
+	 *            end offset of the domain annotation
+	 * @param rangeStart
+	 *            start offset of the range annotation
+	 * @param rangeEnd
+	 *            end offset of the range annotation
+	 * @param maxDistance
+	 *            the maximum distance for {@link #PRECEDES}
+	 * @return true if the spans are related by this strategy
+	 */
+	final boolean matches(final long domainStart, final long domainEnd, final long rangeStart, final long rangeEnd,
+			final long maxDistance) {
+		switch (this) {
+		case CONTAINS:
+			return rangeStart >= domainStart && rangeEnd <= domainEnd;
+		case OVERLAPS:
+			return rangeStart < domainEnd && rangeEnd > domainStart;
+		case COEXTENSIVE:
+			return rangeStart == domainStart && rangeEnd == domainEnd;
+		case PRECEDES:
+			return rangeStart >= domainEnd && rangeStart - domainEnd <= maxDistance;
+		default:
+			throw new IllegalStateException("Not a span strategy: " + this);
+		}
+	}
+
+	/**
+	 * Resolves the strategy for a relation mapping rule.
+	 * 
+	 * @param rMap
+	 *            the relation mapping
+	 * @return the strategy selected by the rule's GATEattribute
+	 * @throws IllegalArgumentException
+	 *             if the GATEattribute is unknown or the rule is incomplete
+	 */
+	public static RelationStrategy forMapping(final RelationMapping rMap) {
+		if (rMap.getGATEattribute() == null) {
+			return SAME_ANNOTATION;
+		}
+		final RelationStrategy strategy = REGISTRY.get(rMap.getGATEattribute());
+		if (strategy == null) {
+			throw new IllegalArgumentException(
+					"Unsupported GATE attribute " + rMap.getGATEattribute() + " in relation rule: " + rMap.getRule());
+		}
+		if (strategy == PRECEDES && rMap.getMaxDistance() < 0) {
+			throw new IllegalArgumentException("Relation rule " + rMap.getRule() + " requires a map:maxDistance.");
+		}
+		return strategy;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import gate.Annotation;
+
+/**
+ * Computes span relations between two annotation types with a single sweep
+ * over their offset-sorted annotations. Both inputs are sorted once. For each
+ * domain annotation, the range annotations that can match are found by a
+ * binary search on their start offsets, and only those starting within the
+ * reach of the strategy are visited. For overlaps, the range annotations
+ * starting before the domain are kept in an active set ordered by end offset,
+ * which only holds those still crossing the start of the current domain.
+ * 
+ * <p>
+ * This links n domain and m range annotations in O((n+m) log(n+m) + k + c),
+ * where k is the number of related pairs and c the number of range
+ * annotations starting inside a domain annotation but ending after it, which
+ * contains and coextensive visit without relating them. For properly nested
+ * annotations, such as tokens in sentences, c is zero.
+ * </p>
+ * 
+ * @see RelationStrategy
+ */
+final class SpanJoin {
+
+	/**
+	 * Receives the related (domain, range) pairs found by a join.
+	 */
+	interface PairHandler {
+		/**
+		 * @param domain
+		 *            the domain annotation
+		 * @param range
+		 *            the related range annotation
+		 */
+		void pair(Annotation domain, Annotation range);
+	}
+
+	/**
+	 * The annotations of one type, sorted by start and then end offset, with
+	 * the offsets unboxed for the sweep.
+	 */
+	static final class SortedSpans {
+		private final Annotation[] annots;
+		private final long[] starts;
+		private final long[] ends;
+
+		/**
+		 * @param set
+		 *            the annotations to sort
+		 */
+		SortedSpans(final Collection<Annotation> set) {
+			annots = set.toArray(new Annotation[set.size()]);
+			Arrays.sort(annots, OFFSET_ORDER);
+			starts = new long[annots.length];
+			ends = new long[annots.length];
+			for (int i = 0; i < annots.length; i++) {
+				starts[i] = annots[i].getStartNode().getOffset();
+				ends[i] = annots[i].getEndNode().getOffset();
+			}
+		}
+
+		/**
+		 * @return the number of annotations
+		 */
+		int size() {
+			return annots.length;
+		}
+	}
+
+	private static final Comparator<Annotation> OFFSET_ORDER = (a, b) -> {
+		final int cmp = Long.compare(a.getStartNode().getOffset(), b.getStartNode().getOffset());
+		return cmp != 0 ? cmp : Long.compare(a.getEndNode().getOffset(), b.getEndNode().getOffset());
+	};
+
+	private SpanJoin() {
+		// static helper only
+	}
+
+	/**
+	 * Reports every (domain, range) pair related by a span strategy. An
+	 * annotation is never related to itself.
+	 * 
+	 * @param domains
+	 *            the sorted domain annotations
+	 * @param ranges
+	 *            the sorted range annotations
+	 * @param rMap
+	 *            the relation mapping
+	 * @param strategy
+	 *            the span strategy of the mapping
+	 * @param handler
+	 *            receives the related pairs
+	 */
+	static void join(final SortedSpans domains, final SortedSpans ranges, final RelationMapping rMap,
+			final RelationStrategy strategy, final PairHandler handler) {
+		if (domains.size() == 0 || ranges.size() == 0) {
+			return;
+		}
+		final long window = strategy.window(rMap);
+		final long maxDistance = rMap.getMaxDistance();
+		final long[] rangeEnds = ranges.ends;
+		final PriorityQueue<Integer> active = new PriorityQueue<>(
+				(a, b) -> Long.compare(rangeEnds[a], rangeEnds[b]));
+		int next = 0;
+
+		for (int d = 0; d < domains.size(); d++) {
+			final long domainStart = domains.starts[d];
+			final long domainEnd = domains.ends[d];
+
+			if (strategy == RelationStrategy.OVERLAPS) {
+				// admit the range annotations starting before this domain and
+				// retire those ending at or before its start; domains are
+				// sorted by start, so they cannot overlap any later one
+				while (next < ranges.size() && ranges.starts[next] < domainStart) {
+					active.add(next++);
+				}
+				while (!active.isEmpty() && rangeEnds[active.peek()] <= domainStart) {
+					active.poll();
+				}
+				for (final Integer r : active) {
+					pair(domains, d, ranges, r, strategy, maxDistance, handler);
+				}
+			}
+
+			// visit the range annotations starting within reach of this domain
+			final long last;
+			int r;
+			switch (strategy) {
+			case PRECEDES:
+				r = lowerBound(ranges, domainEnd, Long.MIN_VALUE);
+				last = domainEnd + window;
+				break;
+			case OVERLAPS:
+				r = lowerBound(ranges, domainStart, domainStart + 1);
+				last = domainEnd - 1;
+				break;
+			case COEXTENSIVE:
+				r = lowerBound(ranges, domainStart, domainEnd);
+				last = domainStart;
+				break;
+			default:
+				r = lowerBound(ranges, domainStart, Long.MIN_VALUE);
+				last = domainEnd;
+			}
+			for (; r < ranges.size() && ranges.starts[r] <= last; r++) {
+				pair(domains, d, ranges, r, strategy, maxDistance, handler);
+			}
+		}
+	}
+
+	private static void pair(final SortedSpans domains, final int d, final SortedSpans ranges, final int r,
+			final RelationStrategy strategy, final long maxDistance, final PairHandler handler) {
+		if (ranges.annots[r] != domains.annots[d] && strategy.matches(domains.starts[d], domains.ends[d],
+				ranges.starts[r], ranges.ends[r], maxDistance)) {
+			handler.pair(domains.annots[d], ranges.annots[r]);
+		}
+	}
+
+	/**
+	 * @return the index of the first annotation whose (start, end) offsets
+	 *         are not less than the given ones
+	 */
+	private static int lowerBound(final SortedSpans spans, final long start, final long end) {
+		int low = 0;
+		int high = spans.size();
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (spans.starts[mid] < start || spans.starts[mid] == start && spans.ends[mid] < end) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -38,6 +38,7 @@ package info.semanticsoftware.lodexporter;
 public class SubjectMapping extends Mapping {
 
 	private String baseURI;
+	private final String annotationSet;
 
 	/**
 	 * The constructor for creating a SubjectMapping instance.
@@ -53,8 +54,29 @@ public class SubjectMapping extends Mapping {
 	 *            the GATE annotation type
 	 */
 	public SubjectMapping(final String rule, final String myBaseURI, final String type, final String gateType) {
+		this(rule, myBaseURI, type, gateType, null);
+	}
+
+	/**
+	 * Creates a subject mapping restricted to one annotation set.
+	 * 
+	 * @param rule
+	 *            the rule name
+	 * @param myBaseURI
+	 *            the baseURI must be a fully-qualified URI
+	 * @param type
+	 *            the rdf:type value
+	 * @param gateType
+	 *            the GATE annotation type
+	 * @param myAnnotationSet
+	 *            the annotation set the rule applies to (empty for the
+	 *            default set), or null for all exported sets
+	 */
+	public SubjectMapping(final String rule, final String myBaseURI, final String type, final String gateType,
+			final String myAnnotationSet) {
 		super(rule, type, gateType);
 		baseURI = myBaseURI;
+		annotationSet = myAnnotationSet;
 	}
 
 	/**
@@ -66,6 +88,26 @@ public class SubjectMapping extends Mapping {
 		return baseURI;
 	}
 
+	/**
+	 * Returns the annotation set this rule is restricted to.
+	 * 
+	 * @return the annotation set name, or null if the rule applies to all sets
+	 */
+	public final String getAnnotationSet() {
+		return annotationSet;
+	}
+
+	/**
+	 * Tests whether this rule applies to an exported annotation set.
+	 * 
+	 * @param setName
+	 *            the annotation set name, empty or null for the default set
+	 * @return true if the rule is not restricted or restricted to this set
+	 */
+	public final boolean appliesTo(final String setName) {
+		return annotationSet == null || annotationSet.trim().equals(setName == null ? "" : setName.trim());
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -73,6 +115,6 @@ public class SubjectMapping extends Mapping {
 	 */
 	@Override
 	public String toString() {
-		return super.toString() + " URI=" + baseURI;
+		return super.toString() + " URI=" + baseURI + (annotationSet == null ? "" : " AS=" + annotationSet);
 	}
 }
\ No newline at end of file
@@ -27,6 +27,12 @@ package info.semanticsoftware.lodexporter;
 import java.net.URL;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
 
 import gate.FeatureMap;
 
@@ -35,8 +41,13 @@ import gate.FeatureMap;
  * @author René Witte
  */
 public interface TripleStoreInterface {
-	/** Transactions on the triple store can be of type READ or READ/WRITE. */
-	enum TransactionType{READ, WRITE}; 
+	/**
+	 * Transactions on the triple store can be of type READ or READ/WRITE.
+	 * STAGED is a write whose triples are kept by the calling thread and
+	 * written in a single write transaction when it ends, so that threads
+	 * mapping documents do not wait for each other.
+	 */
+	enum TransactionType{READ, WRITE, STAGED};
 
 	void connect();
 
@@ -58,6 +69,49 @@ public interface TripleStoreInterface {
 	Map<String, SubjectMapping> getSubjectMappings(String query) throws Exception;
 	Map<String,LinkedList<PropertyMapping>> getPropertyMappings( String query )throws Exception;
 	Map<String,LinkedList<RelationMapping>> getRelationMappings( String query )throws Exception;
+
+	/**
+	 * Queries the triple store for the filters of the subject mapping rules
+	 * and compiles them.
+	 * @param query the SPARQL query string
+	 * @return A HashMap of &lt;rulename, list of {@link FilterMapping}&gt;
+	 * @throws Exception from the underlying triple store implementation, or
+	 *             an IllegalArgumentException for an invalid filter
+	 */
+	Map<String,LinkedList<FilterMapping>> getFilterMappings( String query )throws Exception;
+
+	/**
+	 * Runs a SPARQL SELECT query against the dataset of the store and hands
+	 * each solution to the given action. The query runs in the transaction
+	 * of the calling thread, or in a read transaction of its own if there is
+	 * none. Parsed queries are cached by their text, so pass variable values
+	 * as bindings instead of formatting them into the query.
+	 * @param query the SPARQL query string
+	 * @param bindings the values of query variables, keyed by variable name
+	 *            without '?', or null
+	 * @param action called for each solution while the query is running
+	 * @return the number of solutions
+	 * @throws org.apache.jena.query.QueryCancelledException if the query
+	 *             exceeds the query timeout of the store
+	 */
+	long select(String query, Map<String, RDFNode> bindings, Consumer<QuerySolution> action);
+
+	/**
+	 * Runs a SPARQL ASK query, see {@link #select(String, Map, Consumer)}.
+	 * @param query the SPARQL query string
+	 * @param bindings the values of query variables, or null
+	 * @return the result of the query
+	 */
+	boolean ask(String query, Map<String, RDFNode> bindings);
+
+	/**
+	 * Runs a SPARQL CONSTRUCT query, see {@link #select(String, Map, Consumer)}.
+	 * @param query the SPARQL query string
+	 * @param bindings the values of query variables, or null
+	 * @return a new in-memory model with the constructed triples
+	 */
+	Model construct(String query, Map<String, RDFNode> bindings);
+
 	void beginTransaction(TransactionType type);
 	void endTransaction();
 	void storeTriple(String docURL, String URIforAnnotation,
@@ -65,6 +119,72 @@ public interface TripleStoreInterface {
 	void storeTriple(String docURL, RelationMapping rMap, String URIforAnnotation, String rangeURI);
 	void storeTriple(String docURL, String corpusURI);
 	void storeTriple(String docURL, String annotationURI, FeatureMap feats, String domainURI, String rangeURI);
+
+	/**
+	 * Stores mapped properties of a resource other than an annotation, such
+	 * as the provenance of a document export.
+	 * @param docURL the document URL
+	 * @param subjectURI the URI of the resource
+	 * @param exportProps the values keyed by GATE feature or attribute, as
+	 *            for the annotations; null values are skipped
+	 */
+	void storeProperties(String docURL, String subjectURI, Map<String, Object> exportProps);
+
+	/**
+	 * Records that all triples of a document were exported in the given
+	 * session. Used to detect documents whose export was committed in chunks
+	 * and did not finish.
+	 * @param docURL the document URL
+	 * @param sessionID the export session ID of the document
+	 */
+	void storeExportSession(String docURL, String sessionID);
+
+	/**
+	 * Links a document to the resource describing one export of it, such as
+	 * the provenance of an export session, and types that resource as a
+	 * prov:Activity.
+	 * @param docURL the document URL
+	 * @param activityURI the URI of the export, unique per session
+	 */
+	void storeExportActivity(String docURL, String activityURI);
+
+	/**
+	 * Stores the text of a content resource, see {@link ContentIndex}.
+	 * @param docURL the document URL
+	 * @param contentURI the URI of the content resource
+	 * @param content the text
+	 */
+	void storeContent(String docURL, String contentURI, String content);
+
+	/**
+	 * Stores triples that were already mapped, e.g., by the store of another
+	 * exporter feeding this one as an additional sink.
+	 * @param docURL the URL of the document the triples were exported from
+	 * @param triples the exported triples
+	 */
+	void storeTriples(String docURL, Graph triples);
+
+	/**
+	 * Copies the triples exported by the calling thread into a graph, in
+	 * addition to storing them, e.g., to hand a document to other components
+	 * in memory. Mapping rules are not copied.
+	 * @param capture the graph receiving the triples, or null to stop copying
+	 */
+	void captureTriples(Graph capture);
 	void exportTriplesToFile(String url);
 	String printDataset();
+
+	/**
+	 * Called when a run of the controller has finished, to wait for pending
+	 * writes and to update data derived from the exported triples, such as
+	 * optimizer statistics.
+	 */
+	void finishRun();
+
+	/**
+	 * Returns a summary of the work done by the store so far, such as cache
+	 * hit rates or the number of triples sent, for logging.
+	 * @return the store statistics as String
+	 */
+	String printStatistics();
 }
\ No newline at end of file
@@ -0,0 +1,1088 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.jena;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.apache.jena.atlas.RuntimeIOException;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamOps;
+import org.apache.jena.riot.system.StreamRDF;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.QuerySolutionMap;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.vocabulary.RDF;
+
+import gate.FeatureMap;
+import gate.util.GateRuntimeException;
+import info.semanticsoftware.lodexporter.FilterMapping;
+import info.semanticsoftware.lodexporter.PropertyMapping;
+import info.semanticsoftware.lodexporter.RelationMapping;
+import info.semanticsoftware.lodexporter.SubjectMapping;
+import info.semanticsoftware.lodexporter.TripleStoreInterface;
+import info.semanticsoftware.lodexporter.jfr.ExportRecorder;
+import info.semanticsoftware.lodexporter.sink.NQuadsChannelWriter;
+import info.semanticsoftware.lodexporter.sink.ParallelNQuadsWriter;
+import info.semanticsoftware.lodexporter.sink.TripleDeduplicator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Common implementation for triple stores based on an Apache Jena
+ * {@link Dataset}. The mapping rules are queried from the dataset and the
+ * exported triples are built here; concrete stores decide how the dataset is
+ * created and where the triples end up.
+ * 
+ * <p>
+ * Several threads may export documents through one store, each in its own
+ * transactions. Write transactions are serialized by the store, so the
+ * triples of a document, the patch log, the triple sink and the statistics
+ * of a store only see one writer at a time; read transactions, such as
+ * writing export files or the queries of other components through
+ * {@link #select(String, Map, Consumer)}, run concurrently.
+ * </p>
+ * 
+ * <p>
+ * The read methods query the dataset of the store: the mapping rules and,
+ * for the TDB stores, the exported triples. The in-memory, sharded and
+ * remote stores keep the exported triples elsewhere.
+ * </p>
+ * 
+ * @author Bahar Sateli
+ * @author René Witte
+ */
+public abstract class AbstractJenaTripleStore implements TripleStoreInterface {
+
+    private Dataset dataset;
+    private Model model;
+    private Graph graph;
+    private Map<String, Node> propertyModelHash;
+    private Map<String, Node> relationModelHash;
+    private final TermDictionary terms;
+    private TripleDeduplicator deduplicator;
+    private boolean updateStatistics;
+    private ExecutorService exportEncoders;
+    private int exportThreads;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ThreadLocal<NQuadsChannelWriter> channelWriter = new ThreadLocal<>();
+    private final Queue<NQuadsChannelWriter> channelWriters = new ConcurrentLinkedQueue<>();
+    private PatchLog patchLog;
+    private final List<StreamRDF> tripleSinks = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Graph> capture = new ThreadLocal<>();
+    private final ThreadLocal<Map<String, List<Triple>>> staged = new ThreadLocal<>();
+    private PrefixMapping prefixes = PrefixMapping.Standard;
+    private QueryCache queries = new QueryCache(QueryCache.DEFAULT_CAPACITY);
+    private long queryTimeout;
+    // FIXME why using a diff uri?
+    private static final String PUBO_BASE_URI = "http://lod.semanticsoftware.info/pubo/pubo#";
+    private static final Node HAS_ANNOTATION = NodeFactory.createURI(PUBO_BASE_URI + "hasAnnotation");
+    private static final Node HAS_DOCUMENT = NodeFactory.createURI(PUBO_BASE_URI + "hasDocument");
+    private static final Node EXPORT_SESSION = NodeFactory.createURI(PUBO_BASE_URI + "exportSession");
+    private static final Node HAS_EXPORT = NodeFactory.createURI(PUBO_BASE_URI + "hasExport");
+    private static final Node PROV_ACTIVITY = NodeFactory.createURI("http://www.w3.org/ns/prov#Activity");
+    private static final Node CNT_CHARS = NodeFactory.createURI("http://www.w3.org/2011/content#chars");
+
+    // properties for relation annotations
+    // TODO define relations in the RDF rather than hard-coding it here
+    private static final Node HAS_COMPETENCY_RECORD = NodeFactory
+            .createURI("http://intelleo.eu/ontologies/user-model/ns/hasCompetencyRecord"); // FIXME
+    private static final Node COMPETENCE_FOR = NodeFactory
+            .createURI("http://www.intelleo.eu/ontologies/competences/ns/competenceFor"); // FIXME
+
+    protected static final Logger LOGGER = Logger.getLogger(AbstractJenaTripleStore.class);
+
+    /**
+     * Creates a store sharing the given term dictionary, so the recurring
+     * terms survive re-connecting the store between documents.
+     * 
+     * @param myTerms
+     *            the term dictionary for document, class and property URIs
+     */
+    protected AbstractJenaTripleStore(final TermDictionary myTerms) {
+        this.terms = myTerms;
+    }
+
+    /**
+     * @return the dataset holding the mapping rules (and, for most stores, the
+     *         exported triples)
+     */
+    protected final Dataset getDataset() {
+        return dataset;
+    }
+
+    /**
+     * @param myDataset
+     *            the dataset created when connecting the store
+     */
+    protected final void setDataset(final Dataset myDataset) {
+        this.dataset = myDataset;
+        // a view of the default graph of the transaction of the calling thread
+        this.graph = myDataset.asDatasetGraph().getDefaultGraph();
+    }
+
+    /**
+     * @return the term dictionary of the store
+     */
+    protected final TermDictionary getTerms() {
+        return terms;
+    }
+
+    /**
+     * Adds an exported triple to the store. By default, the triple is added
+     * to the default graph of the dataset in the current transaction.
+     * 
+     * @param docURL
+     *            the URL of the document the triple was exported from
+     * @param triple
+     *            the exported triple
+     */
+    protected void addTriple(final String docURL, final Triple triple) {
+        graph.add(triple);
+    }
+
+    /**
+     * Adds an exported triple to the store, the patch log, the triple sinks and
+     * the capture graph of the calling thread, if any. In a
+     * {@link TransactionType#STAGED} transaction, the triple is kept by the
+     * calling thread until the transaction ends.
+     * 
+     * @param docURL
+     *            the URL of the document the triple was exported from
+     * @param triple
+     *            the exported triple
+     */
+    private void exportTriple(final String docURL, final Triple triple) {
+        final Map<String, List<Triple>> stage = staged.get();
+        if (stage != null) {
+            stage.computeIfAbsent(docURL, url -> new ArrayList<>()).add(triple);
+            return;
+        }
+        if (patchLog != null) {
+            patchLog.add(triple);
+        }
+        for (final StreamRDF sink : tripleSinks) {
+            sink.triple(triple);
+        }
+        final Graph captured = capture.get();
+        if (captured != null) {
+            captured.add(triple);
+        }
+        addTriple(docURL, triple);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeTriples(java.lang.String, org.apache.jena.graph.Graph)
+     */
+    @Override
+    public final void storeTriples(final String docURL, final Graph triples) {
+        triples.find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(triple -> exportTriple(docURL, triple));
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#captureTriples(org.apache.jena.graph.Graph)
+     */
+    @Override
+    public final void captureTriples(final Graph myCapture) {
+        if (myCapture == null) {
+            capture.remove();
+        } else {
+            capture.set(myCapture);
+        }
+    }
+
+    /**
+     * Adds a sink receiving every exported triple in addition to the store.
+     * Mapping rules are not sent to the sinks.
+     * 
+     * @param tripleSink
+     *            a sink shared by all documents of a run
+     */
+    public final void addTripleSink(final StreamRDF tripleSink) {
+        tripleSinks.add(tripleSink);
+    }
+
+    /**
+     * Sets the log recording the triples added by each committed write
+     * transaction as an RDF Patch.
+     * 
+     * @param myPatchLog
+     *            the patch log shared by all documents of a run, or null to
+     *            log nothing
+     */
+    public final void setPatchLog(final PatchLog myPatchLog) {
+        this.patchLog = myPatchLog;
+    }
+
+    /**
+     * Sets a stage suppressing duplicate triples when exporting to a file.
+     * 
+     * @param myDeduplicator
+     *            the deduplicator shared by all documents of a run, or null
+     *            to write all triples
+     */
+    public final void setDeduplicator(final TripleDeduplicator myDeduplicator) {
+        this.deduplicator = myDeduplicator;
+    }
+
+    /**
+     * Sets the threads encoding the triples exported to a file, see
+     * {@link ParallelNQuadsWriter}.
+     * 
+     * @param myExportEncoders
+     *            the encoder pool shared by all documents of a run, or null
+     *            to encode on the calling thread
+     * @param myExportThreads
+     *            the number of threads of the pool
+     */
+    public final void setExportEncoders(final ExecutorService myExportEncoders, final int myExportThreads) {
+        this.exportEncoders = myExportEncoders;
+        this.exportThreads = myExportThreads;
+    }
+
+    /**
+     * Sets the cache of parsed queries used by the read methods and for
+     * loading the mapping rules.
+     * 
+     * @param myQueries
+     *            the query cache shared by the stores of a run
+     */
+    public final void setQueryCache(final QueryCache myQueries) {
+        this.queries = myQueries;
+    }
+
+    /**
+     * Sets the time after which a query of the store is cancelled.
+     * 
+     * @param myQueryTimeout
+     *            the timeout in milliseconds, or 0 for no timeout
+     */
+    public final void setQueryTimeout(final long myQueryTimeout) {
+        this.queryTimeout = myQueryTimeout;
+    }
+
+    /**
+     * Sets whether stores with optimizer statistics update them with the
+     * counts of the exported triples after each run.
+     * 
+     * @param myUpdateStatistics
+     *            true to update the statistics
+     */
+    public final void setUpdateStatistics(final boolean myUpdateStatistics) {
+        this.updateStatistics = myUpdateStatistics;
+    }
+
+    /**
+     * @return whether the optimizer statistics are updated after each run
+     */
+    protected final boolean isUpdateStatistics() {
+        return updateStatistics;
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#loadRules(java.net.URL)
+     */
+    @Override
+	public final void loadMappingRulesFromFile(final URL file) {
+    	model = dataset.getDefaultModel();
+    	RDFDataMgr.read(model, file.toExternalForm());
+        LOGGER.debug("[loadRules] Finished loading mapping rules from " + file.toExternalForm());
+	}
+    
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#beginTransaction(info.semanticsoftware.lodexporter.TripleStoreInterface.TransactionType)
+     */
+    @Override
+    public void beginTransaction(final TransactionType type) {
+        if (type == TransactionType.STAGED) {
+            // written by endTransaction()
+            staged.set(new LinkedHashMap<>());
+            return;
+        }
+        final Object event = ExportRecorder.INSTANCE.beginTransaction();
+        if (type == TransactionType.READ) {
+            dataset.begin(ReadWrite.READ);
+        } else {
+            writeLock.lock();
+            try {
+                dataset.begin(ReadWrite.WRITE);
+            } catch (RuntimeException e) {
+                writeLock.unlock();
+                throw e;
+            }
+            if (patchLog != null) {
+                patchLog.begin();
+            }
+        }
+        ExportRecorder.INSTANCE.endTransaction(event, type == TransactionType.WRITE);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#endTransaction()
+     */
+    @Override
+    public void endTransaction() {
+        final Map<String, List<Triple>> stage = staged.get();
+        if (stage != null) {
+            staged.remove();
+            writeStaged(stage);
+            return;
+        }
+        final Object event = ExportRecorder.INSTANCE.beginCommit();
+        final boolean write = writeLock.isHeldByCurrentThread();
+        try {
+            dataset.commit(); // commit the transaction, otherwise it would be
+                              // aborted when calling end()
+            dataset.end();
+            if (patchLog != null && write) {
+                try {
+                    patchLog.commit();
+                } catch (IOException e) {
+                    throw new GateRuntimeException("Error writing the patch log", e);
+                }
+            }
+        } finally {
+            if (write) {
+                writeLock.unlock();
+            }
+        }
+        ExportRecorder.INSTANCE.endCommit(event, write);
+    }
+
+    /**
+     * Ends the current transaction without committing it, e.g., because a
+     * subclass could not store its triples. The open patch of the transaction,
+     * if any, is aborted.
+     */
+    protected final void abortTransaction() {
+        final boolean write = writeLock.isHeldByCurrentThread();
+        try {
+            if (write) {
+                dataset.abort();
+            }
+            dataset.end();
+            if (patchLog != null && write) {
+                patchLog.abort();
+            }
+        } finally {
+            if (write) {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return true if the committed triples are logged in a {@link PatchLog}
+     */
+    protected final boolean hasPatchLog() {
+        return patchLog != null;
+    }
+
+    /**
+     * Writes the triples of a staged transaction in a write transaction, or
+     * directly if the store keeps the exported triples per thread.
+     * 
+     * @param stage
+     *            the staged triples, keyed by document URL
+     */
+    private void writeStaged(final Map<String, List<Triple>> stage) {
+        if (!isStagedPerThread()) {
+            beginTransaction(TransactionType.WRITE);
+            try {
+                writeTriples(stage);
+            } finally {
+                endTransaction();
+            }
+            return;
+        }
+        final Object event = ExportRecorder.INSTANCE.beginCommit();
+        writeTriples(stage);
+        ExportRecorder.INSTANCE.endCommit(event, true);
+    }
+
+    private void writeTriples(final Map<String, List<Triple>> stage) {
+        if (!tripleSinks.isEmpty()) {
+            // the sinks see one document at a time, also without the write lock
+            synchronized (tripleSinks) {
+                for (final List<Triple> triples : stage.values()) {
+                    for (final Triple triple : triples) {
+                        for (final StreamRDF sink : tripleSinks) {
+                            sink.triple(triple);
+                        }
+                    }
+                }
+            }
+        }
+        final Graph captured = capture.get();
+        for (final Map.Entry<String, List<Triple>> document : stage.entrySet()) {
+            for (final Triple triple : document.getValue()) {
+                if (patchLog != null) {
+                    patchLog.add(triple);
+                }
+                if (captured != null) {
+                    captured.add(triple);
+                }
+                addTriple(document.getKey(), triple);
+            }
+        }
+    }
+
+    /**
+     * Whether the calling thread is in a {@link TransactionType#STAGED}
+     * transaction. Its end does not write anything before calling
+     * {@link #endTransaction()} again in a write transaction, so subclasses
+     * flush their buffers only if this is false.
+     * 
+     * @return true while the calling thread stages its triples
+     */
+    protected final boolean isStaging() {
+        return staged.get() != null;
+    }
+
+    /**
+     * Whether {@link #addTriple(String, Triple)} only touches state of the
+     * calling thread, so that staged transactions are written without the
+     * write lock and a write transaction on the dataset.
+     * 
+     * @return false by default
+     */
+    protected boolean isStagedPerThread() {
+        return false;
+    }
+
+    /**
+     * Generates a map of &lt;rulename,SubjectMapping&gt; objects from the query
+     * results.
+     * 
+     * @param query
+     *            the SPARQL query
+     * @return a map of &lt;rulename,SubjectMapping&gt; objects
+     * @throws Exception
+     *             from the Jena implementation
+     * 
+     * @see info.semanticsoftware.lodexporter.LODeXporter#init()
+     * 
+     */
+    @Override
+    public final Map<String, SubjectMapping> getSubjectMappings(final String query) throws Exception {
+        final ResultSet rs = queryMappings(query);
+        return populateSubjectHash(rs);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#getPropertyMappings(java.lang.String)
+     */
+    @Override
+    public final Map<String, LinkedList<PropertyMapping>> getPropertyMappings(final String query)
+            throws Exception {
+        HashMap<String, LinkedList<PropertyMapping>> propMapList = null;
+        final ResultSet rs = queryMappings(query);
+        propMapList = populatePropertyMapList(rs);
+        preparePropertyModel(propMapList);
+
+        return propMapList;
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#getRelationMappings(java.lang.String)
+     */
+    @Override
+    public final Map<String, LinkedList<RelationMapping>> getRelationMappings(final String query) throws Exception {
+        HashMap<String, LinkedList<RelationMapping>> relationMapList = null;
+        final ResultSet rs = queryMappings(query);
+        relationMapList = (HashMap<String, LinkedList<RelationMapping>>) populateRelationMapList(rs);
+        prepareRelationModel(relationMapList);
+
+        return relationMapList;
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#getFilterMappings(java.lang.String)
+     */
+    @Override
+    public final Map<String, LinkedList<FilterMapping>> getFilterMappings(final String query) throws Exception {
+        final Map<String, LinkedList<FilterMapping>> filterHash = new HashMap<String, LinkedList<FilterMapping>>();
+        final ResultSet rs = queryMappings(query);
+        while (rs.hasNext()) {
+            final QuerySolution soln = rs.nextSolution();
+            final String ruleString = soln.getResource("?rule").getURI();
+            final RDFNode GATEfeatureNode = soln.get("?GATEfeature");
+            final RDFNode GATEattributeNode = soln.get("?GATEattribute");
+            final RDFNode operatorNode = soln.get("?operator");
+            final RDFNode valueNode = soln.get("?value");
+            // invalid filters are not skipped: the rule would export everything
+            final FilterMapping newMap = new FilterMapping(ruleString,
+                    GATEfeatureNode == null ? null : GATEfeatureNode.asLiteral().getString(),
+                    GATEattributeNode == null ? null : GATEattributeNode.asLiteral().getString(),
+                    operatorNode == null ? null : operatorNode.asLiteral().getString(),
+                    valueNode == null ? null : valueNode.asLiteral().getLexicalForm()); // NOPMD
+            filterHash.computeIfAbsent(ruleString, rule -> new LinkedList<>()).add(newMap);
+        }
+        LOGGER.debug("----- FILTER HASHMAP:" + filterHash);
+        return filterHash;
+    }
+
+    private ResultSet queryMappings(final String query) {
+        // the results are copied, as they cannot be read once the execution is closed
+        try (QueryExecution qExec = createExecution(query, null)) {
+            return ResultSetFactory.copyResults(qExec.execSelect());
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#select(java.lang.String, java.util.Map, java.util.function.Consumer)
+     */
+    @Override
+    public final long select(final String query, final Map<String, RDFNode> bindings,
+            final Consumer<QuerySolution> action) {
+        return read(() -> {
+            long solutions = 0;
+            try (QueryExecution qExec = createExecution(query, bindings)) {
+                final ResultSet rs = qExec.execSelect();
+                while (rs.hasNext()) {
+                    action.accept(rs.next());
+                    solutions++;
+                }
+            }
+            return solutions;
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#ask(java.lang.String, java.util.Map)
+     */
+    @Override
+    public final boolean ask(final String query, final Map<String, RDFNode> bindings) {
+        return read(() -> {
+            try (QueryExecution qExec = createExecution(query, bindings)) {
+                return qExec.execAsk();
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#construct(java.lang.String, java.util.Map)
+     */
+    @Override
+    public final Model construct(final String query, final Map<String, RDFNode> bindings) {
+        return read(() -> {
+            try (QueryExecution qExec = createExecution(query, bindings)) {
+                return qExec.execConstruct();
+            }
+        });
+    }
+
+    /**
+     * Runs a query in the transaction of the calling thread, or in a read
+     * transaction if there is none.
+     * 
+     * @param query
+     *            the query execution, which must not keep results referring
+     *            to the dataset
+     * @return the result of the query
+     */
+    private <T> T read(final Supplier<T> query) {
+        if (dataset.isInTransaction()) {
+            return query.get();
+        }
+        dataset.begin(ReadWrite.READ);
+        try {
+            return query.get();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * Creates the execution of a cached query on the dataset.
+     * 
+     * @param query
+     *            the SPARQL query string
+     * @param bindings
+     *            the initial values of query variables, or null
+     * @return the query execution, which must be closed
+     */
+    private QueryExecution createExecution(final String query, final Map<String, RDFNode> bindings) {
+        final QuerySolutionMap initialBinding = new QuerySolutionMap();
+        if (bindings != null) {
+            bindings.forEach(initialBinding::add);
+        }
+        final QueryExecution qExec = QueryExecutionFactory.create(queries.get(query), dataset, initialBinding);
+        if (queryTimeout > 0) {
+            qExec.setTimeout(queryTimeout);
+        }
+        return qExec;
+    }
+
+    private Map<String, SubjectMapping> populateSubjectHash(final ResultSet rs) {
+        final Map<String, SubjectMapping> subjectHash = new HashMap<String, SubjectMapping>();
+
+        try {
+            /*
+             * Iterate through the SPARQL query results and creates a new
+             * SubjectMapping object. Each result is supposed to contain: 
+             * - ?rule rule name 
+             * - ?baseURI base URI 
+             * - ?GATEtype GATE annotation type 
+             * - ?type rdf:type value
+             * - ?GATEannotationSet (optional) the annotation set of the rule
+             */
+            while (rs.hasNext()) {
+                // TODO issue a warning/exception when the rule is incomplete?
+                final QuerySolution soln = rs.nextSolution();
+                
+                final RDFNode ruleNode = soln.get("?rule");
+                String ruleString = null;
+                if (ruleNode != null)
+                    ruleString = ruleNode.asResource().getURI();
+
+                final RDFNode baseURINode = soln.get("?baseURI");
+                String baseURIString = null;
+                if (baseURINode != null)
+                    baseURIString = baseURINode.asResource().getURI();
+
+                final RDFNode GATETypeNode = soln.get("?GATEtype");
+                String GATETypeString = null;
+                if (GATETypeNode != null)
+                    GATETypeString = GATETypeNode.asLiteral().getString();
+
+                final RDFNode typeNode = soln.get("?type");
+                String typeString = null;
+                if (typeNode != null)
+                    typeString = typeNode.asResource().getURI();
+
+                final RDFNode annotationSetNode = soln.get("?GATEannotationSet");
+                String annotationSetString = null;
+                if (annotationSetNode != null)
+                    annotationSetString = annotationSetNode.asLiteral().getString();
+
+                final SubjectMapping newMap = new SubjectMapping(ruleString, baseURIString,
+                        typeString, GATETypeString, annotationSetString); // NOPMD
+                subjectHash.put(ruleString, newMap);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error reading the subject mappings.", e);
+        }
+
+        LOGGER.debug("----- SUBJECT MAPLIST: " + subjectHash);
+        return subjectHash;
+    }
+
+    private HashMap<String, LinkedList<PropertyMapping>> populatePropertyMapList(final ResultSet rs) {
+        final HashMap<String, LinkedList<PropertyMapping>> propertyHash = new HashMap<String, LinkedList<PropertyMapping>>();
+
+        try {
+            while (rs.hasNext()) {
+                final QuerySolution soln = rs.nextSolution();
+
+                final RDFNode ruleNode = soln.get("?rule");
+                String ruleString = null;
+                if (ruleNode != null)
+                    ruleString = ruleNode.asResource().getURI();
+
+                final RDFNode GATEtypeNode = soln.get("?GATEtype");
+                String GATEtypeString = null;
+                if (GATEtypeNode != null)
+                    GATEtypeString = GATEtypeNode.asLiteral().getString();
+
+                /*
+                 * RDFNode baseURINode = soln.get("?baseURI"); String
+                 * baseURIString = null; if (baseURINode != null) baseURIString
+                 * = baseURINode.asResource().getURI();
+                 */
+
+                final RDFNode GATEfeatureNode = soln.get("?GATEfeature");
+                String GATEfeatureString = null;
+                if (GATEfeatureNode != null)
+                    GATEfeatureString = GATEfeatureNode.asLiteral().getString();
+
+                final RDFNode GATEattributeNode = soln.get("?GATEattribute");
+                String GATEattributeString = null;
+                if (GATEattributeNode != null)
+                    GATEattributeString = GATEattributeNode.asLiteral().getString();
+
+                final RDFNode typeNode = soln.get("?type");
+                String typeString = null;
+                if (typeNode != null)
+                    typeString = model.expandPrefix(typeNode.asResource().getURI());
+
+                final PropertyMapping newMap = new PropertyMapping(ruleString, typeString,
+                        GATEtypeString, GATEfeatureString, GATEattributeString); // NOPMD
+
+                if (propertyHash.containsKey(ruleString)) {
+                    propertyHash.get(ruleString).add(newMap);
+                } else {
+                    final LinkedList<PropertyMapping> propertyMaps = new LinkedList<>();
+                    propertyMaps.add(newMap);
+                    propertyHash.put(ruleString, propertyMaps);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error populating the property hashmap.", e);
+        }
+
+        LOGGER.debug("----- PROPERTY HASHMAP:" + propertyHash);
+        return propertyHash;
+    }
+
+    private Map<String, LinkedList<RelationMapping>> populateRelationMapList(final ResultSet rs) {
+        final Map<String, LinkedList<RelationMapping>> relationHash = new HashMap<String, LinkedList<RelationMapping>>();
+
+        try {
+            while (rs.hasNext()) {
+                final QuerySolution soln = rs.nextSolution();
+
+                final RDFNode ruleNode = soln.get("?rule");
+                String ruleString = null;
+                if (ruleNode != null)
+                    ruleString = ruleNode.asResource().getURI();
+                // System.out.println("Rule:" + ruleNode + ", localName=" +
+                // ruleNode.asResource().getLocalName() + ", nameSpace=" +
+                // ruleNode.asResource().getNameSpace());
+
+                final RDFNode domainNode = soln.get("?domain");
+                String domainString = null;
+                if (domainNode != null) {
+                    domainString = domainNode.asResource().getURI();
+                } else {
+                    throw new NullArgumentException("Missing domain for rule: " + ruleString);
+                }
+
+                final RDFNode rangeNode = soln.get("?range");
+                String rangeString = null;
+                if (rangeNode != null) {
+                    rangeString = rangeNode.asResource().getURI();
+                } else {
+                    throw new NullArgumentException("Missing range for rule: " + ruleString);
+                }
+
+                final RDFNode typeNode = soln.get("?type");
+                String typeString = null;
+                if (typeNode != null) {
+                    typeString = model.expandPrefix(typeNode.asResource().getURI());
+                }
+                
+                final RDFNode GATEattributeNode = soln.get("?GATEattribute");
+                String GATEattributeString = null;
+                if (GATEattributeNode != null) {
+                    GATEattributeString = GATEattributeNode.asLiteral().getString();
+                }
+
+                final RDFNode maxDistanceNode = soln.get("?maxDistance");
+                long maxDistance = -1;
+                if (maxDistanceNode != null) {
+                    maxDistance = maxDistanceNode.asLiteral().getLong();
+                }
+                
+                final RelationMapping newMap = new RelationMapping(ruleString, typeString,
+                        domainString, rangeString, GATEattributeString, maxDistance);
+
+                if (relationHash.containsKey(domainString)) {
+                    relationHash.get(domainString).add(newMap);
+                } else {
+                    LinkedList<RelationMapping> relationMaps = new LinkedList<>();
+                    relationMaps.add(newMap);
+                    relationHash.put(domainString, relationMaps);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error populating the relation hashmap.", e);
+        }
+
+        LOGGER.debug("----- RELATION HASHMAP:" + relationHash);
+        return relationHash;
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#initModel()
+     */
+    @Override
+	public final void initModel() {
+        model = dataset.getDefaultModel();
+    }
+
+    private void preparePropertyModel(final Map<String, LinkedList<PropertyMapping>> propMapList) {
+        propertyModelHash = new HashMap<>();
+        for (final LinkedList<PropertyMapping> propMapElement : propMapList.values()) {
+            for (final PropertyMapping map : propMapElement) {
+                final String propKey = (map.getGATEattribute() == null) ? map.getGATEfeature()
+                        : map.getGATEattribute();
+                /*
+                 * if(map.getGATEattribute() == null){ propKey =
+                 * map.getGATEfeature(); }else{ propKey =
+                 * map.getGATEattribute(); }
+                 */
+                propertyModelHash.put(propKey, terms.uri(map.getType()));
+            }
+        }
+        snapshotPrefixes();
+    }
+
+    private void prepareRelationModel(final Map<String, LinkedList<RelationMapping>> relationMapList) {
+        model = dataset.getDefaultModel();
+        relationModelHash = new HashMap<>();
+        for (final LinkedList<RelationMapping> relationMapElement : relationMapList.values()) {
+            for (final RelationMapping rMap : relationMapElement) {
+                relationModelHash.put(rMap.getRule(), terms.uri(rMap.getType()));
+            }
+        }
+        snapshotPrefixes();
+    }
+
+    /**
+     * Copies the prefixes of the mapping rules, so that documents can be
+     * mapped outside of a transaction on the dataset.
+     */
+    private void snapshotPrefixes() {
+        prefixes = PrefixMapping.Factory.create().setNsPrefixes(model).lock();
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeTriple(java.lang.String, java.lang.String, java.lang.String, java.util.HashMap, java.util.HashMap)
+     */
+    @Override
+    public final void storeTriple(final String docURL, final String URIforAnnotation, final String type,
+            final Map<String, Object> exportProps,
+            final Map<String, LinkedList<PropertyMapping>> propertyMapList) {
+        final Node subject = NodeFactory.createURI(prefixes.expandPrefix(URIforAnnotation));
+
+        for (final Map.Entry<String, Object> prop : exportProps.entrySet()) {
+            exportTriple(docURL, Triple.create(subject, propertyModelHash.get(prop.getKey()),
+                    propertyValue(prop.getKey(), prop.getValue())));
+        }
+        exportTriple(docURL, Triple.create(subject, RDF.Nodes.type, terms.expandedURI(type, prefixes)));
+        exportTriple(docURL, Triple.create(terms.uri(docURL), HAS_ANNOTATION, subject));
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeProperties(java.lang.String, java.lang.String, java.util.Map)
+     */
+    @Override
+    public final void storeProperties(final String docURL, final String subjectURI,
+            final Map<String, Object> exportProps) {
+        final Node subject = NodeFactory.createURI(subjectURI);
+        for (final Map.Entry<String, Object> prop : exportProps.entrySet()) {
+            if (prop.getValue() != null) {
+                exportTriple(docURL, Triple.create(subject, propertyModelHash.get(prop.getKey()),
+                        propertyValue(prop.getKey(), prop.getValue())));
+            }
+        }
+    }
+
+	private Node propertyValue(final String propKey, final Object value) {
+		if (value.getClass() == java.net.URI.class) {
+		    return NodeFactory.createURI(value.toString());
+		} else if ("URI".equals(propKey) || "URI1".equals(propKey)) { //FIXME remove the URI-n hack
+		    // TODO remove this if, instead update the previous pipelines JAPE rules
+			// & have new mapping rule vocab for URI vs literal export?
+		    return NodeFactory.createURI((String) value);
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short) {
+		    // xsd:integer as TDB stores it, so all backends export the same literals
+		    return NodeFactory.createLiteral(value.toString(), XSDDatatype.XSDinteger);
+		} else {
+		    return ResourceFactory.createTypedLiteral(value).asNode();
+		}
+	}
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeTriple(java.lang.String, info.semanticsoftware.lodexporter.RelationMapping, java.lang.String, java.lang.String)
+     */
+    @Override
+	public final void storeTriple(final String docURL, final RelationMapping rMap, final String URIforAnnotation,
+        final String rangeURI) {
+        exportTriple(docURL, Triple.create(NodeFactory.createURI(URIforAnnotation),
+                relationModelHash.get(rMap.getRule()), NodeFactory.createURI(rangeURI)));
+    }
+
+    // method for storing relation annotations
+    @Override
+    public final void storeTriple(final String docURL, final String annotationURI, final FeatureMap feats,
+        final String domainURI, final String rangeURI) {
+        final Node relationNode = NodeFactory.createURI(annotationURI);
+        exportTriple(docURL, Triple.create(relationNode, RDF.Nodes.type, terms.uri((String) feats.get("type"))));
+        exportTriple(docURL, Triple.create(relationNode, COMPETENCE_FOR, NodeFactory.createURI(rangeURI))); // FIXME move
+        exportTriple(docURL, Triple.create(NodeFactory.createURI(domainURI), HAS_COMPETENCY_RECORD, relationNode));  //FIXME move
+        exportTriple(docURL, Triple.create(terms.uri(docURL), HAS_ANNOTATION, relationNode));
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeTriple(java.lang.String, java.lang.String)
+     */
+    @Override
+    public final void storeTriple(final String docURL, final String corpusURI) {
+        exportTriple(docURL, Triple.create(terms.uri(corpusURI), HAS_DOCUMENT, terms.uri(docURL)));
+        LOGGER.info("Exported " + corpusURI + " hasDocument " + docURL);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeExportSession(java.lang.String, java.lang.String)
+     */
+    @Override
+    public final void storeExportSession(final String docURL, final String sessionID) {
+        exportTriple(docURL, Triple.create(terms.uri(docURL), EXPORT_SESSION, NodeFactory.createLiteral(sessionID)));
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeExportActivity(java.lang.String, java.lang.String)
+     */
+    @Override
+    public final void storeExportActivity(final String docURL, final String activityURI) {
+        final Node activity = NodeFactory.createURI(activityURI);
+        exportTriple(docURL, Triple.create(terms.uri(docURL), HAS_EXPORT, activity));
+        exportTriple(docURL, Triple.create(activity, RDF.Nodes.type, PROV_ACTIVITY));
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#storeContent(java.lang.String, java.lang.String, java.lang.String)
+     */
+    @Override
+    public final void storeContent(final String docURL, final String contentURI, final String content) {
+        exportTriple(docURL, Triple.create(NodeFactory.createURI(contentURI), CNT_CHARS, NodeFactory.createLiteral(content)));
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#printDataset()
+     */
+    @Override
+    public String printDataset() {
+        return dataset.toString();
+    }
+
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#finishRun()
+     */
+    @Override
+    public void finishRun() {
+        // nothing pending by default
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#printStatistics()
+     */
+    @Override
+    public String printStatistics() {
+        String statistics = terms.getStatistics() + "; " + queries.getStatistics();
+        for (final NQuadsChannelWriter writer : channelWriters) {
+            statistics += "; " + writer.getStatistics();
+        }
+        if (patchLog != null) {
+            statistics += "; " + patchLog.getStatistics();
+        }
+        return deduplicator == null ? statistics : statistics + "; " + deduplicator.getStatistics();
+    }
+
+    /**
+     * Sends the triples to be written by {@link #exportTriplesToFile(String)}.
+     * By default, these are all triples of the default graph of the dataset.
+     * 
+     * @param out
+     *            the stream writing the export file
+     */
+    protected void sendExportedTriples(final StreamRDF out) {
+        StreamOps.sendTriplesToStream(getDataset().asDatasetGraph().getDefaultGraph(), out);
+    }
+
+	/* (non-Javadoc)
+	 * @see info.semanticsoftware.lodexporter.TripleStoreInterface#exportTriplesToFile(java.lang.String)
+	 */
+	@Override
+	public void exportTriplesToFile(final String fileName) {
+		final Object event = ExportRecorder.INSTANCE.beginFileExport();
+		try {
+			try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				if (exportEncoders == null) {
+					final NQuadsChannelWriter writer = channelWriter();
+					writer.setChannel(channel);
+					writeExport(writer);
+				} else {
+					writeExport(new ParallelNQuadsWriter(channel, this::channelWriter, exportEncoders, exportThreads,
+							ParallelNQuadsWriter.DEFAULT_CHUNK_SIZE));
+				}
+			}
+			if (event != null) {
+				ExportRecorder.INSTANCE.endFileExport(event, fileName, Files.size(Paths.get(fileName)));
+			}
+		} catch (IOException | RuntimeIOException e) {
+			LOGGER.error("Error writing triples to file: " + fileName, e);
+			throw new GateRuntimeException("Error writing triples to file: " + fileName, e);
+		}
+	}
+
+	/**
+	 * Returns the file writer of the calling thread, which may also be an
+	 * encoder thread, and registers it for {@link #printStatistics()}.
+	 */
+	private NQuadsChannelWriter channelWriter() {
+		NQuadsChannelWriter writer = channelWriter.get();
+		if (writer == null) {
+			writer = new NQuadsChannelWriter();
+			channelWriter.set(writer);
+			channelWriters.add(writer);
+		}
+		return writer;
+	}
+
+	private void writeExport(final StreamRDF writer) {
+		final StreamRDF out = deduplicator == null ? writer : deduplicator.wrap(writer);
+		out.start();
+		sendExportedTriples(out);
+		out.finish();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,252 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.jena;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+import org.apache.jena.atlas.RuntimeIOException;
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+
+/**
+ * Append-only log of the triples added to a store, in the RDF Patch text
+ * format: one patch per committed transaction, each with an <tt>H id</tt>
+ * header and an <tt>H prev</tt> header naming the patch before it, so a
+ * replica can apply the patches in order instead of reloading a full dump.
+ * 
+ * <pre>
+ * H id &lt;uuid:...&gt; .
+ * H prev &lt;uuid:...&gt; .
+ * TX .
+ * A &lt;s&gt; &lt;p&gt; &lt;o&gt; .
+ * TC .
+ * </pre>
+ * 
+ * <p>
+ * Patches are appended to segment files (<tt>patch-NNNNNNNN.rdfp</tt>) in the
+ * log directory; a new segment is started for each run (see
+ * {@link #endSegment()}) and whenever the current one exceeds the segment
+ * size, so consumed segments can be archived or deleted. The id of the last committed patch is kept in
+ * <tt>patch.head</tt>, which links the first patch of the next run to it. A
+ * patch is written while its transaction runs and forced to disk on commit;
+ * a patch without a closing <tt>TC</tt> (an interrupted run) or closed with
+ * <tt>TA</tt> must be skipped by readers. Mapping rules are not logged. The
+ * log is not thread-safe.
+ * </p>
+ */
+public final class PatchLog implements Closeable {
+
+    /** Name of the file holding the id of the last committed patch. */
+    public static final String HEAD_FILE = "patch.head";
+
+    /** Default size in bytes after which a new segment is started. */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final NodeFormatter formatter = new NodeFormatterNT();
+    private int segment;
+    private FileOutputStream segmentStream;
+    private AWriter out;
+    private String head;
+    private String patchId;
+    private boolean inPatch;
+    private long patches;
+    private long triples;
+
+    /**
+     * Opens the log in a directory, creating it if needed.
+     * 
+     * @param myDir
+     *            the log directory
+     * @param mySegmentSize
+     *            the size in bytes after which a new segment is started
+     * @throws IOException
+     *             if the directory or the head file cannot be read
+     */
+    public PatchLog(final Path myDir, final long mySegmentSize) throws IOException {
+        if (mySegmentSize < 1) {
+            throw new IllegalArgumentException("Patch segment size must be positive: " + mySegmentSize);
+        }
+        this.dir = myDir;
+        this.segmentSize = mySegmentSize;
+        Files.createDirectories(dir);
+        final Path headFile = dir.resolve(HEAD_FILE);
+        if (Files.exists(headFile)) {
+            head = new String(Files.readAllBytes(headFile), StandardCharsets.UTF_8).trim();
+        }
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "patch-*.rdfp")) {
+            for (final Path file : segments) {
+                final String name = file.getFileName().toString();
+                try {
+                    segment = Math.max(segment, Integer.parseInt(name.substring(6, name.length() - 5)));
+                } catch (NumberFormatException e) {
+                    // not a segment of this log
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the patch of a transaction, aborting a patch left open by a
+     * transaction that never ended. The patch is only written once the first
+     * triple is added, so transactions without changes leave no patch.
+     */
+    public void begin() {
+        if (inPatch) {
+            abort();
+        }
+    }
+
+    /**
+     * Logs a triple added in the current transaction.
+     * 
+     * @param triple
+     *            the added triple
+     * @throws RuntimeIOException
+     *             if the log cannot be written
+     */
+    public void add(final Triple triple) {
+        if (!inPatch) {
+            startPatch();
+        }
+        out.print("A ");
+        formatter.format(out, triple.getSubject());
+        out.print(' ');
+        formatter.format(out, triple.getPredicate());
+        out.print(' ');
+        formatter.format(out, triple.getObject());
+        out.print(" .\n");
+        triples++;
+    }
+
+    /**
+     * Commits the patch of the current transaction, if any, and forces it to
+     * disk.
+     * 
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    public void commit() throws IOException {
+        if (!inPatch) {
+            return;
+        }
+        out.print("TC .\n");
+        out.flush();
+        segmentStream.getChannel().force(false);
+        inPatch = false;
+        patches++;
+        head = patchId;
+        final Path tmpFile = dir.resolve(HEAD_FILE + ".tmp");
+        Files.write(tmpFile, head.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile, dir.resolve(HEAD_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (segmentStream.getChannel().size() >= segmentSize) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Marks the patch of the current transaction, if any, as aborted.
+     */
+    public void abort() {
+        if (inPatch) {
+            out.print("TA .\n");
+            out.flush();
+            inPatch = false;
+        }
+    }
+
+    private void startPatch() {
+        try {
+            if (out == null) {
+                segment++;
+                segmentStream = new FileOutputStream(dir.resolve(String.format("patch-%08d.rdfp", segment)).toFile());
+                out = IO.wrapUTF8(segmentStream);
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+        patchId = "uuid:" + UUID.randomUUID();
+        out.print("H id <" + patchId + "> .\n");
+        if (head != null) {
+            out.print("H prev <" + head + "> .\n");
+        }
+        out.print("TX .\n");
+        inPatch = true;
+    }
+
+    private void closeSegment() {
+        if (out != null) {
+            out.close();
+            out = null;
+            segmentStream = null;
+        }
+    }
+
+    /**
+     * Closes the current segment at the end of a run, so that it can be
+     * consumed and the first patch of the next run starts a new segment. A
+     * patch left open is aborted.
+     */
+    public void endSegment() {
+        abort();
+        closeSegment();
+    }
+
+    /**
+     * @return the number of the current (or last) segment file
+     */
+    public int getSegment() {
+        return segment;
+    }
+
+    /**
+     * Returns a summary of the log.
+     * 
+     * @return the number of patches and triples logged as String
+     */
+    public String getStatistics() {
+        return String.format("patch log: %d patches, %d triples, segment %d", patches, triples, segment);
+    }
+
+    /**
+     * Aborts an open patch and closes the current segment.
+     */
+    @Override
+    public void close() {
+        endSegment();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.jena;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+
+/**
+ * A bounded cache of parsed SPARQL queries, keyed by their text. Queries run
+ * repeatedly, such as the lookups of in-process consumers, are parsed once;
+ * variable values are passed as initial bindings of the execution instead of
+ * being formatted into the query text, so the text (and cache entry) stays the
+ * same. The least recently used queries are evicted once the cache is full.
+ * 
+ * <p>
+ * A cached {@link Query} is shared by concurrent executions and must not be
+ * modified. The cache is thread-safe.
+ * </p>
+ */
+public final class QueryCache {
+	/** Default number of queries kept in the cache. */
+	public static final int DEFAULT_CAPACITY = 100;
+
+	private final int capacity;
+	private final Map<String, Query> queries;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a cache holding at most <tt>myCapacity</tt> queries.
+	 * 
+	 * @param myCapacity
+	 *            the maximum number of queries
+	 */
+	public QueryCache(final int myCapacity) {
+		if (myCapacity < 1) {
+			throw new IllegalArgumentException("Query cache capacity must be positive: " + myCapacity);
+		}
+		this.capacity = myCapacity;
+		this.queries = new LinkedHashMap<String, Query>(Math.min(myCapacity, 128), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Query> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the parsed query for a query string, parsing it on first use.
+	 * 
+	 * @param queryString
+	 *            the SPARQL query
+	 * @return the parsed query
+	 * @throws org.apache.jena.query.QueryParseException
+	 *             if the query is invalid
+	 */
+	public synchronized Query get(final String queryString) {
+		Query query = queries.get(queryString);
+		if (query == null) {
+			misses++;
+			query = QueryFactory.create(queryString);
+			// computed lazily by the executions otherwise, which would modify
+			// the shared query
+			query.setResultVars();
+			queries.put(queryString, query);
+		} else {
+			hits++;
+		}
+		return query;
+	}
+
+	/**
+	 * Returns a summary of the cache usage.
+	 * 
+	 * @return the size and hit rate as String
+	 */
+	public synchronized String getStatistics() {
+		final long lookups = hits + misses;
+		return String.format("query cache: %d/%d queries, %d hits, %d misses (hit rate %.1f%%)", queries.size(),
+				capacity, hits, misses, lookups == 0 ? 0.0 : (double) hits * 100 / lookups);
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.jena;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.atlas.lib.DateTimeUtils;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.sse.Item;
+import org.apache.jena.sparql.sse.SSE;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * Per-predicate and per-class counts of the triples written to a TDB store
+ * during a run, which are merged into the optimizer statistics file
+ * (<tt>stats.opt</tt>) of the store. This keeps the query plans of a growing
+ * store up to date without regenerating the statistics with a full scan.
+ * 
+ * <p>
+ * Counts are added to those already in the file. As the counts are taken
+ * when the triples are exported, re-exported triples that the store already
+ * held are counted again; the optimizer only needs estimates. Entries of the
+ * file that are not predicate or class counts are kept unchanged. If the
+ * store has no statistics file yet, the new file only covers the triples
+ * written by LODeXporter; run <tt>tdbstats</tt> once to include older data.
+ * </p>
+ */
+public final class StoreStatistics {
+
+    /** Name of the statistics file in a TDB store directory. */
+    public static final String STATS_FILE = "stats.opt";
+
+    private long count;
+    private final Map<Node, Long> predicates = new HashMap<>();
+    private final Map<Node, Long> types = new HashMap<>();
+
+    /**
+     * Counts an exported triple.
+     * 
+     * @param triple
+     *            the exported triple
+     */
+    public void record(final Triple triple) {
+        count++;
+        predicates.merge(triple.getPredicate(), 1L, Long::sum);
+        if (RDF.Nodes.type.equals(triple.getPredicate()) && triple.getObject().isURI()) {
+            types.merge(triple.getObject(), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * @return the number of triples counted since the last merge
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Adds the counts to the statistics file of a store, creating the file if
+     * necessary, and resets the counts.
+     * 
+     * @param storeDir
+     *            the TDB store directory
+     * @throws IOException
+     *             if the statistics file cannot be read or written
+     */
+    public void mergeInto(final Path storeDir) throws IOException {
+        final Path statsFile = storeDir.resolve(STATS_FILE);
+        long total = count;
+        final Map<Node, Long> mergedPredicates = new HashMap<>(predicates);
+        final Map<Node, Long> mergedTypes = new HashMap<>(types);
+        final List<Item> unknown = new ArrayList<>();
+        long other = 0;
+
+        if (Files.exists(statsFile)) {
+            final Item stats;
+            try {
+                stats = SSE.readFile(statsFile.toString());
+            } catch (RuntimeException e) {
+                throw new IOException("Cannot parse " + statsFile, e);
+            }
+            if (!stats.isTagged("stats")) {
+                throw new IOException("Not a TDB statistics file: " + statsFile);
+            }
+            for (final Item entry : stats.getList().cdr()) {
+                if (entry.isTagged("meta")) {
+                    for (final Item meta : entry.getList().cdr()) {
+                        if (meta.isTagged("count")) {
+                            total += meta.getList().get(1).getInteger();
+                        }
+                    }
+                } else if (entry.isTagged("other")) {
+                    other = entry.getList().get(1).getInteger();
+                } else if (!mergeEntry(entry, mergedPredicates, mergedTypes)) {
+                    unknown.add(entry);
+                }
+            }
+        }
+
+        final Path tmpFile = storeDir.resolve(STATS_FILE + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            out.write("(stats\n  (meta\n    (timestamp "
+                    + format(NodeFactory.createLiteral(DateTimeUtils.nowAsXSDDateTimeString(),
+                            XSDDatatype.XSDdateTime))
+                    + ")\n    (run@ \"" + DateTimeUtils.nowAsString() + "\")\n    (count " + total + "))\n");
+            for (final Map.Entry<Node, Long> type : mergedTypes.entrySet()) {
+                out.write("  ((VAR " + format(RDF.Nodes.type) + " "
+                        + format(type.getKey()) + ") " + type.getValue() + ")\n");
+            }
+            for (final Map.Entry<Node, Long> predicate : mergedPredicates.entrySet()) {
+                out.write("  (" + format(predicate.getKey()) + " " + predicate.getValue() + ")\n");
+            }
+            for (final Item entry : unknown) {
+                out.write("  " + entry + "\n");
+            }
+            out.write("  (other " + other + "))\n");
+        }
+        Files.move(tmpFile, statsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        count = 0;
+        predicates.clear();
+        types.clear();
+    }
+
+    /** Writes nodes with full URIs, the file is read without prefixes. */
+    private static String format(final Node node) {
+        return FmtUtils.stringForNode(node, PrefixMapping.Factory.create());
+    }
+
+    /**
+     * Adds a <tt>(predicate count)</tt> or <tt>((VAR rdf:type class) count)</tt>
+     * entry of a statistics file to the given counts.
+     * 
+     * @return false if the entry is of another form
+     */
+    private static boolean mergeEntry(final Item entry, final Map<Node, Long> mergedPredicates,
+            final Map<Node, Long> mergedTypes) {
+        if (!entry.isList() || entry.getList().size() != 2 || !entry.getList().get(1).isNode()) {
+            return false;
+        }
+        final Item key = entry.getList().get(0);
+        final long value = entry.getList().get(1).getInteger();
+        if (key.isNodeURI()) {
+            mergedPredicates.merge(key.getNode(), value, Long::sum);
+            return true;
+        }
+        if (key.isList() && key.getList().size() == 3 && key.getList().get(0).isSymbol("VAR")
+                && key.getList().get(1).isNode() && RDF.Nodes.type.equals(key.getList().get(1).getNode())
+                && key.getList().get(2).isNodeURI()) {
+            mergedTypes.merge(key.getList().get(2).getNode(), value, Long::sum);
+            return true;
+        }
+        return false;
+    }
+}
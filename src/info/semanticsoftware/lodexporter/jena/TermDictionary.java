@@ -0,0 +1,222 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.jena;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.shared.PrefixMapping;
+
+/**
+ * A bounded dictionary of the URI terms that recur throughout an export run
+ * (document and corpus URIs, rdf:type classes, properties). Each term is
+ * created once as a Jena {@link Node} and shared by all triples using it.
+ * Once the dictionary is full, terms that were not used again since they were
+ * added or since the last eviction pass are evicted, which approximates
+ * least-recently-used eviction.
+ * 
+ * <p>
+ * Full URIs and prefixed names are kept in separate maps, so a string is
+ * never looked up as the other kind: <tt>foaf:Person</tt> passed to
+ * {@link #uri(String)} stays the URI <tt>foaf:Person</tt>, whatever
+ * {@link #expandedURI(String, PrefixMapping)} returned for it before. Both
+ * maps hold up to the capacity of the dictionary.
+ * </p>
+ * 
+ * <p>
+ * Annotation URIs are unique per annotation and should not be interned here,
+ * as they would only push the recurring terms out. The dictionary is
+ * thread-safe, and lookups do not block each other: only one thread at a
+ * time evicts, while the others go on, so a map may briefly hold more terms
+ * than the capacity.
+ * </p>
+ */
+public final class TermDictionary {
+	/** Default number of terms kept in the dictionary. */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private final int capacity;
+	private final TermMap terms = new TermMap();
+	private final TermMap prefixedTerms = new TermMap();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/** A node and whether it was used again since it was added or last passed by an eviction. */
+	private static final class Term {
+		private final Node node;
+		private volatile boolean used;
+
+		Term(final Node myNode) {
+			this.node = myNode;
+		}
+	}
+
+	/**
+	 * The terms of one kind, evicted by a clock hand: a second-chance sweep
+	 * over the map that goes on where the last eviction stopped.
+	 */
+	private final class TermMap {
+		private final ConcurrentMap<String, Term> map = new ConcurrentHashMap<>();
+		private final ReentrantLock evicting = new ReentrantLock();
+		/** Guarded by {@link #evicting}. */
+		private Iterator<Term> hand;
+
+		Node get(final String key) {
+			final Term term = map.get(key);
+			if (term == null) {
+				return null;
+			}
+			hits.increment();
+			term.used = true;
+			return term.node;
+		}
+
+		/**
+		 * Adds a term unless another thread added it first, and evicts terms
+		 * if the map is full.
+		 * 
+		 * @return the node in the map
+		 */
+		Node add(final String key, final Node node) {
+			final Term present = map.putIfAbsent(key, new Term(node));
+			if (map.size() > capacity && evicting.tryLock()) {
+				try {
+					evict();
+				} finally {
+					evicting.unlock();
+				}
+			}
+			return present == null ? node : present.node;
+		}
+
+		/**
+		 * Removes unused terms until the map fits, clearing the flags of the
+		 * used ones; a term is thus kept for one more turn of the hand after
+		 * its last use.
+		 */
+		private void evict() {
+			while (map.size() > capacity) {
+				if (hand == null || !hand.hasNext()) {
+					hand = map.values().iterator();
+				}
+				final Term term = hand.next();
+				if (term.used) {
+					term.used = false;
+				} else {
+					hand.remove();
+					evictions.increment();
+				}
+			}
+		}
+
+		int size() {
+			return map.size();
+		}
+	}
+
+	/**
+	 * Creates a dictionary holding at most <tt>myCapacity</tt> terms.
+	 * 
+	 * @param myCapacity
+	 *            the maximum number of terms
+	 */
+	public TermDictionary(final int myCapacity) {
+		if (myCapacity < 1) {
+			throw new IllegalArgumentException("Term dictionary capacity must be positive: " + myCapacity);
+		}
+		this.capacity = myCapacity;
+	}
+
+	/**
+	 * Returns the shared node for a URI.
+	 * 
+	 * @param uri
+	 *            the full URI
+	 * @return the URI node
+	 */
+	public Node uri(final String uri) {
+		final Node node = terms.get(uri);
+		if (node != null) {
+			return node;
+		}
+		misses.increment();
+		return terms.add(uri, NodeFactory.createURI(uri));
+	}
+
+	/**
+	 * Returns the shared node for a URI in prefixed form (e.g.,
+	 * <tt>foaf:Person</tt>), expanding the prefix only the first time the
+	 * term is seen. The node is shared with {@link #uri(String)} for the
+	 * expanded URI. The prefixes must not change between calls.
+	 * 
+	 * @param shortForm
+	 *            the (possibly) prefixed URI
+	 * @param prefixes
+	 *            the prefixes used for expansion
+	 * @return the node of the expanded URI
+	 */
+	public Node expandedURI(final String shortForm, final PrefixMapping prefixes) {
+		final Node node = prefixedTerms.get(shortForm);
+		if (node != null) {
+			return node;
+		}
+		return prefixedTerms.add(shortForm, uri(prefixes.expandPrefix(shortForm)));
+	}
+
+	/**
+	 * @return the number of full and prefixed terms currently in the
+	 *         dictionary
+	 */
+	public int size() {
+		return terms.size() + prefixedTerms.size();
+	}
+
+	/**
+	 * @return the fraction of lookups answered from the dictionary
+	 */
+	public double getHitRate() {
+		final long hitCount = hits.sum();
+		final long lookups = hitCount + misses.sum();
+		return lookups == 0 ? 0.0 : (double) hitCount / lookups;
+	}
+
+	/**
+	 * Returns a summary of the dictionary usage.
+	 * 
+	 * @return the size, hit rate and evictions as String
+	 */
+	public String getStatistics() {
+		return String.format(
+				"term dictionary: %d/%d terms, %d/%d prefixed names, %d hits, %d misses (hit rate %.1f%%), %d evictions",
+				terms.size(), capacity, prefixedTerms.size(), capacity, hits.sum(), misses.sum(), getHitRate() * 100,
+				evictions.sum());
+	}
+}
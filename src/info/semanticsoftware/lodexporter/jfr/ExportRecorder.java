@@ -0,0 +1,138 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.jfr;
+
+/**
+ * Records the phases of an export as JDK Flight Recorder events.
+ * 
+ * <p>
+ * Each phase is bracketed by a <tt>begin</tt> method returning an event
+ * handle and an <tt>end</tt> method committing it. The handle is null when
+ * the event is not recorded, in which case the <tt>end</tt> method does
+ * nothing; callers only measure the details of an event (such as phase
+ * durations) for a non-null handle. {@link #INSTANCE} records with JFR if the
+ * JVM provides it and does nothing otherwise, so the plugin runs on JVMs
+ * without JFR. Setting the system property
+ * <tt>lodexporter.jfr=false</tt> disables the events altogether.
+ * </p>
+ */
+public interface ExportRecorder {
+	/** The recorder of this JVM. */
+	ExportRecorder INSTANCE = Recorders.create();
+
+	/**
+	 * @return a handle for the export of a document, or null
+	 */
+	Object beginDocument();
+
+	/**
+	 * Commits the event of a document export.
+	 * 
+	 * @param event
+	 *            the handle returned by {@link #beginDocument()}
+	 * @param docURL
+	 *            the URL of the document
+	 * @param annotations
+	 *            the number of exported annotations
+	 * @param triples
+	 *            the number of exported triples
+	 * @param mappingTime
+	 *            the nanoseconds spent mapping annotations to triples
+	 * @param commitTime
+	 *            the nanoseconds spent committing transactions
+	 * @param fileTime
+	 *            the nanoseconds spent writing the export file
+	 */
+	void endDocument(Object event, String docURL, int annotations, long triples, long mappingTime,
+			long commitTime, long fileTime);
+
+	/**
+	 * @return a handle for beginning a transaction, or null
+	 */
+	Object beginTransaction();
+
+	/**
+	 * Commits the event of beginning a transaction, which includes waiting
+	 * for other writers.
+	 * 
+	 * @param event
+	 *            the handle returned by {@link #beginTransaction()}
+	 * @param write
+	 *            true for a write transaction
+	 */
+	void endTransaction(Object event, boolean write);
+
+	/**
+	 * @return a handle for committing a transaction, or null
+	 */
+	Object beginCommit();
+
+	/**
+	 * Commits the event of committing (or ending) a transaction.
+	 * 
+	 * @param event
+	 *            the handle returned by {@link #beginCommit()}
+	 * @param write
+	 *            true for a write transaction
+	 */
+	void endCommit(Object event, boolean write);
+
+	/**
+	 * @return a handle for writing an export file, or null
+	 */
+	Object beginFileExport();
+
+	/**
+	 * Commits the event of writing an export file.
+	 * 
+	 * @param event
+	 *            the handle returned by {@link #beginFileExport()}
+	 * @param file
+	 *            the name of the file
+	 * @param bytes
+	 *            the size of the file
+	 */
+	void endFileExport(Object event, String file, long bytes);
+
+	/**
+	 * @return a handle for loading the mapping rules, or null
+	 */
+	Object beginMappingLoad();
+
+	/**
+	 * Commits the event of loading the mapping rules.
+	 * 
+	 * @param event
+	 *            the handle returned by {@link #beginMappingLoad()}
+	 * @param source
+	 *            the mapping file or store directory
+	 * @param subjectRules
+	 *            the number of subject mapping rules
+	 * @param propertyRules
+	 *            the number of rules with property mappings
+	 * @param relationRules
+	 *            the number of rules with relation mappings
+	 */
+	void endMappingLoad(Object event, String source, int subjectRules, int propertyRules, int relationRules);
+}
@@ -0,0 +1,213 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * {@link ExportRecorder} emitting JDK Flight Recorder events. An event is
+ * only created and timed while a recording has it enabled; otherwise the
+ * <tt>begin</tt> methods return null after checking
+ * {@link Event#isEnabled()}, which the JIT reduces to a flag test.
+ * 
+ * <p>
+ * Loaded by name through {@link Recorders}, as it needs the
+ * <tt>jdk.jfr</tt> API.
+ * </p>
+ */
+final class JfrExportRecorder implements ExportRecorder {
+	private static final String CATEGORY = "LODeXporter";
+
+	/** The export of one document. */
+	@Name("info.semanticsoftware.lodexporter.DocumentExport")
+	@Label("Document Export")
+	@Category(CATEGORY)
+	@Description("Export of the annotations of one document")
+	static final class DocumentExportEvent extends Event {
+		@Label("Document URL")
+		String docURL;
+
+		@Label("Annotations")
+		int annotations;
+
+		@Label("Triples")
+		long triples;
+
+		@Label("Mapping Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long mappingTime;
+
+		@Label("Commit Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long commitTime;
+
+		@Label("File Export Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long fileTime;
+	}
+
+	/** Beginning a transaction, including the wait for other writers. */
+	@Name("info.semanticsoftware.lodexporter.TransactionBegin")
+	@Label("Transaction Begin")
+	@Category(CATEGORY)
+	static final class TransactionBeginEvent extends Event {
+		@Label("Write")
+		boolean write;
+	}
+
+	/** Committing a transaction. */
+	@Name("info.semanticsoftware.lodexporter.Commit")
+	@Label("Commit")
+	@Category(CATEGORY)
+	static final class CommitEvent extends Event {
+		@Label("Write")
+		boolean write;
+	}
+
+	/** Writing an export file. */
+	@Name("info.semanticsoftware.lodexporter.FileExport")
+	@Label("File Export")
+	@Category(CATEGORY)
+	static final class FileExportEvent extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+
+	/** Loading the mapping rules in init(). */
+	@Name("info.semanticsoftware.lodexporter.MappingLoad")
+	@Label("Mapping Load")
+	@Category(CATEGORY)
+	static final class MappingLoadEvent extends Event {
+		@Label("Source")
+		String source;
+
+		@Label("Subject Rules")
+		int subjectRules;
+
+		@Label("Property Rules")
+		int propertyRules;
+
+		@Label("Relation Rules")
+		int relationRules;
+	}
+
+	private static <T extends Event> T begin(final T event) {
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public Object beginDocument() {
+		return begin(new DocumentExportEvent());
+	}
+
+	@Override
+	public void endDocument(final Object event, final String docURL, final int annotations, final long triples,
+			final long mappingTime, final long commitTime, final long fileTime) {
+		if (event != null) {
+			final DocumentExportEvent e = (DocumentExportEvent) event;
+			e.docURL = docURL;
+			e.annotations = annotations;
+			e.triples = triples;
+			e.mappingTime = mappingTime;
+			e.commitTime = commitTime;
+			e.fileTime = fileTime;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginTransaction() {
+		return begin(new TransactionBeginEvent());
+	}
+
+	@Override
+	public void endTransaction(final Object event, final boolean write) {
+		if (event != null) {
+			final TransactionBeginEvent e = (TransactionBeginEvent) event;
+			e.write = write;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginCommit() {
+		return begin(new CommitEvent());
+	}
+
+	@Override
+	public void endCommit(final Object event, final boolean write) {
+		if (event != null) {
+			final CommitEvent e = (CommitEvent) event;
+			e.write = write;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginFileExport() {
+		return begin(new FileExportEvent());
+	}
+
+	@Override
+	public void endFileExport(final Object event, final String file, final long bytes) {
+		if (event != null) {
+			final FileExportEvent e = (FileExportEvent) event;
+			e.file = file;
+			e.bytes = bytes;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginMappingLoad() {
+		return begin(new MappingLoadEvent());
+	}
+
+	@Override
+	public void endMappingLoad(final Object event, final String source, final int subjectRules,
+			final int propertyRules, final int relationRules) {
+		if (event != null) {
+			final MappingLoadEvent e = (MappingLoadEvent) event;
+			e.source = source;
+			e.subjectRules = subjectRules;
+			e.propertyRules = propertyRules;
+			e.relationRules = relationRules;
+			e.commit();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.jfr;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Selects the {@link ExportRecorder} of the JVM. The JFR recorder is loaded
+ * by name, so its event classes are never loaded on a JVM without JFR.
+ */
+final class Recorders {
+	protected static final Logger LOGGER = Logger.getLogger(Recorders.class);
+
+	private static final String JFR_RECORDER = "info.semanticsoftware.lodexporter.jfr.JfrExportRecorder";
+
+	private Recorders() {
+	}
+
+	static ExportRecorder create() {
+		if (!Boolean.parseBoolean(System.getProperty("lodexporter.jfr", "true"))) {
+			return new NoopRecorder();
+		}
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (ExportRecorder) Class.forName(JFR_RECORDER).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			LOGGER.debug("JDK Flight Recorder not available, export events disabled");
+			return new NoopRecorder();
+		}
+	}
+
+	/** Recorder for JVMs without JFR. */
+	static final class NoopRecorder implements ExportRecorder {
+		@Override
+		public Object beginDocument() {
+			return null;
+		}
+
+		@Override
+		public void endDocument(final Object event, final String docURL, final int annotations, final long triples,
+				final long mappingTime, final long commitTime, final long fileTime) {
+			// not recorded
+		}
+
+		@Override
+		public Object beginTransaction() {
+			return null;
+		}
+
+		@Override
+		public void endTransaction(final Object event, final boolean write) {
+			// not recorded
+		}
+
+		@Override
+		public Object beginCommit() {
+			return null;
+		}
+
+		@Override
+		public void endCommit(final Object event, final boolean write) {
+			// not recorded
+		}
+
+		@Override
+		public Object beginFileExport() {
+			return null;
+		}
+
+		@Override
+		public void endFileExport(final Object event, final String file, final long bytes) {
+			// not recorded
+		}
+
+		@Override
+		public Object beginMappingLoad() {
+			return null;
+		}
+
+		@Override
+		public void endMappingLoad(final Object event, final String source, final int subjectRules,
+				final int propertyRules, final int relationRules) {
+			// not recorded
+		}
+	}
+}
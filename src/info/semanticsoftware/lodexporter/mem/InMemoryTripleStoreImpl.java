@@ -0,0 +1,121 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.mem;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.riot.system.StreamOps;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.graph.GraphFactory;
+
+import info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore;
+import info.semanticsoftware.lodexporter.jena.TermDictionary;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Triple store staging the triples of one document in memory for file export
+ * mode.
+ * 
+ * <p>
+ * The mapping rules are loaded once into a transactional in-memory dataset.
+ * The exported triples go to a separate plain in-memory graph, outside of any
+ * transaction, which {@link #clear()} replaces after each document. The store
+ * therefore does not need to be re-created and the mapping rules re-queried
+ * for every document. Each thread stages its document in its own graph, so
+ * concurrent documents are written to separate files. Exported files contain
+ * the mapping rules followed by the triples of the document, like with the
+ * TDB stores.
+ * </p>
+ */
+public class InMemoryTripleStoreImpl extends AbstractJenaTripleStore {
+
+    protected static final Logger LOGGER = Logger.getLogger(InMemoryTripleStoreImpl.class);
+
+    private final ThreadLocal<Graph> documentGraph = ThreadLocal.withInitial(GraphFactory::createGraphMem);
+
+    /**
+     * Creates a store sharing the given term dictionary.
+     * 
+     * @param myTerms
+     *            the term dictionary for document, class and property URIs
+     */
+    public InMemoryTripleStoreImpl(final TermDictionary myTerms) {
+        super(myTerms);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect(java.lang.String)
+     */
+    @Override
+    public final void connect(final String dir) {
+        throw new UnsupportedOperationException("The in-memory store cannot be used with an RDF store directory.");
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect()
+     */
+    @Override
+    public final void connect() {
+        setDataset(DatasetFactory.createTxnMem());
+        documentGraph.remove();
+        LOGGER.debug("[connect] Memory-based Dataset is now: " + getDataset());
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#disconnect()
+     */
+    @Override
+    public final void disconnect() {
+        getDataset().close();
+        documentGraph.remove();
+        LOGGER.debug("[disconnect] Dataset is now: " + getDataset());
+    }
+
+    /**
+     * Drops the staged triples of the last document of the calling thread,
+     * keeping the mapping rules.
+     */
+    public final void clear() {
+        documentGraph.remove();
+    }
+
+    @Override
+    protected final void addTriple(final String docURL, final Triple triple) {
+        documentGraph.get().add(triple);
+    }
+
+    @Override
+    protected final boolean isStagedPerThread() {
+        return true;
+    }
+
+    @Override
+    protected final void sendExportedTriples(final StreamRDF out) {
+        super.sendExportedTriples(out);
+        StreamOps.sendTriplesToStream(documentGraph.get(), out);
+    }
+}
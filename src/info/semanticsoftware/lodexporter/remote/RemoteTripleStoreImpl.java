@@ -0,0 +1,358 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.riot.RDFDataMgr;
+
+import gate.util.GateRuntimeException;
+import info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore;
+import info.semanticsoftware.lodexporter.jena.TermDictionary;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Triple store implementation that sends the exported triples to a remote
+ * SPARQL server, either as Graph Store Protocol POSTs of N-Triples or as
+ * SPARQL Update <tt>INSERT DATA</tt> requests.
+ * 
+ * <p>
+ * The mapping rules are loaded into a local in-memory dataset. Exported
+ * triples are buffered and sent in batches by a pool of sender threads over
+ * pooled keep-alive connections; failed requests are retried with
+ * exponential backoff. Ending a transaction sends the remaining triples and
+ * waits until all batches of the transaction have been accepted by the
+ * server.
+ * </p>
+ */
+public class RemoteTripleStoreImpl extends AbstractJenaTripleStore {
+
+    /** The protocol used to send triples to the remote store. */
+    public enum Protocol {
+        /** SPARQL 1.1 Graph Store HTTP Protocol (POST of N-Triples). */
+        GSP,
+        /** SPARQL 1.1 Update (INSERT DATA). */
+        SPARQL_UPDATE
+    }
+
+    protected static final Logger LOGGER = Logger.getLogger(RemoteTripleStoreImpl.class);
+
+    private static final ContentType NTRIPLES = ContentType.create("application/n-triples", StandardCharsets.UTF_8);
+    private static final ContentType SPARQL_UPDATE = ContentType.create("application/sparql-update",
+            StandardCharsets.UTF_8);
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+
+    private String endpoint;
+    private final Protocol protocol;
+    private final String graphName;
+    private final int batchSize;
+    private final int concurrency;
+    private final int maxRetries;
+
+    private final List<Triple> buffer = new ArrayList<>();
+    private CloseableHttpClient client;
+    private ExecutorService senders;
+    private Semaphore pendingBatches;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong triplesSent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Creates a remote store.
+     * 
+     * @param myTerms
+     *            the term dictionary for document, class and property URIs
+     * @param myEndpoint
+     *            the Graph Store Protocol or SPARQL Update endpoint URL
+     * @param myProtocol
+     *            the protocol used to send the triples
+     * @param myGraphName
+     *            the URI of the graph to add the triples to, or null for the
+     *            default graph
+     * @param myBatchSize
+     *            the number of triples per request
+     * @param myConcurrency
+     *            the number of concurrent requests (and pooled connections)
+     * @param myMaxRetries
+     *            the number of retries of a failed request
+     */
+    public RemoteTripleStoreImpl(final TermDictionary myTerms, final String myEndpoint, final Protocol myProtocol,
+            final String myGraphName, final int myBatchSize, final int myConcurrency, final int myMaxRetries) {
+        super(myTerms);
+        if (myBatchSize < 1 || myConcurrency < 1 || myMaxRetries < 0) {
+            throw new IllegalArgumentException("Invalid batch size, concurrency or retries: " + myBatchSize + ", "
+                    + myConcurrency + ", " + myMaxRetries);
+        }
+        this.endpoint = myEndpoint;
+        this.protocol = myProtocol;
+        this.graphName = myGraphName == null || myGraphName.isEmpty() ? null : myGraphName;
+        this.batchSize = myBatchSize;
+        this.concurrency = myConcurrency;
+        this.maxRetries = myMaxRetries;
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect(java.lang.String)
+     */
+    @Override
+    public final void connect(final String myEndpoint) {
+        this.endpoint = myEndpoint;
+        connect();
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect()
+     */
+    @Override
+    public final void connect() {
+        if (endpoint == null || endpoint.isEmpty()) {
+            throw new IllegalStateException("No remote endpoint set.");
+        }
+        setDataset(DatasetFactory.createTxnMem());
+        final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(concurrency);
+        connections.setDefaultMaxPerRoute(concurrency);
+        client = HttpClients.custom().setConnectionManager(connections).build();
+        senders = Executors.newFixedThreadPool(concurrency, runnable -> {
+            final Thread thread = new Thread(runnable, "LODeXporter-remote-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // at most one queued batch per sender, to bound the memory used
+        pendingBatches = new Semaphore(2 * concurrency);
+        LOGGER.debug("[connect] Remote store is now: " + printDataset());
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#disconnect()
+     */
+    @Override
+    public final void disconnect() {
+        try {
+            sendBuffer();
+            awaitBatches();
+        } finally {
+            senders.shutdownNow();
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error closing the connections to " + endpoint, e);
+            }
+            getDataset().close();
+        }
+        LOGGER.debug("[disconnect] " + printStatistics());
+    }
+
+    @Override
+    protected final void addTriple(final String docURL, final Triple triple) {
+        buffer.add(triple);
+        if (buffer.size() >= batchSize) {
+            sendBuffer();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore#endTransaction()
+     */
+    @Override
+    public final void endTransaction() {
+        try {
+            if (!isStaging()) {
+                sendBuffer();
+                awaitBatches();
+            }
+        } finally {
+            super.endTransaction();
+        }
+    }
+
+    /**
+     * Hands the buffered triples to a sender thread, blocking while the
+     * maximum number of batches is pending.
+     */
+    private void sendBuffer() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        final byte[] body = encode(buffer);
+        final int size = buffer.size();
+        buffer.clear();
+        try {
+            pendingBatches.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GateRuntimeException("Interrupted while sending triples to " + endpoint, e);
+        }
+        senders.execute(() -> {
+            try {
+                send(body);
+                batchesSent.incrementAndGet();
+                triplesSent.addAndGet(size);
+            } catch (Exception e) { // NOPMD
+                failure.compareAndSet(null, e);
+            } finally {
+                pendingBatches.release();
+            }
+        });
+    }
+
+    /**
+     * Waits until all batches handed to the senders have been sent.
+     * 
+     * @throws GateRuntimeException
+     *             if a batch could not be sent
+     */
+    private void awaitBatches() {
+        final int permits = 2 * concurrency;
+        try {
+            if (!pendingBatches.tryAcquire(permits, 1, TimeUnit.HOURS)) {
+                throw new GateRuntimeException("Timed out sending triples to " + endpoint);
+            }
+            pendingBatches.release(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GateRuntimeException("Interrupted while sending triples to " + endpoint, e);
+        }
+        final Exception error = failure.getAndSet(null);
+        if (error != null) {
+            throw new GateRuntimeException("Error sending triples to " + endpoint, error);
+        }
+    }
+
+    private byte[] encode(final List<Triple> triples) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(triples.size() * 128);
+        try {
+            if (protocol == Protocol.SPARQL_UPDATE) {
+                out.write((graphName == null ? "INSERT DATA {\n" : "INSERT DATA { GRAPH <" + graphName + "> {\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                RDFDataMgr.writeTriples(out, triples.iterator());
+                out.write((graphName == null ? "}\n" : "} }\n").getBytes(StandardCharsets.UTF_8));
+            } else {
+                RDFDataMgr.writeTriples(out, triples.iterator());
+            }
+        } catch (IOException e) {
+            throw new GateRuntimeException("Error encoding triples", e);
+        }
+        return out.toByteArray();
+    }
+
+    private String requestURI() throws UnsupportedEncodingException {
+        if (protocol == Protocol.SPARQL_UPDATE) {
+            return endpoint;
+        }
+        final String separator = endpoint.indexOf('?') < 0 ? "?" : "&";
+        return graphName == null ? endpoint + separator + "default"
+                : endpoint + separator + "graph=" + URLEncoder.encode(graphName, "UTF-8");
+    }
+
+    /**
+     * Sends one batch, retrying server errors and I/O failures with
+     * exponential backoff.
+     * 
+     * @param body
+     *            the encoded batch
+     * @throws Exception
+     *             if the batch was rejected or all retries failed
+     */
+    private void send(final byte[] body) throws Exception {
+        final HttpPost post = new HttpPost(requestURI());
+        post.setEntity(new ByteArrayEntity(body, protocol == Protocol.SPARQL_UPDATE ? SPARQL_UPDATE : NTRIPLES));
+
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 0;; attempt++) {
+            IOException error;
+            try (CloseableHttpResponse response = client.execute(post)) {
+                final int status = response.getStatusLine().getStatusCode();
+                EntityUtils.consume(response.getEntity());
+                if (status >= 200 && status < 300) {
+                    return;
+                }
+                if (status < 500 && status != 429) {
+                    // the request itself was rejected, retrying will not help
+                    throw new GateRuntimeException("Triples rejected by " + endpoint + ": HTTP " + status);
+                }
+                error = new IOException("HTTP " + status + " from " + endpoint);
+            } catch (IOException e) {
+                error = e;
+            }
+            if (attempt >= maxRetries) {
+                throw error;
+            }
+            retries.incrementAndGet();
+            LOGGER.warn("Retrying batch in " + backoff + " ms: " + error.getMessage());
+            Thread.sleep(backoff);
+            backoff *= 2;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#exportTriplesToFile(java.lang.String)
+     */
+    @Override
+    public final void exportTriplesToFile(final String fileName) {
+        throw new UnsupportedOperationException("The remote store does not export triples to files.");
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#printDataset()
+     */
+    @Override
+    public final String printDataset() {
+        return "remote store " + endpoint + " (" + protocol + (graphName == null ? "" : ", graph " + graphName) + ")";
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore#printStatistics()
+     */
+    @Override
+    public final String printStatistics() {
+        return super.printStatistics() + "; remote store: " + triplesSent.get() + " triples in " + batchesSent.get()
+                + " batches, " + retries.get() + " retries";
+    }
+}
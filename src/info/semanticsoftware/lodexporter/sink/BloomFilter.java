@@ -0,0 +1,103 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.sink;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size Bloom filter over 64-bit hashes. The filter is sized from the
+ * expected number of insertions and the acceptable false-positive rate, and
+ * derives its probe positions from the hash and a rotation of it
+ * (Kirsch-Mitzenmacher double hashing).
+ */
+final class BloomFilter {
+	private final long[] bits;
+	private final long numBits;
+	private final int numHashes;
+
+	/**
+	 * @param expectedInsertions
+	 *            the number of distinct elements the filter is sized for
+	 * @param falsePositiveRate
+	 *            the false-positive rate at the expected number of insertions
+	 */
+	BloomFilter(final long expectedInsertions, final double falsePositiveRate) {
+		if (expectedInsertions <= 0) {
+			throw new IllegalArgumentException("Expected insertions must be positive: " + expectedInsertions);
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("False-positive rate must be in (0, 1): " + falsePositiveRate);
+		}
+		final double ln2 = Math.log(2);
+		final long wantedBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+		bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (wantedBits + 63) / 64)];
+		numBits = bits.length * 64L;
+		numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * ln2));
+	}
+
+	/**
+	 * Adds an element to the filter.
+	 * 
+	 * @param hash
+	 *            the 64-bit hash of the element
+	 * @return true if the element was possibly already contained, false if it
+	 *         definitely was not
+	 */
+	boolean put(final long hash) {
+		final long h2 = Long.rotateLeft(hash, 32) | 1;
+		boolean present = true;
+		for (int i = 1; i <= numHashes; i++) {
+			final long bit = ((hash + i * h2) & Long.MAX_VALUE) % numBits;
+			final int word = (int) (bit >>> 6);
+			final long mask = 1L << bit;
+			if ((bits[word] & mask) == 0) {
+				present = false;
+				bits[word] |= mask;
+			}
+		}
+		return present;
+	}
+
+	/**
+	 * @return the size of the filter in bits
+	 */
+	long bitSize() {
+		return numBits;
+	}
+
+	/**
+	 * @return the number of probes per element
+	 */
+	int hashCount() {
+		return numHashes;
+	}
+
+	/**
+	 * Removes all elements.
+	 */
+	void clear() {
+		Arrays.fill(bits, 0L);
+	}
+}
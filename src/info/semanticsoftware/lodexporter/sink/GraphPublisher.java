@@ -0,0 +1,296 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.sink;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.jena.graph.Graph;
+import org.apache.log4j.Logger;
+
+/**
+ * Hands the triples of each exported document to consumers in the same JVM,
+ * such as downstream PRs, without writing and re-parsing a file.
+ * 
+ * <p>
+ * Each {@link Subscriber} has a bounded buffer of documents and its own
+ * delivery thread, so a slow subscriber does not hold up the others.
+ * {@link #publish(String, String, Graph)} blocks while the buffer of a
+ * subscriber is full, which slows the export down to the pace of its slowest
+ * consumer instead of queuing graphs without bound;
+ * {@link Subscription#flush()} waits for a subscriber to catch up. A
+ * subscriber throwing an exception is cancelled. The graphs are shared by all
+ * subscribers and must not be modified. The publisher is thread-safe.
+ * </p>
+ */
+public final class GraphPublisher implements AutoCloseable {
+	/** Default number of documents buffered per subscriber. */
+	public static final int DEFAULT_BUFFER_SIZE = 16;
+
+	protected static final Logger LOGGER = Logger.getLogger(GraphPublisher.class);
+
+	/**
+	 * Consumer of the exported documents. The methods of a subscriber are
+	 * called on its delivery thread, one at a time.
+	 */
+	public interface Subscriber {
+		/**
+		 * Receives the triples of an exported document.
+		 * 
+		 * @param docURL
+		 *            the URL of the document
+		 * @param sessionID
+		 *            the export session of the document
+		 * @param graph
+		 *            the exported triples (read-only)
+		 */
+		void onDocument(String docURL, String sessionID, Graph graph);
+
+		/**
+		 * Called by {@link Subscription#flush()} after the documents
+		 * published before, e.g., to commit or sync what was received.
+		 */
+		default void onFlush() {
+		}
+
+		/**
+		 * Called after the last document, when the publisher is closed.
+		 */
+		void onComplete();
+	}
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private volatile boolean closed;
+
+	/**
+	 * Registers a subscriber with a buffer of
+	 * {@link #DEFAULT_BUFFER_SIZE} documents.
+	 * 
+	 * @param subscriber
+	 *            the subscriber
+	 * @return the subscription, for cancelling it
+	 */
+	public Subscription subscribe(final Subscriber subscriber) {
+		return subscribe(subscriber, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Registers a subscriber, which receives the documents published from now
+	 * on.
+	 * 
+	 * @param subscriber
+	 *            the subscriber
+	 * @param bufferSize
+	 *            the number of documents buffered for the subscriber
+	 * @return the subscription, for cancelling it
+	 */
+	public Subscription subscribe(final Subscriber subscriber, final int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+		}
+		if (closed) {
+			throw new IllegalStateException("The publisher is closed");
+		}
+		final Subscription subscription = new Subscription(subscriber, bufferSize);
+		subscriptions.add(subscription);
+		subscription.thread.start();
+		return subscription;
+	}
+
+	/**
+	 * Hands a document to all subscribers, waiting for room in their buffers.
+	 * 
+	 * @param docURL
+	 *            the URL of the document
+	 * @param sessionID
+	 *            the export session of the document
+	 * @param graph
+	 *            the exported triples
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a subscriber
+	 */
+	public void publish(final String docURL, final String sessionID, final Graph graph) throws InterruptedException {
+		final Item item = new Item(docURL, sessionID, graph);
+		for (final Subscription subscription : subscriptions) {
+			subscription.offer(item);
+		}
+	}
+
+	/**
+	 * Completes all subscriptions after their buffered documents have been
+	 * delivered, and waits for the delivery threads to finish.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (final Subscription subscription : subscriptions) {
+			subscription.complete();
+		}
+		for (final Subscription subscription : subscriptions) {
+			try {
+				subscription.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		subscriptions.clear();
+	}
+
+	/** A published document, or a flush request if the latch is set. */
+	private static final class Item {
+		private final String docURL;
+		private final String sessionID;
+		private final Graph graph;
+		private final CountDownLatch flushed;
+
+		Item(final String myDocURL, final String mySessionID, final Graph myGraph) {
+			this(myDocURL, mySessionID, myGraph, null);
+		}
+
+		Item(final String myDocURL, final String mySessionID, final Graph myGraph, final CountDownLatch myFlushed) {
+			this.docURL = myDocURL;
+			this.sessionID = mySessionID;
+			this.graph = myGraph;
+			this.flushed = myFlushed;
+		}
+	}
+
+	/** Marks the end of a subscription in its buffer. */
+	private static final Item END = new Item(null, null, null);
+
+	/**
+	 * The registration of a {@link Subscriber}, with its buffer and delivery
+	 * thread.
+	 */
+	public final class Subscription {
+		private final Subscriber subscriber;
+		private final BlockingQueue<Item> buffer;
+		private final Thread thread;
+		private volatile boolean cancelled;
+
+		private Subscription(final Subscriber mySubscriber, final int bufferSize) {
+			this.subscriber = mySubscriber;
+			this.buffer = new ArrayBlockingQueue<>(bufferSize);
+			this.thread = new Thread(this::deliver, "lodexporter-subscriber");
+			this.thread.setDaemon(true);
+		}
+
+		private void offer(final Item item) throws InterruptedException {
+			if (!cancelled) {
+				buffer.put(item);
+			}
+		}
+
+		private void complete() {
+			if (!cancelled) {
+				try {
+					buffer.put(END);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Waits until the documents published so far have been delivered to
+		 * the subscriber and {@link Subscriber#onFlush()} has returned.
+		 * 
+		 * @return false if the subscription was cancelled, e.g., after an
+		 *         error of the subscriber
+		 * @throws InterruptedException
+		 *             if interrupted while waiting
+		 */
+		public boolean flush() throws InterruptedException {
+			final CountDownLatch flushed = new CountDownLatch(1);
+			offer(new Item(null, null, null, flushed));
+			if (!cancelled) {
+				flushed.await();
+			}
+			return !cancelled;
+		}
+
+		/**
+		 * Stops the delivery to the subscriber; documents still buffered are
+		 * dropped and {@link Subscriber#onComplete()} is not called.
+		 */
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+			drop();
+			thread.interrupt();
+		}
+
+		/**
+		 * Drops the buffered items, releasing a publisher waiting for room in
+		 * the buffer and any pending flush.
+		 */
+		private void drop() {
+			for (Item item = buffer.poll(); item != null; item = buffer.poll()) {
+				if (item.flushed != null) {
+					item.flushed.countDown();
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return subscriber.toString();
+		}
+
+		private void deliver() {
+			try {
+				while (!cancelled) {
+					final Item item = buffer.take();
+					if (item == END) {
+						subscriber.onComplete();
+						return;
+					}
+					if (item.flushed != null) {
+						try {
+							subscriber.onFlush();
+						} catch (RuntimeException e) {
+							cancelled = true; // before releasing the flush
+							throw e;
+						} finally {
+							item.flushed.countDown();
+						}
+					} else {
+						subscriber.onDocument(item.docURL, item.sessionID, item.graph);
+					}
+				}
+			} catch (InterruptedException e) {
+				// cancelled
+			} catch (RuntimeException e) {
+				LOGGER.error("Cancelling subscriber " + subscriber + " after an error", e);
+				cancelled = true;
+				subscriptions.remove(this);
+				drop();
+			}
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.sink;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.NoSuchElementException;
+
+import org.apache.jena.atlas.RuntimeIOException;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+import org.rdfhdt.hdt.enums.ResultEstimationType;
+import org.rdfhdt.hdt.exceptions.ParserException;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.hdt.HDTManager;
+import org.rdfhdt.hdt.options.HDTSpecification;
+import org.rdfhdt.hdt.triples.IteratorTripleString;
+import org.rdfhdt.hdt.triples.TripleString;
+
+/**
+ * Sink collecting the triples exported during a run into an HDT file, a
+ * compressed RDF format that can be queried without loading it into a store.
+ * 
+ * <p>
+ * The triples are spilled to a temporary file next to the HDT file while the
+ * run goes on, one triple per line with its terms in HDT's string form (URIs
+ * without brackets, literals in N-Triples syntax) separated by tabs, which
+ * cannot occur unescaped in either. {@link #finishRun(String)} builds the HDT
+ * file from the spill file and deletes it; duplicate triples are removed while
+ * building. HDT has no named graphs, so quads are stored as triples. The sink
+ * is not thread-safe.
+ * </p>
+ */
+public final class HDTSink implements StreamRDF {
+	private final Path hdtFile;
+	private final Path spillFile;
+	private BufferedWriter spill;
+	private long triples;
+
+	/**
+	 * Creates a sink.
+	 * 
+	 * @param myHdtFile
+	 *            the HDT file written at the end of each run
+	 */
+	public HDTSink(final Path myHdtFile) {
+		this.hdtFile = myHdtFile;
+		this.spillFile = myHdtFile.resolveSibling(myHdtFile.getFileName() + ".spill");
+	}
+
+	/**
+	 * Discards the triples of a previous, unfinished run.
+	 */
+	public void startRun() {
+		closeSpill();
+		triples = 0;
+		try {
+			Files.deleteIfExists(spillFile);
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+
+	@Override
+	public void start() {
+		// the spill file is opened with the first triple of a run
+	}
+
+	@Override
+	public void triple(final Triple triple) {
+		add(triple.getSubject(), triple.getPredicate(), triple.getObject());
+	}
+
+	@Override
+	public void quad(final Quad quad) {
+		add(quad.getSubject(), quad.getPredicate(), quad.getObject());
+	}
+
+	private void add(final Node subject, final Node predicate, final Node object) {
+		try {
+			if (spill == null) {
+				spill = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8);
+			}
+			spill.write(term(subject));
+			spill.write('\t');
+			spill.write(term(predicate));
+			spill.write('\t');
+			spill.write(term(object));
+			spill.write('\n');
+			triples++;
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+
+	private static String term(final Node node) {
+		if (node.isURI()) {
+			return node.getURI();
+		}
+		// literals and blank nodes in N-Triples syntax
+		return NodeFmtLib.str(node);
+	}
+
+	@Override
+	public void base(final String base) {
+		// not used by HDT
+	}
+
+	@Override
+	public void prefix(final String prefix, final String iri) {
+		// not used by HDT
+	}
+
+	@Override
+	public void finish() {
+		// triples are collected until the end of the run
+	}
+
+	/**
+	 * @return the number of triples collected in the current run
+	 */
+	public long getTriples() {
+		return triples;
+	}
+
+	/**
+	 * Builds the HDT file from the triples of the run and deletes the spill
+	 * file. A run without triples leaves any previous HDT file unchanged.
+	 * 
+	 * @param baseURI
+	 *            the base URI recorded in the HDT header
+	 * @throws IOException
+	 *             if the spill file cannot be read or the HDT file written
+	 */
+	public void finishRun(final String baseURI) throws IOException {
+		closeSpill();
+		if (triples == 0) {
+			return;
+		}
+		final Path tmpFile = hdtFile.resolveSibling(hdtFile.getFileName() + ".tmp");
+		try (SpillIterator it = new SpillIterator(); HDT hdt = HDTManager.generateHDT(it, baseURI,
+				new HDTSpecification(), null)) {
+			hdt.saveToHDT(tmpFile.toString(), null);
+		} catch (ParserException | UncheckedIOException e) {
+			throw new IOException("Cannot build HDT file " + hdtFile, e);
+		}
+		Files.move(tmpFile, hdtFile, StandardCopyOption.REPLACE_EXISTING);
+		Files.delete(spillFile);
+		triples = 0;
+	}
+
+	private void closeSpill() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				throw new RuntimeIOException(e);
+			} finally {
+				spill = null;
+			}
+		}
+	}
+
+	/** Reads the triples back from the spill file. */
+	private final class SpillIterator implements IteratorTripleString, AutoCloseable {
+		private BufferedReader reader;
+		private String line;
+
+		SpillIterator() throws IOException {
+			goToStart();
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (line == null) {
+				try {
+					line = reader.readLine();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return line != null;
+		}
+
+		@Override
+		public TripleString next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final int p = line.indexOf('\t');
+			final int o = line.indexOf('\t', p + 1);
+			final TripleString triple = new TripleString(line.substring(0, p), line.substring(p + 1, o),
+					line.substring(o + 1));
+			line = null;
+			return triple;
+		}
+
+		@Override
+		public boolean hasPrevious() {
+			return false;
+		}
+
+		@Override
+		public TripleString previous() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void goToStart() {
+			try {
+				close();
+				reader = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			line = null;
+		}
+
+		@Override
+		public long estimatedNumResults() {
+			return triples;
+		}
+
+		@Override
+		public ResultEstimationType numResultEstimation() {
+			return ResultEstimationType.EXACT;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+				reader = null;
+			}
+		}
+	}
+}
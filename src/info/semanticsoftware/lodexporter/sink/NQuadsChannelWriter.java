@@ -0,0 +1,366 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jena.JenaRuntime;
+import org.apache.jena.atlas.RuntimeIOException;
+import org.apache.jena.datatypes.RDFDatatype;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.vocabulary.RDF;
+
+/**
+ * N-Triples/N-Quads sink writing directly into a {@link ByteBuffer} that is
+ * drained to a channel. The escaped UTF-8 bytes of recurring terms are cached:
+ * predicates, graph names and <tt>rdf:type</tt> classes as whole terms, all
+ * other URIs by their namespace (up to the last <tt>/</tt> or <tt>#</tt>), so
+ * that only literals, blank nodes and the local names of annotation URIs are
+ * encoded per statement. The output is byte-identical to that of
+ * {@link org.apache.jena.riot.system.StreamRDFLib#writer(java.io.OutputStream)}.
+ * 
+ * <p>
+ * The writer, its buffer and its caches are meant to be reused for all files
+ * of an export run: set the channel with {@link #setChannel} before
+ * {@link #start()}; {@link #finish()} writes out the buffer but does not close
+ * the channel. The writer is not thread-safe.
+ * </p>
+ */
+public final class NQuadsChannelWriter implements StreamRDF {
+	/** Default number of whole terms and namespaces kept in the caches. */
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+
+	/** Default size of the output buffer in bytes. */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] STATEMENT_END = " .\n".getBytes(StandardCharsets.UTF_8);
+
+	private final ByteBuffer buffer;
+	private final Map<Node, byte[]> terms;
+	private final Map<String, byte[]> namespaces;
+	private final Map<RDFDatatype, byte[]> datatypes = new HashMap<>();
+	private final Node rdfType = RDF.type.asNode();
+	private WritableByteChannel channel;
+	private String lastNamespace;
+	private byte[] lastNamespaceBytes;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a writer with the default cache and buffer sizes.
+	 */
+	public NQuadsChannelWriter() {
+		this(DEFAULT_CACHE_SIZE, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a writer.
+	 * 
+	 * @param cacheSize
+	 *            the maximum number of whole terms, and of namespaces, whose
+	 *            bytes are cached
+	 * @param bufferSize
+	 *            the size of the direct output buffer in bytes
+	 */
+	public NQuadsChannelWriter(final int cacheSize, final int bufferSize) {
+		if (cacheSize < 1 || bufferSize < 16) {
+			throw new IllegalArgumentException("Invalid cache or buffer size: " + cacheSize + ", " + bufferSize);
+		}
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.terms = lruMap(cacheSize);
+		this.namespaces = lruMap(cacheSize);
+	}
+
+	private static <K> Map<K, byte[]> lruMap(final int capacity) {
+		return new LinkedHashMap<K, byte[]>(Math.min(capacity, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<K, byte[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Sets the channel the next file is written to.
+	 * 
+	 * @param myChannel
+	 *            the channel, which is not closed by the writer
+	 */
+	public void setChannel(final WritableByteChannel myChannel) {
+		this.channel = myChannel;
+	}
+
+	@Override
+	public void start() {
+		if (channel == null) {
+			throw new IllegalStateException("No channel set");
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public void triple(final Triple triple) {
+		writeStatement(triple.getSubject(), triple.getPredicate(), triple.getObject(), null);
+	}
+
+	@Override
+	public void quad(final Quad quad) {
+		final Node graph = quad.getGraph();
+		writeStatement(quad.getSubject(), quad.getPredicate(), quad.getObject(),
+				graph == null || Quad.isDefaultGraph(graph) ? null : graph);
+	}
+
+	@Override
+	public void base(final String base) {
+		// not used by N-Triples and N-Quads
+	}
+
+	@Override
+	public void prefix(final String prefix, final String iri) {
+		// not used by N-Triples and N-Quads
+	}
+
+	@Override
+	public void finish() {
+		drain();
+		channel = null;
+	}
+
+	/**
+	 * Returns a summary of the cache usage.
+	 * 
+	 * @return the cache sizes and hit rate as String
+	 */
+	public String getStatistics() {
+		final long lookups = hits + misses;
+		return String.format("N-Quads writer: %d terms, %d namespaces cached, %d hits, %d misses (hit rate %.1f%%)",
+				terms.size(), namespaces.size(), hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+	}
+
+	private void writeStatement(final Node subject, final Node predicate, final Node object, final Node graph) {
+		writeNode(subject, false);
+		put((byte) ' ');
+		writeNode(predicate, true);
+		put((byte) ' ');
+		writeNode(object, predicate.equals(rdfType));
+		if (graph != null) {
+			put((byte) ' ');
+			writeNode(graph, true);
+		}
+		put(STATEMENT_END);
+	}
+
+	private void writeNode(final Node node, final boolean recurring) {
+		if (node.isURI()) {
+			if (recurring) {
+				put(termBytes(node));
+			} else {
+				writeURI(node.getURI());
+			}
+		} else if (node.isLiteral()) {
+			writeLiteral(node);
+		} else if (node.isBlank()) {
+			putString("_:");
+			putString(NodeFmtLib.encodeBNodeLabel(node.getBlankNodeLabel()));
+		} else {
+			throw new RuntimeIOException(new IOException("Cannot write node in N-Quads: " + node));
+		}
+	}
+
+	private byte[] termBytes(final Node node) {
+		byte[] bytes = terms.get(node);
+		if (bytes == null) {
+			misses++;
+			bytes = ("<" + node.getURI() + ">").getBytes(StandardCharsets.UTF_8);
+			terms.put(node, bytes);
+		} else {
+			hits++;
+		}
+		return bytes;
+	}
+
+	private void writeURI(final String uri) {
+		final int split = Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('#')) + 1;
+		if (split == 0) {
+			put((byte) '<');
+			putString(uri, 0);
+		} else {
+			if (lastNamespace != null && lastNamespace.length() == split && uri.startsWith(lastNamespace)) {
+				hits++;
+			} else {
+				lastNamespace = uri.substring(0, split);
+				lastNamespaceBytes = namespaces.get(lastNamespace);
+				if (lastNamespaceBytes == null) {
+					misses++;
+					lastNamespaceBytes = ("<" + lastNamespace).getBytes(StandardCharsets.UTF_8);
+					namespaces.put(lastNamespace, lastNamespaceBytes);
+				} else {
+					hits++;
+				}
+			}
+			put(lastNamespaceBytes);
+			putString(uri, split);
+		}
+		put((byte) '>');
+	}
+
+	private void writeLiteral(final Node node) {
+		final String lang = node.getLiteralLanguage();
+		final RDFDatatype datatype = node.getLiteralDatatype();
+		put((byte) '"');
+		putEscaped(node.getLiteralLexicalForm());
+		put((byte) '"');
+		if (lang != null && !lang.isEmpty()) {
+			put((byte) '@');
+			putString(lang);
+		} else if (datatype != null && !(JenaRuntime.isRDF11 && datatype.equals(XSDDatatype.XSDstring))) {
+			byte[] bytes = datatypes.get(datatype);
+			if (bytes == null) {
+				bytes = ("^^<" + datatype.getURI() + ">").getBytes(StandardCharsets.UTF_8);
+				datatypes.put(datatype, bytes);
+			}
+			put(bytes);
+		}
+	}
+
+	/** Writes a string as in an N-Triples string literal, without quotes. */
+	private void putEscaped(final String value) {
+		final int length = value.length();
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				putString("\\\\");
+				break;
+			case '"':
+				putString("\\\"");
+				break;
+			case '\n':
+				putString("\\n");
+				break;
+			case '\r':
+				putString("\\r");
+				break;
+			case '\t':
+				putString("\\t");
+				break;
+			case '\f':
+				putString("\\f");
+				break;
+			default:
+				i = putChar(value, i, c);
+			}
+		}
+	}
+
+	private void putString(final String value) {
+		putString(value, 0);
+	}
+
+	private void putString(final String value, final int from) {
+		final int length = value.length();
+		for (int i = from; i < length; i++) {
+			i = putChar(value, i, value.charAt(i));
+		}
+	}
+
+	/**
+	 * Encodes one character as UTF-8, including the low surrogate following a
+	 * high surrogate.
+	 * 
+	 * @return the index of the last character consumed
+	 */
+	private int putChar(final String value, final int i, final char c) {
+		if (buffer.remaining() < 4) {
+			drain();
+		}
+		if (c < 0x80) {
+			buffer.put((byte) c);
+		} else if (c < 0x800) {
+			buffer.put((byte) (0xc0 | (c >> 6)));
+			buffer.put((byte) (0x80 | (c & 0x3f)));
+		} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+				&& Character.isLowSurrogate(value.charAt(i + 1))) {
+			final int cp = Character.toCodePoint(c, value.charAt(i + 1));
+			buffer.put((byte) (0xf0 | (cp >> 18)));
+			buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+			buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+			buffer.put((byte) (0x80 | (cp & 0x3f)));
+			return i + 1;
+		} else if (Character.isSurrogate(c)) {
+			// unpaired surrogate: not representable in UTF-8
+			buffer.put((byte) '?');
+		} else {
+			buffer.put((byte) (0xe0 | (c >> 12)));
+			buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+			buffer.put((byte) (0x80 | (c & 0x3f)));
+		}
+		return i;
+	}
+
+	private void put(final byte b) {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put(b);
+	}
+
+	private void put(final byte[] bytes) {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			final int n = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, n);
+			offset += n;
+		}
+	}
+
+	private void drain() {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		} finally {
+			buffer.clear();
+		}
+	}
+}
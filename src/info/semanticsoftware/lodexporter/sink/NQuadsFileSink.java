@@ -0,0 +1,83 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.sink;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.jena.atlas.RuntimeIOException;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.system.StreamOps;
+
+/**
+ * Subscriber writing each published document to an N-Quads file named after
+ * its export session, like the file export mode, but without the mapping
+ * rules. Used to dump the documents exported into a triple store.
+ */
+public final class NQuadsFileSink implements GraphPublisher.Subscriber {
+	private final Path dir;
+	private final NQuadsChannelWriter writer = new NQuadsChannelWriter();
+	private long documents;
+
+	/**
+	 * Creates a sink writing to a directory, creating it if necessary.
+	 * 
+	 * @param myDir
+	 *            the directory receiving the files
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	public NQuadsFileSink(final Path myDir) throws IOException {
+		this.dir = Files.createDirectories(myDir);
+	}
+
+	@Override
+	public void onDocument(final String docURL, final String sessionID, final Graph graph) {
+		final Path file = dir.resolve(sessionID + ".nq");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writer.setChannel(channel);
+			writer.start();
+			StreamOps.sendTriplesToStream(graph, writer);
+			writer.finish();
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+		documents++;
+	}
+
+	@Override
+	public void onComplete() {
+		// every file is complete once written
+	}
+
+	@Override
+	public String toString() {
+		return "N-Quads sink " + dir + " (" + documents + " documents)";
+	}
+}
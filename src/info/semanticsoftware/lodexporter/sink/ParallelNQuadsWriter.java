@@ -0,0 +1,235 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.apache.jena.atlas.RuntimeIOException;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * N-Triples/N-Quads sink that encodes on several threads. Incoming triples
+ * and quads are cut into chunks of consecutive statements; a chunk is only
+ * closed where the subject changes, so the statements of a subject stay
+ * together. The chunks are encoded in parallel and written to the output in
+ * their original order, so the output is byte-identical to that of
+ * {@link StreamRDFLib#writer(java.io.OutputStream)}.
+ * 
+ * <p>
+ * The statements are received on the calling thread, which matters for
+ * stores whose transactions are bound to a thread, such as TDB. At most
+ * twice as many chunks as encoder threads are pending at any time. A stream
+ * smaller than one chunk is encoded on the calling thread straight into the
+ * output channel. Each thread encodes with its own
+ * {@link NQuadsChannelWriter}, handed out by the supplier of the caller, so
+ * that the term caches are kept across files and can be reported.
+ * </p>
+ */
+public final class ParallelNQuadsWriter implements StreamRDF {
+	/** Default number of statements per chunk. */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	private final WritableByteChannel out;
+	private final Supplier<NQuadsChannelWriter> encoder;
+	private final ExecutorService encoders;
+	private final int maxPending;
+	private final int chunkSize;
+	private final Deque<Future<List<ByteBuffer>>> pending = new ArrayDeque<>();
+	private List<Quad> chunk;
+	private Node lastSubject;
+	private long chunks;
+
+	/**
+	 * Creates a writer.
+	 * 
+	 * @param myOut
+	 *            the output channel, which is not closed by the writer
+	 * @param myEncoder
+	 *            returns the encoder of the thread calling it
+	 * @param myEncoders
+	 *            the threads encoding the chunks
+	 * @param threads
+	 *            the number of threads of the encoder pool
+	 * @param myChunkSize
+	 *            the number of statements per chunk
+	 */
+	public ParallelNQuadsWriter(final WritableByteChannel myOut, final Supplier<NQuadsChannelWriter> myEncoder,
+			final ExecutorService myEncoders, final int threads, final int myChunkSize) {
+		this.out = myOut;
+		this.encoder = myEncoder;
+		this.encoders = myEncoders;
+		this.maxPending = 2 * Math.max(1, threads);
+		this.chunkSize = myChunkSize;
+		this.chunk = new ArrayList<>(myChunkSize);
+	}
+
+	@Override
+	public void start() {
+		// N-Triples and N-Quads have no header
+	}
+
+	@Override
+	public void triple(final Triple triple) {
+		add(Quad.create(Quad.tripleInQuad, triple), triple.getSubject());
+	}
+
+	@Override
+	public void quad(final Quad quad) {
+		add(quad, quad.getSubject());
+	}
+
+	private void add(final Quad quad, final Node subject) {
+		if (chunk.size() >= chunkSize && !subject.equals(lastSubject)) {
+			submit();
+		}
+		chunk.add(quad);
+		lastSubject = subject;
+	}
+
+	@Override
+	public void base(final String base) {
+		// not used by N-Triples and N-Quads
+	}
+
+	@Override
+	public void prefix(final String prefix, final String iri) {
+		// not used by N-Triples and N-Quads
+	}
+
+	@Override
+	public void finish() {
+		if (chunks == 0) {
+			// a single chunk: no need for another thread or buffer
+			encode(chunk, out);
+		} else {
+			if (!chunk.isEmpty()) {
+				submit();
+			}
+			while (!pending.isEmpty()) {
+				write(next());
+			}
+		}
+		chunk = new ArrayList<>(chunkSize);
+	}
+
+	/**
+	 * @return the number of chunks encoded in parallel so far
+	 */
+	public long getChunks() {
+		return chunks;
+	}
+
+	private void submit() {
+		final List<Quad> full = chunk;
+		chunk = new ArrayList<>(chunkSize);
+		if (pending.size() >= maxPending) {
+			write(next());
+		}
+		pending.addLast(encoders.submit(() -> {
+			final ChunkChannel bytes = new ChunkChannel();
+			encode(full, bytes);
+			return bytes.buffers;
+		}));
+		chunks++;
+	}
+
+	private List<ByteBuffer> next() {
+		try {
+			return pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeIOException(new IOException("Interrupted while encoding triples", e));
+		} catch (ExecutionException e) {
+			throw new RuntimeIOException(new IOException("Error encoding triples", e.getCause()));
+		}
+	}
+
+	private void write(final List<ByteBuffer> buffers) {
+		try {
+			for (final ByteBuffer buffer : buffers) {
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+
+	private void encode(final List<Quad> quads, final WritableByteChannel channel) {
+		final NQuadsChannelWriter writer = encoder.get();
+		writer.setChannel(channel);
+		writer.start();
+		for (final Quad quad : quads) {
+			if (quad.isTriple()) {
+				writer.triple(quad.asTriple());
+			} else {
+				writer.quad(quad);
+			}
+		}
+		writer.finish();
+	}
+
+	/**
+	 * Keeps the bytes of an encoded chunk until the chunks before it have
+	 * been written, one buffer per drain of the encoder.
+	 */
+	private static final class ChunkChannel implements WritableByteChannel {
+		private final List<ByteBuffer> buffers = new ArrayList<>();
+
+		@Override
+		public int write(final ByteBuffer src) {
+			final int n = src.remaining();
+			final ByteBuffer copy = ByteBuffer.allocate(n);
+			copy.put(src);
+			copy.flip();
+			buffers.add(copy);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			// nothing to release
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.sink;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.jena.atlas.RuntimeIOException;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Sink collecting the statements exported during a run into one sorted,
+ * duplicate-free N-Quads file, which bulk loaders ingest faster than
+ * unsorted input and which gives reproducible dumps.
+ * 
+ * <p>
+ * The statements are kept in memory as N-Quads lines until the buffer
+ * reaches its size limit; the buffer is then sorted and spilled to a run
+ * file next to the output file. {@link #finishRun()} merges the runs into the
+ * output file, dropping duplicates along the way, and deletes them. At most
+ * {@link #MAX_FAN_IN} runs are merged at once; more runs are merged in several
+ * passes. Lines are ordered by {@link String#compareTo(String)}, so the
+ * statements of a subject are adjacent. The sink is not thread-safe.
+ * </p>
+ */
+public final class SortedNQuadsSink implements StreamRDF {
+	/** Default size of the in-memory buffer in bytes. */
+	public static final long DEFAULT_BUFFER_SIZE = 64L * 1024 * 1024;
+
+	/** Maximum number of runs merged at once. */
+	public static final int MAX_FAN_IN = 64;
+
+	/** Estimated heap overhead of a buffered line besides its characters. */
+	private static final int LINE_OVERHEAD = 64;
+
+	private final Path outFile;
+	private final long bufferSize;
+	private final List<String> buffer = new ArrayList<>();
+	private final List<Path> runs = new ArrayList<>();
+	private long buffered;
+	private long statements;
+	private long written;
+	private long spills;
+
+	/**
+	 * Creates a sink.
+	 * 
+	 * @param myOutFile
+	 *            the sorted N-Quads file written at the end of each run
+	 * @param myBufferSize
+	 *            the estimated heap size in bytes of the statements buffered
+	 *            before a run is spilled
+	 */
+	public SortedNQuadsSink(final Path myOutFile, final long myBufferSize) {
+		if (myBufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be positive: " + myBufferSize);
+		}
+		this.outFile = myOutFile;
+		this.bufferSize = myBufferSize;
+	}
+
+	/**
+	 * Discards the statements of a previous, unfinished run, including run
+	 * files left behind by an earlier process.
+	 */
+	public void startRun() {
+		buffer.clear();
+		buffered = 0;
+		statements = 0;
+		written = 0;
+		spills = 0;
+		runs.clear();
+		final Path dir = outFile.toAbsolutePath().getParent();
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, outFile.getFileName() + ".run-*")) {
+			for (final Path run : stale) {
+				Files.delete(run);
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+
+	@Override
+	public void start() {
+		// statements are collected until the end of the run
+	}
+
+	@Override
+	public void triple(final Triple triple) {
+		add(triple.getSubject(), triple.getPredicate(), triple.getObject(), null);
+	}
+
+	@Override
+	public void quad(final Quad quad) {
+		add(quad.getSubject(), quad.getPredicate(), quad.getObject(),
+				quad.isDefaultGraph() ? null : quad.getGraph());
+	}
+
+	private void add(final Node subject, final Node predicate, final Node object, final Node graph) {
+		final StringBuilder line = new StringBuilder(128);
+		line.append(NodeFmtLib.str(subject)).append(' ').append(NodeFmtLib.str(predicate)).append(' ')
+				.append(NodeFmtLib.str(object));
+		if (graph != null) {
+			line.append(' ').append(NodeFmtLib.str(graph));
+		}
+		final String str = line.append(" .").toString();
+		buffer.add(str);
+		statements++;
+		buffered += 2L * str.length() + LINE_OVERHEAD;
+		if (buffered >= bufferSize) {
+			try {
+				spill();
+			} catch (IOException e) {
+				throw new RuntimeIOException(e);
+			}
+		}
+	}
+
+	private void spill() throws IOException {
+		final Path run = outFile.resolveSibling(outFile.getFileName() + ".run-" + runs.size());
+		writeSorted(run);
+		runs.add(run);
+		spills++;
+	}
+
+	/**
+	 * Sorts the buffer and writes it without duplicates.
+	 * 
+	 * @return the number of lines written
+	 */
+	private long writeSorted(final Path file) throws IOException {
+		Collections.sort(buffer);
+		long lines = 0;
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			String last = null;
+			for (final String line : buffer) {
+				if (!line.equals(last)) {
+					out.write(line);
+					out.write('\n');
+					last = line;
+					lines++;
+				}
+			}
+		}
+		buffer.clear();
+		buffered = 0;
+		return lines;
+	}
+
+	@Override
+	public void base(final String base) {
+		// not used in N-Quads
+	}
+
+	@Override
+	public void prefix(final String prefix, final String iri) {
+		// not used in N-Quads
+	}
+
+	@Override
+	public void finish() {
+		// statements are collected until the end of the run
+	}
+
+	/**
+	 * Writes the sorted output file from the statements of the run and deletes
+	 * the run files.
+	 * 
+	 * @throws IOException
+	 *             if a run file cannot be read or the output file written
+	 */
+	public void finishRun() throws IOException {
+		final Path tmpFile = outFile.resolveSibling(outFile.getFileName() + ".tmp");
+		if (runs.isEmpty()) {
+			written = writeSorted(tmpFile);
+		} else {
+			if (!buffer.isEmpty()) {
+				spill();
+			}
+			int pass = 0;
+			while (runs.size() > MAX_FAN_IN) {
+				final List<Path> merged = new ArrayList<>();
+				for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+					final Path run = outFile.resolveSibling(outFile.getFileName() + ".run-" + pass + "-" + merged.size());
+					merge(runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size())), run);
+					merged.add(run);
+				}
+				runs.clear();
+				runs.addAll(merged);
+				pass++;
+			}
+			written = merge(runs, tmpFile);
+			runs.clear();
+		}
+		Files.move(tmpFile, outFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Merges sorted run files into one without duplicates and deletes them.
+	 * 
+	 * @return the number of lines written
+	 */
+	private static long merge(final List<Path> inputs, final Path target) throws IOException {
+		final PriorityQueue<RunReader> queue = new PriorityQueue<>(inputs.size());
+		final List<RunReader> readers = new ArrayList<>(inputs.size());
+		long lines = 0;
+		try (BufferedWriter out = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+			for (final Path input : inputs) {
+				final RunReader reader = new RunReader(input);
+				readers.add(reader);
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+			}
+			String last = null;
+			while (!queue.isEmpty()) {
+				final RunReader reader = queue.poll();
+				if (!reader.line.equals(last)) {
+					out.write(reader.line);
+					out.write('\n');
+					last = reader.line;
+					lines++;
+				}
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+			}
+		} finally {
+			for (final RunReader reader : readers) {
+				reader.in.close();
+			}
+		}
+		for (final Path input : inputs) {
+			Files.delete(input);
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the number of statements received in the current run
+	 */
+	public long getStatements() {
+		return statements;
+	}
+
+	/**
+	 * Returns a summary of the last run.
+	 * 
+	 * @return the statement counts and spilled runs as String
+	 */
+	public String getStatistics() {
+		return String.format("sorted output: %d statements, %d written, %d duplicates dropped, %d runs spilled",
+				statements, written, statements - written, spills);
+	}
+
+	/** The next line of a sorted run file. */
+	private static final class RunReader implements Comparable<RunReader> {
+		private final BufferedReader in;
+		private String line;
+
+		RunReader(final Path file) throws IOException {
+			this.in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+		}
+
+		boolean advance() throws IOException {
+			line = in.readLine();
+			return line != null;
+		}
+
+		@Override
+		public int compareTo(final RunReader other) {
+			return line.compareTo(other.line);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.sink;
+
+import org.apache.jena.graph.Graph;
+
+import info.semanticsoftware.lodexporter.TripleStoreInterface;
+import info.semanticsoftware.lodexporter.TripleStoreInterface.TransactionType;
+
+/**
+ * Subscriber storing the published documents in a further triple store, such
+ * as a TDB directory or a remote store next to the store the exporter maps
+ * into. Each document is stored in one write transaction, without mapping
+ * it again; {@link #onFlush()} finishes the run of the store.
+ * 
+ * <p>
+ * The store is connected and disconnected by the owner of the sink, after
+ * the publisher has been closed.
+ * </p>
+ */
+public final class StoreSink implements GraphPublisher.Subscriber {
+	private final TripleStoreInterface store;
+	private long documents;
+
+	/**
+	 * Creates a sink for a connected store.
+	 * 
+	 * @param myStore
+	 *            the store, used only by the delivery thread of the sink
+	 */
+	public StoreSink(final TripleStoreInterface myStore) {
+		this.store = myStore;
+	}
+
+	@Override
+	public void onDocument(final String docURL, final String sessionID, final Graph graph) {
+		store.beginTransaction(TransactionType.WRITE);
+		try {
+			store.storeTriples(docURL, graph);
+		} finally {
+			store.endTransaction();
+		}
+		documents++;
+	}
+
+	@Override
+	public void onFlush() {
+		store.finishRun();
+	}
+
+	@Override
+	public void onComplete() {
+		// nothing to do, the store is disconnected by its owner
+	}
+
+	@Override
+	public String toString() {
+		return "store sink " + store.printDataset() + " (" + documents + " documents)";
+	}
+}
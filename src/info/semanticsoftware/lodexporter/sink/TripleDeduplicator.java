@@ -0,0 +1,187 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.sink;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Suppresses duplicate triples before they reach a file or stream sink, which
+ * (unlike a triple store) cannot deduplicate them itself. The triples of a
+ * single document come from a graph and are therefore distinct; duplicates of
+ * triples written for earlier documents of the run, such as the mapping rules
+ * and the corpus triples, are detected with a {@link BloomFilter}, so a small
+ * configurable fraction of new triples may be suppressed as false positives.
+ * 
+ * <p>
+ * One instance is shared by all documents of a run and may be used by
+ * several threads; only the probe of the filter is synchronized, so
+ * documents written concurrently do not wait for each other's file I/O. A
+ * triple written by two documents at the same time goes to exactly one of
+ * them.
+ * </p>
+ */
+public final class TripleDeduplicator {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final BloomFilter runTriples;
+	private final double falsePositiveRate;
+	private final LongAdder passed = new LongAdder();
+	private final LongAdder suppressed = new LongAdder();
+
+	/**
+	 * Creates a deduplicator whose run-wide filter is sized for the given
+	 * number of distinct triples.
+	 * 
+	 * @param expectedTriples
+	 *            the expected number of distinct triples in the run
+	 * @param myFalsePositiveRate
+	 *            the acceptable fraction of new triples wrongly suppressed
+	 */
+	public TripleDeduplicator(final long expectedTriples, final double myFalsePositiveRate) {
+		this.runTriples = new BloomFilter(expectedTriples, myFalsePositiveRate);
+		this.falsePositiveRate = myFalsePositiveRate;
+	}
+
+	/**
+	 * Forgets all triples and resets the counters, e.g., for a new run.
+	 */
+	public void reset() {
+		synchronized (runTriples) {
+			runTriples.clear();
+		}
+		passed.reset();
+		suppressed.reset();
+	}
+
+	/**
+	 * Tests whether a triple should be written.
+	 * 
+	 * @param triple
+	 *            the triple
+	 * @return false if the triple was (probably) already written in the run
+	 */
+	public boolean accept(final Triple triple) {
+		final long hash = hash(triple);
+		final boolean seen;
+		synchronized (runTriples) {
+			seen = runTriples.put(hash);
+		}
+		if (seen) {
+			suppressed.increment();
+			return false;
+		}
+		passed.increment();
+		return true;
+	}
+
+	/**
+	 * Wraps a sink so that only accepted triples and quads are passed on.
+	 * 
+	 * @param sink
+	 *            the stream to write to
+	 * @return the deduplicating stream
+	 */
+	public StreamRDF wrap(final StreamRDF sink) {
+		return new StreamRDFWrapper(sink) {
+			@Override
+			public void triple(final Triple triple) {
+				if (accept(triple)) {
+					other.triple(triple);
+				}
+			}
+
+			@Override
+			public void quad(final Quad quad) {
+				if (accept(quad.asTriple())) {
+					other.quad(quad);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the number of suppressed triples
+	 */
+	public long getSuppressed() {
+		return suppressed.sum();
+	}
+
+	/**
+	 * Returns a summary of the suppressed triples.
+	 * 
+	 * @return the written and suppressed triple counts as String
+	 */
+	public String getStatistics() {
+		return String.format(
+				"triple deduplication: %d written, %d suppressed (filter of %d bits for a false-positive rate of %s)",
+				passed.sum(), suppressed.sum(), runTriples.bitSize(), falsePositiveRate);
+	}
+
+	private static long hash(final Triple triple) {
+		long h = FNV_OFFSET;
+		h = hash(h, triple.getSubject());
+		h = hash(h, triple.getPredicate());
+		h = hash(h, triple.getObject());
+		// final avalanche, so both halves of the hash are well mixed
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(final long seed, final Node node) {
+		long h = seed;
+		if (node.isURI()) {
+			h = hash(h, node.getURI());
+		} else if (node.isBlank()) {
+			h = hash(h, node.getBlankNodeLabel());
+		} else if (node.isLiteral()) {
+			h = hash(h, node.getLiteralLexicalForm());
+			h = hash(h, node.getLiteralDatatypeURI());
+			h = hash(h, node.getLiteralLanguage());
+		} else {
+			h = hash(h, node.toString());
+		}
+		// node separator
+		return (h ^ 0xff) * FNV_PRIME;
+	}
+
+	private static long hash(final long seed, final String str) {
+		long h = seed;
+		if (str != null) {
+			for (int i = 0; i < str.length(); i++) {
+				h = (h ^ str.charAt(i)) * FNV_PRIME;
+			}
+		}
+		return h;
+	}
+}
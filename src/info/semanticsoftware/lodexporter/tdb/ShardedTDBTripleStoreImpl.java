@@ -0,0 +1,430 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.tdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jena.assembler.Assembler;
+import org.apache.jena.assembler.JA;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.core.assembler.AssemblerUtils;
+import org.apache.jena.tdb.TDB;
+import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.tdb.assembler.VocabTDB;
+
+import gate.util.GateRuntimeException;
+import info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore;
+import info.semanticsoftware.lodexporter.jena.StoreStatistics;
+import info.semanticsoftware.lodexporter.jena.TermDictionary;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Triple store that partitions the exported documents across several TDB
+ * store directories, each written by its own thread.
+ * 
+ * <p>
+ * A document is assigned to shard <tt>hashCode(docURL) mod shardCount</tt>,
+ * so all triples of a document end up in the same shard. The triples of a
+ * transaction are buffered per shard and committed by the writer thread of
+ * the shard. {@link #endTransaction()} waits for the shard writes of its own
+ * transaction after releasing the write lock, so the documents of other
+ * threads are written to the other shards meanwhile, and a failed write is
+ * reported to the document that caused it. With a patch log, the wait
+ * happens before the patch is committed, so that the log never holds
+ * triples missing from the store. The mapping rules are kept in a local
+ * in-memory dataset.
+ * </p>
+ * 
+ * <p>
+ * The root directory holds one <tt>shard-NN</tt> TDB directory per shard and
+ * a {@value #MANIFEST_FILE} describing the layout. The manifest is also a Jena
+ * assembler description of a read-only union of all shards (the
+ * <tt>#union</tt> resource), which can be opened with
+ * {@link #openUnionModel(String)} or served by Fuseki.
+ * </p>
+ */
+public class ShardedTDBTripleStoreImpl extends AbstractJenaTripleStore {
+
+    /** Name of the manifest file in the root directory. */
+    public static final String MANIFEST_FILE = "manifest.ttl";
+
+    /** Namespace of the manifest vocabulary. */
+    public static final String NS = "http://lod.semanticsoftware.info/lodexporter/shards#";
+
+    protected static final Logger LOGGER = Logger.getLogger(ShardedTDBTripleStoreImpl.class);
+
+    private static final String UNION = "#union";
+    private static final String PARTITIONING = "java.lang.String#hashCode(docURL) mod shardCount";
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    private final int shardCount;
+    private Shard[] shards;
+
+    /** A shard directory with its writer thread and pending triples. */
+    private static final class Shard {
+        private final Path dir;
+        private final Dataset dataset;
+        private final ExecutorService writer;
+        private final Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+        private List<Triple> buffer = new ArrayList<>();
+        private Set<String> bufferedDocuments = new LinkedHashSet<>();
+        private final AtomicLong triples = new AtomicLong();
+        private final StoreStatistics statistics = new StoreStatistics();
+
+        Shard(final Path myDir, final Dataset myDataset, final ExecutorService myWriter) {
+            this.dir = myDir;
+            this.dataset = myDataset;
+            this.writer = myWriter;
+        }
+    }
+
+    /**
+     * Creates a sharded store.
+     * 
+     * @param myTerms
+     *            the term dictionary for document, class and property URIs
+     * @param myShardCount
+     *            the number of shard directories
+     */
+    public ShardedTDBTripleStoreImpl(final TermDictionary myTerms, final int myShardCount) {
+        super(myTerms);
+        if (myShardCount < 1) {
+            throw new IllegalArgumentException("Invalid number of shards: " + myShardCount);
+        }
+        this.shardCount = myShardCount;
+    }
+
+    /**
+     * Returns the shard a document is stored in.
+     * 
+     * @param docURL
+     *            the document URL
+     * @param shardCount
+     *            the number of shards
+     * @return the shard index
+     */
+    public static int shardOf(final String docURL, final int shardCount) {
+        return Math.floorMod(docURL.hashCode(), shardCount);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect(java.lang.String)
+     */
+    @Override
+    public final void connect(final String rootDir) {
+        final Path root = Paths.get(rootDir).toAbsolutePath();
+        try {
+            Files.createDirectories(root);
+            checkOrWriteManifest(root);
+        } catch (IOException e) {
+            throw new GateRuntimeException("Cannot create sharded store in " + root, e);
+        }
+        setDataset(DatasetFactory.createTxnMem());
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            final String name = "LODeXporter-shard-" + i;
+            final Path dir = root.resolve(shardName(i));
+            shards[i] = new Shard(dir, TDBFactory.createDataset(dir.toString()),
+                    Executors.newSingleThreadExecutor(runnable -> {
+                        final Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }));
+        }
+        LOGGER.debug("[connect] Sharded Dataset is now: " + printDataset());
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect()
+     */
+    @Override
+    public final void connect() {
+        throw new UnsupportedOperationException("The sharded store requires a root directory.");
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#disconnect()
+     */
+    @Override
+    public final void disconnect() {
+        try {
+            flush();
+        } finally {
+            for (final Shard shard : shards) {
+                shard.writer.shutdown();
+            }
+            for (final Shard shard : shards) {
+                try {
+                    shard.writer.awaitTermination(1, TimeUnit.HOURS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                TDBFactory.release(shard.dataset);
+            }
+            getDataset().close();
+        }
+        LOGGER.debug("[disconnect] " + printStatistics());
+    }
+
+    @Override
+    protected final void addTriple(final String docURL, final Triple triple) {
+        final Shard shard = shards[shardOf(docURL, shardCount)];
+        shard.buffer.add(triple);
+        shard.bufferedDocuments.add(docURL);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore#finishRun()
+     */
+    @Override
+    public final void finishRun() {
+        flush();
+        for (final Shard shard : shards) {
+            if (shard.statistics.getCount() > 0) {
+                try {
+                    shard.statistics.mergeInto(shard.dir);
+                } catch (IOException e) {
+                    throw new GateRuntimeException("Error updating the statistics of " + shard.dir, e);
+                }
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore#endTransaction()
+     */
+    @Override
+    public final void endTransaction() {
+        if (isStaging()) {
+            super.endTransaction();
+            return;
+        }
+        final List<Future<?>> batches = new ArrayList<>();
+        try {
+            for (final Shard shard : shards) {
+                if (!shard.buffer.isEmpty()) {
+                    batches.add(commit(shard));
+                }
+            }
+            if (hasPatchLog()) {
+                await(batches);
+            }
+        } catch (RuntimeException e) {
+            abortTransaction();
+            throw e;
+        }
+        super.endTransaction();
+        await(batches);
+    }
+
+    /**
+     * Waits for the shard writes of a transaction.
+     * 
+     * @throws GateRuntimeException
+     *             naming the documents of a batch that could not be written
+     */
+    private static void await(final List<Future<?>> batches) {
+        for (final Future<?> batch : batches) {
+            try {
+                batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GateRuntimeException("Interrupted while writing shards", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GateRuntimeException) {
+                    throw (GateRuntimeException) e.getCause();
+                }
+                throw new GateRuntimeException("Error writing shards", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Waits until the writer threads have committed all triples handed to
+     * them. Failed writes are reported by the transactions that made them.
+     */
+    public final void flush() {
+        try {
+            for (final Shard shard : shards) {
+                shard.pendingBatches.acquire(MAX_PENDING_BATCHES);
+                shard.pendingBatches.release(MAX_PENDING_BATCHES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GateRuntimeException("Interrupted while writing shards", e);
+        }
+    }
+
+    /**
+     * Hands the buffered triples of a shard to its writer thread, blocking
+     * while the maximum number of batches is pending. The statistics only
+     * count the triples of committed batches.
+     * 
+     * @return the pending write, failing with a GateRuntimeException naming
+     *         the documents of the batch
+     */
+    private Future<?> commit(final Shard shard) {
+        final List<Triple> batch = shard.buffer;
+        final Set<String> documents = shard.bufferedDocuments;
+        shard.buffer = new ArrayList<>();
+        shard.bufferedDocuments = new LinkedHashSet<>();
+        try {
+            shard.pendingBatches.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GateRuntimeException("Interrupted while writing shards", e);
+        }
+        return shard.writer.submit(() -> {
+            shard.dataset.begin(ReadWrite.WRITE);
+            try {
+                final Graph graph = shard.dataset.asDatasetGraph().getDefaultGraph();
+                for (final Triple triple : batch) {
+                    graph.add(triple);
+                }
+                shard.dataset.commit();
+                shard.triples.addAndGet(batch.size());
+                if (isUpdateStatistics()) {
+                    // only touched by the writer thread until the run is flushed
+                    for (final Triple triple : batch) {
+                        shard.statistics.record(triple);
+                    }
+                }
+            } catch (Exception e) { // NOPMD
+                shard.dataset.abort();
+                throw new GateRuntimeException("Error writing " + documents + " to " + shard.dir, e);
+            } finally {
+                shard.dataset.end();
+                shard.pendingBatches.release();
+            }
+        });
+    }
+
+    private static String shardName(final int shard) {
+        return String.format("shard-%02d", shard);
+    }
+
+    /**
+     * Writes the manifest of a new store, or checks that an existing store
+     * was created with the same number of shards.
+     */
+    private void checkOrWriteManifest(final Path root) throws IOException {
+        final Path manifestFile = root.resolve(MANIFEST_FILE);
+        final String base = manifestFile.toUri().toString();
+        if (Files.exists(manifestFile)) {
+            final Model manifest = RDFDataMgr.loadModel(base);
+            final Statement count = manifest.getResource(base).getProperty(manifest.createProperty(NS, "shardCount"));
+            if (count == null || count.getInt() != shardCount) {
+                throw new GateRuntimeException("Sharded store " + root + " was created with "
+                        + (count == null ? "an unknown number of" : count.getInt()) + " shards, not " + shardCount);
+            }
+            return;
+        }
+
+        TDB.init();
+        final Model manifest = ModelFactory.createDefaultModel();
+        manifest.setNsPrefix("shards", NS);
+        manifest.setNsPrefix("tdb", VocabTDB.getURI());
+        manifest.setNsPrefix("ja", JA.getURI());
+        final Property shardProperty = manifest.createProperty(NS, "shard");
+        final Property index = manifest.createProperty(NS, "index");
+        final Resource store = manifest.createResource(base, manifest.createResource(NS + "ShardedStore"))
+                .addProperty(manifest.createProperty(NS, "shardCount"), manifest.createTypedLiteral(shardCount))
+                .addProperty(manifest.createProperty(NS, "partitioning"), PARTITIONING);
+        final Resource union = manifest.createResource(base + UNION, JA.UnionModel);
+        store.addProperty(manifest.createProperty(NS, "unionModel"), union);
+        for (int i = 0; i < shardCount; i++) {
+            final Resource shard = manifest.createResource(base + "#" + shardName(i), VocabTDB.tGraphTDB)
+                    .addProperty(VocabTDB.pLocation, root.resolve(shardName(i)).toString())
+                    .addProperty(index, manifest.createTypedLiteral(i));
+            store.addProperty(shardProperty, shard);
+            union.addProperty(JA.subModel, shard);
+        }
+        try (OutputStream out = Files.newOutputStream(manifestFile)) {
+            RDFDataMgr.write(out, manifest, Lang.TURTLE);
+        }
+    }
+
+    /**
+     * Opens the read-only union of all shards of a sharded store.
+     * 
+     * @param rootDir
+     *            the root directory of the store
+     * @return the union model; close it when done
+     */
+    public static Model openUnionModel(final String rootDir) {
+        TDB.init();
+        final String base = Paths.get(rootDir).toAbsolutePath().resolve(MANIFEST_FILE).toUri().toString();
+        // adds the assembler vocabulary, such as tdb:GraphTDB being a ja:Model
+        final Model manifest = AssemblerUtils.readAssemblerFile(base);
+        return (Model) Assembler.general.open(manifest.getResource(base + UNION));
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#printDataset()
+     */
+    @Override
+    public final String printDataset() {
+        return "sharded store with " + shardCount + " shards";
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore#printStatistics()
+     */
+    @Override
+    public final String printStatistics() {
+        final StringBuilder stats = new StringBuilder(super.printStatistics()).append("; triples per shard:");
+        for (final Shard shard : shards) {
+            stats.append(' ').append(shard.triples.get());
+        }
+        return stats.toString();
+    }
+}
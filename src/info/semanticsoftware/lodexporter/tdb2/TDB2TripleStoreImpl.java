@@ -0,0 +1,170 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package info.semanticsoftware.lodexporter.tdb2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.tdb2.sys.TDBInternal;
+
+import gate.util.GateRuntimeException;
+import info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore;
+import info.semanticsoftware.lodexporter.jena.StoreStatistics;
+import info.semanticsoftware.lodexporter.jena.TermDictionary;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Concrete implementation for interacting with a TDB2-based triple store.
+ * 
+ * <p>
+ * TDB2 writes transactions copy-on-write instead of through a journal, so
+ * committing a large transaction does not replay it into the indexes. The
+ * price is that the store grows with every transaction until it is
+ * compacted, see {@link #compact()}. TDB2 store directories are not
+ * compatible with TDB1.
+ * </p>
+ */
+public class TDB2TripleStoreImpl extends AbstractJenaTripleStore {
+
+    protected static final Logger LOGGER = Logger.getLogger(TDB2TripleStoreImpl.class);
+
+    private boolean persistent;
+    private StoreStatistics statistics;
+
+    /**
+     * Creates a store with its own term dictionary of default capacity.
+     */
+    public TDB2TripleStoreImpl() {
+        this(new TermDictionary(TermDictionary.DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Creates a store sharing the given term dictionary, so the recurring
+     * terms survive re-connecting the store between documents.
+     * 
+     * @param myTerms
+     *            the term dictionary for document, class and property URIs
+     */
+    public TDB2TripleStoreImpl(final TermDictionary myTerms) {
+        super(myTerms);
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect(java.lang.String)
+     */
+    @Override
+    public final void connect(final String dir) {
+        setDataset(TDB2Factory.connectDataset(dir));
+        persistent = true;
+        statistics = isUpdateStatistics() ? new StoreStatistics() : null;
+        LOGGER.debug("[connect] File-based TDB2 Dataset is now: " + getDataset());
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#connect()
+     */
+    @Override
+    public final void connect() {
+        setDataset(TDB2Factory.createDataset());
+        persistent = false;
+        statistics = null;
+        LOGGER.debug("[connect] Memory-based TDB2 Dataset is now: " + getDataset());
+    }
+
+    @Override
+    protected final void addTriple(final String docURL, final Triple triple) {
+        super.addTriple(docURL, triple);
+        if (statistics != null) {
+            statistics.record(triple);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.jena.AbstractJenaTripleStore#finishRun()
+     */
+    @Override
+    public final void finishRun() {
+        if (statistics != null && statistics.getCount() > 0) {
+            final Path storage = storageDirectory();
+            try {
+                statistics.mergeInto(storage);
+                LOGGER.debug("[finishRun] Updated " + storage.resolve(StoreStatistics.STATS_FILE));
+            } catch (IOException e) {
+                throw new GateRuntimeException("Error updating the statistics of " + storage, e);
+            }
+        }
+    }
+
+    /**
+     * @return the directory of the current storage generation, which holds
+     *         the statistics file
+     */
+    private Path storageDirectory() {
+        return Paths.get(TDBInternal.getDatasetGraphTDB(getDataset().asDatasetGraph()).getLocation()
+                .getDirectoryPath());
+    }
+
+    /* (non-Javadoc)
+     * @see info.semanticsoftware.lodexporter.TripleStoreInterface#disconnect()
+     */
+    @Override
+    public final void disconnect() {
+        final Dataset dataset = getDataset();
+        dataset.close();
+        TDBInternal.expel(dataset.asDatasetGraph());
+        LOGGER.debug("[disconnect] Dataset is now: " + dataset);
+    }
+
+    /**
+     * Compacts a file-based store into a new generation directory, dropping
+     * the space held by the data of earlier transactions. Must not be called
+     * inside a transaction; does nothing for a memory-based store.
+     */
+    public final void compact() {
+        if (!persistent) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final Path oldStats = storageDirectory().resolve(StoreStatistics.STATS_FILE);
+        DatabaseMgr.compact(getDataset().asDatasetGraph());
+        // the new storage generation does not inherit the optimizer statistics
+        if (Files.exists(oldStats)) {
+            try {
+                Files.copy(oldStats, storageDirectory().resolve(StoreStatistics.STATS_FILE));
+            } catch (IOException e) {
+                LOGGER.warn("Cannot copy " + oldStats + " to the compacted store", e);
+            }
+        }
+        LOGGER.info("[compact] Compacted " + DatabaseMgr.location(getDataset().asDatasetGraph()) + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
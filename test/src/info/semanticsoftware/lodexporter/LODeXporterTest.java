@@ -23,18 +23,46 @@
  */
 package info.semanticsoftware.lodexporter;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.endsWith;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.apache.log4j.Logger;
 import org.junit.BeforeClass;
@@ -42,21 +70,58 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFLib;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.sse.Item;
+import org.apache.jena.sparql.sse.SSE;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.tdb.TDBFactory;
+
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.hdt.HDTManager;
+import org.rdfhdt.hdt.triples.IteratorTripleString;
 
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Controller;
+import gate.Corpus;
 import gate.CreoleRegister;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.LanguageAnalyser;
+import gate.creole.ControllerAwarePR;
 import gate.creole.ResourceInstantiationException;
 import gate.util.GateException;
+import gate.util.GateRuntimeException;
+import gate.util.SimpleFeatureMapImpl;
+import info.semanticsoftware.lodexporter.jena.PatchLog;
+import info.semanticsoftware.lodexporter.sink.GraphPublisher;
+import info.semanticsoftware.lodexporter.sink.NQuadsChannelWriter;
+import info.semanticsoftware.lodexporter.sink.ParallelNQuadsWriter;
+import info.semanticsoftware.lodexporter.sink.SortedNQuadsSink;
+import info.semanticsoftware.lodexporter.tdb.ShardedTDBTripleStoreImpl;
+
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * JUnit tests for LODeXporter.
@@ -178,6 +243,1259 @@ public class LODeXporterTest {
 		checkTriples("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq");
 	}
 
+	/**
+	 * Test that the in-memory staging store is cleared between documents, so
+	 * every export file holds the mapping rules and one document only.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testStagingClearedBetweenDocuments() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		for (int run = 0; run < 2; run++) {
+			lodexpr.execute();
+			checkTriples("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq");
+		}
+	}
+
+	/**
+	 * Test that the TDB2 store exports the same triples as the TDB store.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testRunPRWithTDB2() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+		fm.put("tripleStoreType", LODeXporter.TripleStoreType.TDB2);
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+
+		checkTriples("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq");
+	}
+
+	/**
+	 * Test that the parallel N-Quads writer produces the same bytes as the
+	 * single-threaded writer, using chunks small enough to be cut often.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testParallelNQuadsWriter() throws Exception {
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		final StreamRDF single = StreamRDFLib.writer(expected);
+		final ExecutorService encoders = Executors.newFixedThreadPool(3);
+		try {
+			final ThreadLocal<NQuadsChannelWriter> writers = ThreadLocal.withInitial(NQuadsChannelWriter::new);
+			final ParallelNQuadsWriter parallel = new ParallelNQuadsWriter(Channels.newChannel(actual), writers::get,
+					encoders, 3, 4);
+			single.start();
+			parallel.start();
+			final Node p = NodeFactory.createURI("http://example.org/p");
+			for (int i = 0; i < 500; i++) {
+				final Node s = NodeFactory.createURI("http://example.org/s" + (i / 3));
+				final Triple t = Triple.create(s, p, NodeFactory.createLiteral("value " + i));
+				single.triple(t);
+				parallel.triple(t);
+			}
+			single.finish();
+			parallel.finish();
+			assertThat(parallel.getChunks() > 1, equalTo(true));
+		} finally {
+			encoders.shutdown();
+		}
+		assertThat(new String(actual.toByteArray(), "UTF-8"), equalTo(new String(expected.toByteArray(), "UTF-8")));
+	}
+
+	/**
+	 * Test that the channel N-Quads writer produces the same bytes as Jena's
+	 * writer, including escaped and non-ASCII literals and a buffer that is
+	 * drained several times.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testNQuadsChannelWriter() throws Exception {
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		final StreamRDF jena = StreamRDFLib.writer(expected);
+		final NQuadsChannelWriter writer = new NQuadsChannelWriter(8, 64);
+		writer.setChannel(Channels.newChannel(actual));
+		jena.start();
+		writer.start();
+		final Node type = NodeFactory.createURI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+		final Node label = NodeFactory.createURI("http://example.org/label");
+		final Node graph = NodeFactory.createURI("http://example.org/graph");
+		final String[] values = { "plain", "quote \" and \\ back", "tab\tnew\nline\r\f", "caf\u00e9 \u20ac \ud83d\ude00" };
+		for (int i = 0; i < 40; i++) {
+			final Node s = NodeFactory.createURI("http://example.org/doc" + (i % 3) + "#ann" + i);
+			final Triple typed = Triple.create(s, type, NodeFactory.createURI("http://example.org/Class" + (i % 5)));
+			final Quad labelled = Quad.create(graph, s, label, i % 2 == 0
+					? NodeFactory.createLiteral(values[i % values.length], "en")
+					: NodeFactory.createLiteral(values[i % values.length]));
+			final Triple counted = Triple.create(s, label, NodeFactory.createLiteralByValue(i, XSDDatatype.XSDinteger));
+			final Triple blank = Triple.create(NodeFactory.createBlankNode("b" + i), label, s);
+			for (final StreamRDF out : new StreamRDF[] { jena, writer }) {
+				out.triple(typed);
+				out.quad(labelled);
+				out.triple(counted);
+				out.triple(blank);
+			}
+		}
+		jena.finish();
+		writer.finish();
+		assertThat(new String(actual.toByteArray(), "UTF-8"), equalTo(new String(expected.toByteArray(), "UTF-8")));
+	}
+
+	/**
+	 * Test the span relation strategies (contains, overlaps, coextensive and
+	 * precedes within a distance).
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testSpanRelations() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, getClass().getResource("/relation-mapping.rdf"));
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+
+		final String exportFile = "/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq";
+		final Model model = ModelFactory.createDefaultModel();
+		model.read(new FileInputStream(exportFile), null, "N-TRIPLES");
+		assertThat("Sentence should contain the Person", countTriples(model, "containsNE"), equalTo(1));
+		assertThat("Person should overlap two Tokens", countTriples(model, "overlaps"), equalTo(2));
+		assertThat("Person should not be coextensive with the Sentence", countTriples(model, "coextensive"), equalTo(0));
+		assertThat("Person should precede the Location within 20 chars", countTriples(model, "precedes"), equalTo(1));
+		assertThat("Person should not precede the Location within 10 chars", countTriples(model, "near"), equalTo(0));
+
+		// several sentences, persons and locations: ranges stay active for
+		// several domains and are retired once a domain starts after them
+		final Document several = Factory.newDocument("Ann met Bob in Rome. Carl left Paris for Oslo.");
+		several.setSourceUrl(new URL("http://example.org/corpus/spans.txt"));
+		final AnnotationSet annots = several.getAnnotations();
+		annots.add(0L, 20L, "Sentence", Factory.newFeatureMap());
+		annots.add(21L, 46L, "Sentence", Factory.newFeatureMap());
+		annots.add(0L, 3L, "Person", Factory.newFeatureMap());
+		annots.add(8L, 11L, "Person", Factory.newFeatureMap());
+		annots.add(21L, 25L, "Person", Factory.newFeatureMap());
+		annots.add(15L, 19L, "Location", Factory.newFeatureMap());
+		annots.add(31L, 36L, "Location", Factory.newFeatureMap());
+		annots.add(41L, 45L, "Location", Factory.newFeatureMap());
+		lodexpr.setDocument(several);
+		lodexpr.execute();
+
+		final Model spans = ModelFactory.createDefaultModel();
+		spans.read(new FileInputStream("/tmp/" + several.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq"),
+				null, "N-TRIPLES");
+		assertThat("Each Person is contained in its Sentence", countTriples(spans, "containsNE"), equalTo(3));
+		assertThat("Ann-Rome, Bob-Rome, Bob-Paris, Carl-Paris and Carl-Oslo are within 20 chars",
+				countTriples(spans, "precedes"), equalTo(5));
+		assertThat("Bob-Rome and Carl-Paris are within 10 chars", countTriples(spans, "near"), equalTo(2));
+	}
+
+	/**
+	 * Test that the span join relates the same pairs as comparing every
+	 * domain with every range annotation, including a long domain starting
+	 * before all others, nested and crossing spans, and empty spans.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testSpanJoin() throws Exception {
+		final Document doc = Factory.newDocument(String.join("", Collections.nCopies(50, "abcdefghij")));
+		final AnnotationSet annots = doc.getAnnotations();
+		final Random random = new Random(42);
+		annots.add(0L, 500L, "Domain", Factory.newFeatureMap());
+		annots.add(10L, 10L, "Range", Factory.newFeatureMap());
+		for (int i = 0; i < 200; i++) {
+			final long start = random.nextInt(480);
+			annots.add(start, start + random.nextInt(20), i % 3 == 0 ? "Domain" : "Range", Factory.newFeatureMap());
+		}
+		final List<Annotation> domains = new ArrayList<>(annots.get("Domain"));
+		final List<Annotation> ranges = new ArrayList<>(annots.get("Range"));
+		ranges.addAll(domains);
+		for (final RelationStrategy strategy : new RelationStrategy[] { RelationStrategy.CONTAINS,
+				RelationStrategy.OVERLAPS, RelationStrategy.COEXTENSIVE, RelationStrategy.PRECEDES }) {
+			final RelationMapping rMap = new RelationMapping("rule", "type", "Domain", "Range",
+					strategy.getAttribute(), 15);
+			final List<String> expected = new ArrayList<>();
+			for (final Annotation domain : domains) {
+				for (final Annotation range : ranges) {
+					if (domain != range && strategy.matches(domain.getStartNode().getOffset(),
+							domain.getEndNode().getOffset(), range.getStartNode().getOffset(),
+							range.getEndNode().getOffset(), 15)) {
+						expected.add(domain.getId() + "-" + range.getId());
+					}
+				}
+			}
+			final List<String> actual = new ArrayList<>();
+			SpanJoin.join(new SpanJoin.SortedSpans(domains), new SpanJoin.SortedSpans(ranges), rMap, strategy,
+					(domain, range) -> actual.add(domain.getId() + "-" + range.getId()));
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertThat(strategy.getAttribute(), actual, equalTo(expected));
+		}
+	}
+
+	/**
+	 * Test that the PR refuses to initialize with a span relation whose domain
+	 * has no subject mapping.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testRelationWithoutDomain() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, getClass().getResource("/invalid-relation-mapping.rdf"));
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+	    exception.expect(ResourceInstantiationException.class);
+	    exception.expectMessage(containsString("domain of relation rule"));
+	    getPR(fm);
+	}
+
+	/**
+	 * Test that only the annotations passing the filters of their mapping rule
+	 * are exported.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testMappingFilters() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, getClass().getResource("/filter-mapping.rdf"));
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+
+		final String exportFile = "/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq";
+		final Model model = ModelFactory.createDefaultModel();
+		model.read(new FileInputStream(exportFile), null, "N-TRIPLES");
+		assertThat("Person has a surname", countInstances(model, "http://xmlns.com/foaf/0.1/Person"), equalTo(1));
+		assertThat("Location has no URI feature", countInstances(model, "http://xmlns.com/foaf/0.1/Location"), equalTo(0));
+		assertThat("Only one Lookup matches the majorType and is long enough",
+				countInstances(model, "http://lod.semanticsoftware.info/pubo/pubo#Lookup"), equalTo(1));
+		assertThat("Rejected annotations are not linked to the document", countTriples(model, "hasAnnotation"), equalTo(2));
+	}
+
+	/**
+	 * Test that feature values are read as numbers exactly as by
+	 * {@link Double#valueOf(String)}, including values that only look like
+	 * numbers at first.
+	 */
+	@Test
+	public final void testFilterNumbers() {
+		for (final String str : new String[] { "12", " 7.5 ", "-.5", "+2.", "1e3", "1.5E-2", "3f", "2D", "NaN",
+				"-Infinity", "0x1p3", "abc", "3rd", "1e", "1.2.3", ".", "-", "", "e5", "0x", "Nanny" }) {
+			Double expected;
+			try {
+				expected = Double.valueOf(str);
+			} catch (NumberFormatException e) {
+				expected = null;
+			}
+			assertThat(str, FilterMapping.parseNumber(str), equalTo(expected));
+		}
+	}
+
+	/**
+	 * Test that several annotation sets are exported into one file, with
+	 * rules restricted to a set applied only to that set, and that feature
+	 * references are resolved in the set being exported.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testMultipleAnnotationSets() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, getClass().getResource("/multi-set-mapping.rdf"));
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+	    final Integer organization = doc.getAnnotations("NER").add(16L, 30L, "Organization", Factory.newFeatureMap());
+	    final FeatureMap employee = Factory.newFeatureMap();
+	    employee.put("employedBy", organization);
+	    doc.getAnnotations("NER").add(0L, 15L, "Person", employee);
+	    doc.getAnnotations("NER").add(33L, 40L, "Location", Factory.newFeatureMap());
+	    // references an annotation of another set, skipped
+	    final FeatureMap elsewhere = Factory.newFeatureMap();
+	    elsewhere.put("employedBy", doc.getAnnotations().add(16L, 30L, "Organization", Factory.newFeatureMap()));
+	    doc.getAnnotations("NER").add(33L, 40L, "Person", elsewhere);
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.setParameterValue("inputASNames", Arrays.asList("", "NER"));
+		lodexpr.execute();
+
+		final String exportFile = "/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq";
+		final Model model = ModelFactory.createDefaultModel();
+		model.read(new FileInputStream(exportFile), null, "N-TRIPLES");
+		assertThat("Person is mapped in both sets", countInstances(model, "http://xmlns.com/foaf/0.1/Person"), equalTo(3));
+		assertThat("Only the reference within the NER set is exported", countTriples(model, "employedBy"), equalTo(1));
+		assertThat("Location is only mapped in the NER set", countInstances(model, "http://xmlns.com/foaf/0.1/Location"), equalTo(1));
+		assertThat("The document is linked to the corpus once", countTriples(model, "hasDocument"), equalTo(1));
+	}
+
+	/**
+	 * Test that hashed content is written once per distinct text and linked
+	 * from each annotation, and that texts over the length limit are dropped.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testContentModes() throws Exception {
+		final Property chunk = ResourceFactory.createProperty("http://purl.org/dc/terms/chunk");
+		final Property chars = ResourceFactory.createProperty("http://www.w3.org/2011/content#chars");
+
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+		fm.put("contentMode", LODeXporter.ContentMode.HASHED);
+		final LanguageAnalyser hashed = getPR(fm);
+		final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		doc.getAnnotations().add(0L, 15L, "Person", Factory.newFeatureMap());
+		hashed.setDocument(doc);
+		hashed.setCorpus(null);
+		hashed.execute();
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new FileInputStream("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq"), null, "N-TRIPLES");
+		assertThat(model.listStatements(null, chunk, (RDFNode) null).toList().size(), equalTo(3));
+		assertThat("Both Persons link to the same content", model.listObjectsOfProperty(chunk).toList().size(), equalTo(2));
+		assertThat("Each distinct text is written once", model.listStatements(null, chars, (RDFNode) null).toList().size(), equalTo(2));
+		assertThat(model.listObjectsOfProperty(chunk).next().isURIResource(), equalTo(true));
+
+		fm.put("contentMode", LODeXporter.ContentMode.LITERAL);
+		fm.put("maxContentLength", 10);
+		final LanguageAnalyser limited = getPR(fm);
+		limited.setDocument(doc);
+		limited.setCorpus(null);
+		limited.execute();
+		model = ModelFactory.createDefaultModel();
+		model.read(new FileInputStream("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq"), null, "N-TRIPLES");
+		final List<RDFNode> contents = model.listObjectsOfProperty(chunk).toList();
+		assertThat("Only the Location text is short enough", contents.size(), equalTo(1));
+		assertThat(contents.get(0).asLiteral().getString().length() <= 10, equalTo(true));
+	}
+
+	/**
+	 * Test that a single PR exports documents from several threads at once,
+	 * to files and to an RDF store directory.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testConcurrentDocuments() throws Exception {
+		final int documents = 8;
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			final FeatureMap fm = Factory.newFeatureMap();
+			fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+			fm.put(PARAM_RDF_STORE_DIR, "");
+			fm.put(EXPORT_FILE_PATH, "/tmp/");
+			final LODeXporter fileExporter = (LODeXporter) getPR(fm);
+			final List<Document> docs = exportConcurrently(fileExporter, documents, pool);
+			int annotations = -1;
+			for (final Document doc : docs) {
+				final String sessionID = (String) doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE);
+				final Model model = ModelFactory.createDefaultModel();
+				model.read(new FileInputStream("/tmp/" + sessionID + ".nq"), null, "N-TRIPLES");
+				assertThat("Each file holds the rules and the triples of its document", model.size(), equalTo(25L + 9L));
+				for (final RDFNode annot : model.listObjectsOfProperty(
+						model.createProperty("http://lod.semanticsoftware.info/pubo/pubo#hasAnnotation")).toList()) {
+					assertThat(annot.asResource().getURI().contains(sessionID), equalTo(true));
+				}
+				annotations = countTriples(model, "hasAnnotation");
+			}
+			Factory.deleteResource(fileExporter);
+
+			final Path storeDir = createMappingStore();
+			fm.put(PARAM_MAPPING_FILE, "");
+			fm.put(PARAM_RDF_STORE_DIR, storeDir.toString());
+			final LODeXporter storeExporter = (LODeXporter) getPR(fm);
+			exportConcurrently(storeExporter, documents, pool);
+			Factory.deleteResource(storeExporter);
+			final Dataset dataset = TDBFactory.createDataset(storeDir.toString());
+			dataset.begin(ReadWrite.READ);
+			try {
+				assertThat(countTriples(dataset.getDefaultModel(), "hasAnnotation"), equalTo(documents * annotations));
+			} finally {
+				dataset.end();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Test that concurrent documents are mapped at the same time with a
+	 * TDB store: each document waits in the middle of its mapping until the
+	 * other one has started mapping as well.
+	 *
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testOverlappingDocuments() throws Exception {
+		final ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			final FeatureMap fm = Factory.newFeatureMap();
+			fm.put(PARAM_MAPPING_FILE, "");
+			fm.put(PARAM_RDF_STORE_DIR, createMappingStore().toString());
+			final LODeXporter lodexpr = (LODeXporter) getPR(fm);
+			final CountDownLatch mapping = new CountDownLatch(2);
+			final AtomicInteger overlapped = new AtomicInteger();
+			final List<Future<?>> exports = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				final Document doc = Factory.newDocument("Jane Doe");
+				doc.setSourceUrl(new URL("http://example.org/corpus/overlap" + i + ".txt"));
+				final FeatureMap feats = new SimpleFeatureMapImpl() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public Object get(final Object key) {
+						if ("gender".equals(key)) {
+							mapping.countDown();
+							try {
+								if (mapping.await(10, TimeUnit.SECONDS)) {
+									overlapped.incrementAndGet();
+								}
+							} catch (final InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						return super.get(key);
+					}
+				};
+				feats.put("gender", "female");
+				doc.getAnnotations().add(0L, 8L, "Person", feats);
+				exports.add(pool.submit(() -> {
+					lodexpr.exportDocument(doc);
+					return null;
+				}));
+			}
+			for (final Future<?> export : exports) {
+				export.get();
+			}
+			assertThat("Both documents were being mapped at once", overlapped.get(), equalTo(2));
+			assertThat(lodexpr.getTripleStore().ask("ASK { ?s <http://xmlns.com/foaf/0.1/gender> \"female\" }", null),
+					equalTo(true));
+			Factory.deleteResource(lodexpr);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private List<Document> exportConcurrently(final LODeXporter lodexpr, final int documents,
+			final ExecutorService pool) throws Exception {
+		final List<Document> docs = new ArrayList<>();
+		final List<Future<?>> exports = new ArrayList<>();
+		for (int i = 0; i < documents; i++) {
+			final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+			docs.add(doc);
+			exports.add(pool.submit(() -> {
+				lodexpr.exportDocument(doc);
+				return null;
+			}));
+		}
+		for (final Future<?> export : exports) {
+			export.get();
+		}
+		return docs;
+	}
+
+	/**
+	 * Test that the triples of each document are handed over in memory, on a
+	 * document feature and to a subscriber that is slower than the export.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testGraphPublisher() throws Exception {
+		final Path storeDir = createMappingStore();
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, "");
+		fm.put(PARAM_RDF_STORE_DIR, storeDir.toString());
+		fm.put("publishGraphs", true);
+		final LODeXporter lodexpr = (LODeXporter) getPR(fm);
+
+		final List<String> sessions = Collections.synchronizedList(new ArrayList<>());
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch completed = new CountDownLatch(1);
+		lodexpr.getGraphPublisher().subscribe(new GraphPublisher.Subscriber() {
+			@Override
+			public void onDocument(final String docURL, final String sessionID, final Graph graph) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				sessions.add(sessionID);
+				sizes.add(graph.size());
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		}, 1);
+
+		final List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+			lodexpr.setDocument(doc);
+			lodexpr.setCorpus(null);
+			lodexpr.execute();
+			expected.add((String) doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE));
+			final Graph graph = (Graph) doc.getFeatures().get(LODeXporter.LODEXPORTER_GRAPH_FEATURE);
+			assertThat("The feature holds the triples of the document", graph.size(), equalTo(9));
+		}
+		Factory.deleteResource(lodexpr);
+
+		assertThat(completed.await(10, TimeUnit.SECONDS), equalTo(true));
+		assertThat("Documents are delivered in order", sessions, equalTo(expected));
+		assertThat(sizes, equalTo(Arrays.asList(9, 9, 9)));
+	}
+
+	/**
+	 * Test that the sorted output merges many spilled runs into one sorted
+	 * file without duplicates, and that the PR writes it at the end of a run.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testSortedExport() throws Exception {
+		final Path dir = Files.createTempDirectory("lodexporter-sorted");
+		final Path sortedFile = dir.resolve("sorted.nq");
+		// a tiny buffer spills every statement, forcing a multi-pass merge
+		final SortedNQuadsSink sink = new SortedNQuadsSink(sortedFile, 1);
+		sink.startRun();
+		final Node p = NodeFactory.createURI("http://example.org/p");
+		for (int i = 0; i < 200; i++) {
+			final int n = (i * 37) % 150; // 150 distinct subjects, 50 repeated
+			sink.triple(Triple.create(NodeFactory.createURI("http://example.org/s" + n), p,
+					NodeFactory.createLiteral("line\n" + n)));
+		}
+		sink.finishRun();
+		final List<String> lines = Files.readAllLines(sortedFile, StandardCharsets.UTF_8);
+		assertThat(lines.size(), equalTo(150));
+		final List<String> sorted = new ArrayList<>(lines);
+		Collections.sort(sorted);
+		assertThat(lines, equalTo(sorted));
+		final Model parsed = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(parsed, sortedFile.toString(), Lang.NQUADS);
+		assertThat(parsed.size(), equalTo(150L));
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			int count = 0;
+			for (final Path file : files) {
+				count++;
+			}
+			assertThat("The run files should be deleted", count, equalTo(1));
+		}
+
+		final Path exportFile = dir.resolve("corpus.nq");
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+		fm.put("sortedExportFile", exportFile.toString());
+		final LanguageAnalyser lodexpr = getPR(fm);
+		final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+		lodexpr.execute();
+		((ControllerAwarePR) lodexpr).controllerExecutionFinished(null);
+		Factory.deleteResource(lodexpr);
+		final List<String> exported = Files.readAllLines(exportFile, StandardCharsets.UTF_8);
+		assertThat("The shared hasDocument triple is written once", exported.size(), equalTo(2 * 9 - 1));
+		final List<String> sortedExport = new ArrayList<>(exported);
+		Collections.sort(sortedExport);
+		assertThat(exported, equalTo(sortedExport));
+	}
+
+	/**
+	 * Test that the phases of an export are recorded as Flight Recorder
+	 * events.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testFlightRecorderEvents() throws Exception {
+		final Path jfrFile = Files.createTempFile("lodexporter-jfr", ".jfr");
+		final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		try (Recording recording = new Recording()) {
+			for (final String event : Arrays.asList("MappingLoad", "DocumentExport", "TransactionBegin", "Commit",
+					"FileExport")) {
+				recording.enable("info.semanticsoftware.lodexporter." + event).withoutThreshold();
+			}
+			recording.start();
+			final FeatureMap fm = Factory.newFeatureMap();
+			fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+			fm.put(PARAM_RDF_STORE_DIR, "");
+			fm.put(EXPORT_FILE_PATH, "/tmp/");
+			final LanguageAnalyser lodexpr = getPR(fm);
+			lodexpr.setDocument(doc);
+			lodexpr.setCorpus(null);
+			lodexpr.execute();
+			Factory.deleteResource(lodexpr);
+			recording.stop();
+			recording.dump(jfrFile);
+		}
+		final String exportFile = "/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq";
+		final Map<String, List<RecordedEvent>> events = new HashMap<>();
+		for (final RecordedEvent event : RecordingFile.readAllEvents(jfrFile)) {
+			events.computeIfAbsent(event.getEventType().getLabel(), label -> new ArrayList<>()).add(event);
+		}
+		Files.delete(jfrFile);
+
+		assertThat(events.get("Mapping Load").get(0).getInt("subjectRules"), equalTo(3));
+		final RecordedEvent export = events.get("Document Export").get(0);
+		assertThat(export.getLong("triples"), equalTo(9L));
+		assertThat(export.getInt("annotations"), equalTo(2));
+		assertThat(export.getDuration().toNanos() >= export.getLong("mappingTime"), equalTo(true));
+		final RecordedEvent file = events.get("File Export").get(0);
+		assertThat(Paths.get(file.getString("file")), equalTo(Paths.get(exportFile)));
+		assertThat(file.getLong("bytes"), equalTo(Files.size(Paths.get(exportFile))));
+		assertThat("Init, document and file export transactions", events.get("Commit").size(), equalTo(3));
+	}
+
+	/**
+	 * Test that the triples exported during a run are written to an HDT file
+	 * when the run finishes.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testHDTSink() throws Exception {
+		final Path hdtDir = Files.createTempDirectory("lodexporter-hdt");
+		final Path hdtFile = hdtDir.resolve("corpus.hdt");
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+		fm.put("hdtFile", hdtFile.toString());
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+		((ControllerAwarePR) lodexpr).controllerExecutionFinished(null);
+		Factory.deleteResource(lodexpr);
+
+		assertFalse("The spill file should be deleted", Files.exists(hdtDir.resolve("corpus.hdt.spill")));
+		try (HDT hdt = HDTManager.loadHDT(hdtFile.toString(), null)) {
+			assertThat("Mapping rules are not part of the dump", hdt.getTriples().getNumberOfElements(), equalTo(9L));
+			final IteratorTripleString it = hdt.search("", "http://lod.semanticsoftware.info/pubo/pubo#hasDocument", "");
+			assertThat(it.hasNext(), equalTo(true));
+			assertThat(it.next().getSubject().toString(), endsWith("Corpus/null"));
+			final IteratorTripleString content = hdt.search("", "http://purl.org/dc/terms/chunk", "");
+			assertThat(content.hasNext(), equalTo(true));
+			assertThat(content.next().getObject().toString().startsWith("\""), equalTo(true));
+		}
+	}
+
+	/**
+	 * @param model the exported triples
+	 * @param type the class URI
+	 * @return the number of instances of the class
+	 */
+	private int countInstances(final Model model, final String type) {
+		return model.listStatements((Resource) null, RDF.type, model.createResource(type)).toList().size();
+	}
+
+	/**
+	 * Test that GATE relations are exported with the URIs minted for their
+	 * members, and skipped when a member was not exported.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testAdHocRelations() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+	    final FeatureMap relFeats = Factory.newFeatureMap();
+	    relFeats.put("type", "http://intelleo.eu/ontologies/user-model/ns/CompetenceRecord");
+	    // Person (#28) -> Location (#29) is exported, Person -> Unknown (#30) is not
+	    doc.getAnnotations().getRelations().addRelation("competence", 28, 29).setFeatures(relFeats);
+	    doc.getAnnotations().getRelations().addRelation("competence", 28, 30).setFeatures(relFeats);
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+
+		final String exportFile = "/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq";
+		final Model model = ModelFactory.createDefaultModel();
+		model.read(new FileInputStream(exportFile), null, "N-TRIPLES");
+		final StmtIterator iterRecord = model.listStatements((Resource) null,
+				model.createProperty("http://intelleo.eu/ontologies/user-model/ns/hasCompetencyRecord"), (RDFNode) null);
+		assertThat("Model should contain one competency record", iterRecord.toList().size(), equalTo(1));
+	}
+
+	/**
+	 * Test that triples already written for an earlier document (the mapping
+	 * rules and the corpus link) are suppressed when deduplication is enabled.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testDeduplication() throws Exception {
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, "");
+		fm.put(EXPORT_FILE_PATH, "/tmp/");
+		fm.put("dedupExpectedTriples", 10000L);
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+		final Path firstExport = Paths.get("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq");
+		checkTriples(firstExport.toString());
+		assertThat("Nothing is suppressed in the first document", Files.lines(firstExport).count(), equalTo(25L + 9L));
+
+		lodexpr.execute();
+		final Path secondExport = Paths.get("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq");
+		assertThat("Only the new annotation triples should be written", Files.lines(secondExport).count(), equalTo(8L));
+		final Model written = ModelFactory.createDefaultModel();
+		written.read(Files.newInputStream(secondExport), null, "N-TRIPLES");
+		assertThat("The mapping rules are suppressed", countInstances(written, "http://lod.semanticsoftware.info/mapping/mapping#Mapping"),
+				equalTo(0));
+		assertThat("The corpus link is suppressed", countTriples(written, "hasDocument"), equalTo(0));
+		assertThat(((LODeXporter) lodexpr).getTripleStore().printStatistics(),
+				containsString((25L + 9L - 8L) + " suppressed"));
+	}
+
+	/**
+	 * Test that a document exported to an RDF store directory in chunks is
+	 * committed chunk by chunk and marked complete after its final chunk,
+	 * also when it is exported again.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testChunkedCommits() throws Exception {
+		final String storeDir = createMappingStore().toString();
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, "");
+		fm.put(PARAM_RDF_STORE_DIR, storeDir);
+	    final LODeXporter lodexpr = (LODeXporter) getPR(fm);
+	    lodexpr.setParameterValue("commitChunkSize", 2);
+	    final String annotationsQuery = "SELECT ?annot WHERE { ?doc <http://lod.semanticsoftware.info/pubo/pubo#hasAnnotation> ?annot }";
+
+		// each annotation records the annotations committed before it is mapped
+		final List<Long> committed = new ArrayList<>();
+		final Document doc = Factory.newDocument("Jane Doe, John Doe, Jim Doe, Joan Doe and Jack Doe");
+		doc.setSourceUrl(new URL("http://example.org/corpus/chunks.txt"));
+		for (int i = 0; i < 5; i++) {
+			final FeatureMap feats = new SimpleFeatureMapImpl() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Object get(final Object key) {
+					if ("gender".equals(key)) {
+						committed.add(lodexpr.getTripleStore().select(annotationsQuery, null, solution -> { }));
+					}
+					return super.get(key);
+				}
+			};
+			feats.put("gender", "unknown");
+			doc.getAnnotations().add(10L * i, 10L * i + 8, "Person", feats);
+		}
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+		assertThat("Annotations are committed two at a time", committed, equalTo(Arrays.asList(0L, 0L, 2L, 2L, 4L)));
+		assertThat(doc.getFeatures().get(LODeXporter.LODEXPORTER_COMPLETE_FEATURE), equalTo(Boolean.TRUE));
+		assertThat(lodexpr.isExportComplete(doc), equalTo(true));
+		final Object firstSession = doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE);
+
+		committed.clear();
+		lodexpr.execute();
+		assertThat(doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE).equals(firstSession), equalTo(false));
+		assertThat(lodexpr.isExportComplete(doc), equalTo(true));
+		Factory.deleteResource(lodexpr);
+
+		final Dataset dataset = TDBFactory.createDataset(storeDir);
+		dataset.begin(ReadWrite.READ);
+		try {
+			final Model model = dataset.getDefaultModel();
+			assertThat("Store should contain the annotations of both exports", countTriples(model, "hasAnnotation"), equalTo(10));
+			assertThat("Store keeps the markers of both export sessions", countTriples(model, "exportSession"), equalTo(2));
+		} finally {
+			dataset.end();
+		}
+	}
+
+	/**
+	 * Test that the remote store posts the document triples to a Graph Store
+	 * Protocol endpoint, retrying a batch rejected with a server error.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testRemoteStore() throws Exception {
+		final Model received = ModelFactory.createDefaultModel();
+		final AtomicInteger requests = new AtomicInteger();
+		final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/data", exchange -> {
+			if (requests.getAndIncrement() == 0) {
+				exchange.sendResponseHeaders(503, -1);
+			} else {
+				synchronized (received) {
+					RDFDataMgr.read(received, exchange.getRequestBody(), Lang.NTRIPLES);
+				}
+				exchange.sendResponseHeaders(204, -1);
+			}
+			exchange.close();
+		});
+		server.start();
+		try {
+			final FeatureMap fm = Factory.newFeatureMap();
+			fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+			fm.put(PARAM_RDF_STORE_DIR, "");
+			fm.put("tripleStoreType", LODeXporter.TripleStoreType.REMOTE);
+			fm.put("remoteEndpoint", "http://localhost:" + server.getAddress().getPort() + "/data");
+			fm.put("remoteBatchSize", 4);
+			final LanguageAnalyser lodexpr = getPR(fm);
+
+			final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+			lodexpr.setDocument(doc);
+			lodexpr.setCorpus(null);
+			lodexpr.execute();
+			Factory.deleteResource(lodexpr);
+		} finally {
+			server.stop(0);
+		}
+		assertThat("Endpoint should receive the document triples only", received.size(), equalTo(9L));
+		assertThat("Endpoint should receive two pubo#hasAnnotation triples", countTriples(received, "hasAnnotation"), equalTo(2));
+		assertThat("First batch should be retried", requests.get(), equalTo(4));
+	}
+
+	/**
+	 * Test that documents are partitioned across the shards of a sharded
+	 * store and can be read back through the union view of its manifest.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testShardedStore() throws Exception {
+		final Path rootDir = Files.createTempDirectory("lodexporter-shards");
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, rootDir.toString());
+		fm.put("tripleStoreType", LODeXporter.TripleStoreType.SHARDED_TDB);
+		fm.put("storeShards", 2);
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		// export the document under two URLs stored in different shards
+		int other = 1;
+		while (ShardedTDBTripleStoreImpl.shardOf("http://example.org/doc" + other, 2)
+				== ShardedTDBTripleStoreImpl.shardOf("http://example.org/doc0", 2)) {
+			other++;
+		}
+		for (final int docNumber : new int[] { 0, other }) {
+			doc.setSourceUrl(new URL("http://example.org/doc" + docNumber + "/testdoc1.xml"));
+			lodexpr.execute();
+		}
+		Factory.deleteResource(lodexpr);
+
+		for (int shard = 0; shard < 2; shard++) {
+			final Dataset dataset = TDBFactory.createDataset(rootDir.resolve(String.format("shard-%02d", shard)).toString());
+			dataset.begin(ReadWrite.READ);
+			try {
+				assertThat("Each shard should hold one document", countTriples(dataset.getDefaultModel(), "hasAnnotation"), equalTo(2));
+			} finally {
+				dataset.end();
+			}
+			TDBFactory.release(dataset);
+		}
+		final Model union = ShardedTDBTripleStoreImpl.openUnionModel(rootDir.toString());
+		try {
+			assertThat("Union should hold both documents", countTriples(union, "hasAnnotation"), equalTo(4));
+		} finally {
+			union.close();
+		}
+	}
+
+	/**
+	 * Test that a document whose shard cannot be written fails its own
+	 * export, is left out of the patch log, and does not fail the next
+	 * document.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testShardFailure() throws Exception {
+		final Path rootDir = Files.createTempDirectory("lodexporter-shards");
+		final Path logDir = Files.createTempDirectory("lodexporter-patch");
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, MAPPING_FILE);
+		fm.put(PARAM_RDF_STORE_DIR, rootDir.toString());
+		fm.put("tripleStoreType", LODeXporter.TripleStoreType.SHARDED_TDB);
+		fm.put("storeShards", 2);
+		for (final String patchLogDir : Arrays.asList("", logDir.toString())) {
+			fm.put("patchLogDir", patchLogDir);
+			final LODeXporter lodexpr = (LODeXporter) getPR(fm);
+			final TripleStoreInterface store = lodexpr.getTripleStore();
+
+			// TDB cannot store a variable
+			final Graph invalid = GraphFactory.createGraphMem();
+			invalid.add(Triple.create(NodeFactory.createVariable("s"),
+					NodeFactory.createURI("http://example.org/p"), NodeFactory.createLiteral("o")));
+			store.beginTransaction(TripleStoreInterface.TransactionType.STAGED);
+			store.storeTriples("http://example.org/broken", invalid);
+			try {
+				store.endTransaction();
+				fail("The failed shard write should be reported");
+			} catch (final GateRuntimeException e) {
+				assertThat(e.getMessage(), containsString("http://example.org/broken"));
+			}
+
+			final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+			lodexpr.setDocument(doc);
+			lodexpr.setCorpus(null);
+			lodexpr.execute();
+			Factory.deleteResource(lodexpr);
+		}
+		final StringBuilder patches = new StringBuilder();
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(logDir, "patch-*.rdfp")) {
+			for (final Path segment : segments) {
+				patches.append(new String(Files.readAllBytes(segment), StandardCharsets.UTF_8));
+			}
+		}
+		int committed = 0;
+		for (final String patch : patches.toString().split("H id ")) {
+			if (patch.contains("http://example.org/p")) {
+				assertThat("The patch of the failed document is aborted", patch, endsWith("TA .\n"));
+			} else if (patch.contains("hasAnnotation")) {
+				assertThat(patch, endsWith("TC .\n"));
+				committed++;
+			}
+		}
+		assertThat("The next document is committed", committed, equalTo(1));
+	}
+
+	/**
+	 * Test that the counts of the exported predicates are merged into the
+	 * optimizer statistics of the store after each run.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testStoreStatistics() throws Exception {
+		final Path storeDir = createMappingStore();
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, "");
+		fm.put(PARAM_RDF_STORE_DIR, storeDir.toString());
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		final Node hasAnnotation = NodeFactory.createURI("http://lod.semanticsoftware.info/pubo/pubo#hasAnnotation");
+		for (int run = 1; run <= 2; run++) {
+			lodexpr.execute();
+			((ControllerAwarePR) lodexpr).controllerExecutionFinished(null);
+			long count = 0;
+			for (final Item entry : SSE.readFile(storeDir.resolve("stats.opt").toString()).getList().cdr()) {
+				if (entry.isList() && entry.getList().get(0).isNode() && entry.getList().get(0).getNode().equals(hasAnnotation)) {
+					count = entry.getList().get(1).getInteger();
+				}
+			}
+			assertThat("Statistics should count the pubo#hasAnnotation triples of all runs", count, equalTo(2L * run));
+		}
+		Factory.deleteResource(lodexpr);
+	}
+
+	/**
+	 * Test that each committed document is logged as an RDF Patch linked to
+	 * the patch before it, that the patches hold the exported triples, and
+	 * that each run starts a new segment.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testPatchLog() throws Exception {
+		final Path storeDir = createMappingStore();
+		final Path logDir = Files.createTempDirectory("lodexporter-patch");
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, "");
+		fm.put(PARAM_RDF_STORE_DIR, storeDir.toString());
+		fm.put("patchLogDir", logDir.toString());
+	    final LanguageAnalyser lodexpr = getPR(fm);
+		final Controller pipeline = (Controller) Factory.createResource("gate.creole.SerialAnalyserController",
+				Factory.newFeatureMap(), Factory.newFeatureMap(), "PatchPipeline");
+		final Corpus corpus = Factory.newCorpus("PatchCorpus");
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(corpus);
+		((ControllerAwarePR) lodexpr).controllerExecutionStarted(pipeline);
+		lodexpr.execute();
+		lodexpr.execute();
+		((ControllerAwarePR) lodexpr).controllerExecutionFinished(pipeline);
+		((ControllerAwarePR) lodexpr).controllerExecutionStarted(pipeline);
+		lodexpr.execute();
+		((ControllerAwarePR) lodexpr).controllerExecutionFinished(pipeline);
+		Factory.deleteResource(lodexpr);
+		Factory.deleteResource(corpus);
+		Factory.deleteResource(pipeline);
+
+		final List<String> lines = Files.readAllLines(logDir.resolve("patch-00000001.rdfp"), StandardCharsets.UTF_8);
+		final List<String> ids = new ArrayList<>();
+		final StringBuilder added = new StringBuilder();
+		int addLines = 0;
+		for (final String line : lines) {
+			if (line.startsWith("H id ")) {
+				ids.add(line.substring(5, line.length() - 2));
+			} else if (line.startsWith("H prev ")) {
+				assertThat("A patch should follow the previous one", line.substring(7, line.length() - 2), equalTo(ids.get(ids.size() - 2)));
+			} else if (line.startsWith("A ")) {
+				added.append(line.substring(2)).append('\n');
+				addLines++;
+			}
+		}
+		assertThat("One patch per document", ids.size(), equalTo(2));
+		assertThat(lines.get(lines.size() - 1), equalTo("TC ."));
+
+		final List<String> nextRun = Files.readAllLines(logDir.resolve("patch-00000002.rdfp"), StandardCharsets.UTF_8);
+		assertThat("The next run starts a new segment", nextRun.get(0).startsWith("H id "), equalTo(true));
+		assertThat("Its first patch follows the last patch of the previous run", nextRun.get(1),
+				equalTo("H prev " + ids.get(1) + " ."));
+		final String lastId = nextRun.get(0).substring(6, nextRun.get(0).length() - 3);
+		assertThat(new String(Files.readAllBytes(logDir.resolve(PatchLog.HEAD_FILE)), StandardCharsets.UTF_8), equalTo(lastId));
+		assertThat("Each patch should hold the triples of a document", addLines, equalTo(2 * 9));
+		final Model model = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(model, new ByteArrayInputStream(added.toString().getBytes(StandardCharsets.UTF_8)), Lang.NTRIPLES);
+		final Dataset dataset = TDBFactory.createDataset(storeDir.toString());
+		dataset.begin(ReadWrite.READ);
+		try {
+			assertThat("The store should hold the patched triples", dataset.getDefaultModel().containsAll(model), equalTo(true));
+		} finally {
+			dataset.end();
+		}
+	}
+
+	/**
+	 * Test that other components can query the store of the exporter, with
+	 * bindings for the query variables and cached queries.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testStoreQueries() throws Exception {
+		final Path storeDir = createMappingStore();
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, "");
+		fm.put(PARAM_RDF_STORE_DIR, storeDir.toString());
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+	    final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		lodexpr.setDocument(doc);
+		lodexpr.setCorpus(null);
+		lodexpr.execute();
+
+		final TripleStoreInterface store = ((LODeXporter) lodexpr).getTripleStore();
+		final String annotations = "SELECT ?doc ?annot WHERE { ?doc <http://lod.semanticsoftware.info/pubo/pubo#hasAnnotation> ?annot }";
+		final List<Resource> docs = new ArrayList<>();
+		final List<Resource> annots = new ArrayList<>();
+		assertThat(store.select(annotations, null, soln -> {
+			docs.add(soln.getResource("doc"));
+			annots.add(soln.getResource("annot"));
+		}), equalTo(2L));
+		final long hits = queryCacheHits(store);
+		assertThat("Bound to the document", store.select(annotations, Collections.singletonMap("doc", docs.get(0)), soln -> { }), equalTo(2L));
+		assertThat("Bound to another document", store.select(annotations,
+				Collections.singletonMap("doc", ResourceFactory.createResource("http://example.org/other")), soln -> { }), equalTo(0L));
+		assertThat("The repeated query is parsed once", queryCacheHits(store) - hits, equalTo(2L));
+		assertThat(store.ask("ASK { ?doc <http://lod.semanticsoftware.info/pubo/pubo#hasAnnotation> ?annot }",
+				Collections.singletonMap("annot", annots.get(1))), equalTo(true));
+		assertThat(store.construct("CONSTRUCT { ?annot a <http://example.org/Annotation> } WHERE { ?doc <http://lod.semanticsoftware.info/pubo/pubo#hasAnnotation> ?annot }",
+				null).size(), equalTo(2L));
+		assertThat("Other queries are parsed on first use", queryCacheHits(store) - hits, equalTo(2L));
+		Factory.deleteResource(lodexpr);
+	}
+
+	private long queryCacheHits(final TripleStoreInterface store) {
+		final Matcher matcher = Pattern.compile("query cache: \\d+/\\d+ queries, (\\d+) hits")
+				.matcher(store.printStatistics());
+		assertThat(matcher.find(), equalTo(true));
+		return Long.parseLong(matcher.group(1));
+	}
+
+	/**
+	 * Test that the triples mapped for the triple store are also delivered
+	 * to the configured sinks: one N-Quads file per document and a second
+	 * TDB store.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testMultipleSinks() throws Exception {
+		final Path storeDir = createMappingStore();
+		final Path fileDir = Files.createTempDirectory("lodexporter-sinkfiles");
+		final Path sinkStoreDir = Files.createTempDirectory("lodexporter-sinktdb");
+		final FeatureMap fm = Factory.newFeatureMap();
+		fm.put(PARAM_MAPPING_FILE, "");
+		fm.put(PARAM_RDF_STORE_DIR, storeDir.toString());
+		fm.put("sinkExportFilePath", fileDir.toString());
+		fm.put("sinkStoreDir", sinkStoreDir.toString());
+	    final LanguageAnalyser lodexpr = getPR(fm);
+
+		final Model files = ModelFactory.createDefaultModel();
+		for (int i = 0; i < 2; i++) {
+			final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+			lodexpr.setDocument(doc);
+			lodexpr.setCorpus(null);
+			lodexpr.execute();
+			assertThat("The graph is only put on the document with publishGraphs",
+					doc.getFeatures().containsKey(LODeXporter.LODEXPORTER_GRAPH_FEATURE), equalTo(false));
+		}
+		((ControllerAwarePR) lodexpr).controllerExecutionFinished(null);
+		try (DirectoryStream<Path> dumps = Files.newDirectoryStream(fileDir, "*.nq")) {
+			int count = 0;
+			for (final Path dump : dumps) {
+				final Model model = RDFDataMgr.loadModel(dump.toString());
+				assertThat("Each file should hold the triples of a document without the mapping rules", model.size(), equalTo(9L));
+				files.add(model);
+				count++;
+			}
+			assertThat("One file per document", count, equalTo(2));
+		}
+		Factory.deleteResource(lodexpr);
+
+		for (final Path dir : Arrays.asList(storeDir, sinkStoreDir)) {
+			final Dataset dataset = TDBFactory.createDataset(dir.toString());
+			dataset.begin(ReadWrite.READ);
+			try {
+				assertThat("Each store should hold the exported triples", dataset.getDefaultModel().containsAll(files), equalTo(true));
+			} finally {
+				dataset.end();
+			}
+		}
+		final Dataset sinkDataset = TDBFactory.createDataset(sinkStoreDir.toString());
+		sinkDataset.begin(ReadWrite.READ);
+		try {
+			assertThat("The sink store should hold no mapping rules", sinkDataset.getDefaultModel().size(), equalTo(files.size()));
+		} finally {
+			sinkDataset.end();
+		}
+	}
+
+	/**
+	 * Test that annotatedAt and annotatedBy are exported once per document,
+	 * or on every annotation with the ANNOTATION provenance mode.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testProvenanceModes() throws Exception {
+		final Property created = ResourceFactory.createProperty("http://purl.org/dc/terms/created");
+		final Property creator = ResourceFactory.createProperty("http://purl.org/dc/terms/creator");
+		final Controller pipeline = (Controller) Factory.createResource("gate.creole.SerialAnalyserController",
+				Factory.newFeatureMap(), Factory.newFeatureMap(), "ProvenancePipeline");
+		final Corpus corpus = Factory.newCorpus("ProvenanceCorpus");
+		final Document doc = Factory.newDocument(getClass().getResource("/testdoc1.xml").toURI().toURL());
+		doc.getAnnotations().add(0L, 5L, "Person", Factory.newFeatureMap());
+		doc.getAnnotations().add(6L, 10L, "Person", Factory.newFeatureMap());
+
+		for (final LODeXporter.ProvenanceMode mode : LODeXporter.ProvenanceMode.values()) {
+			final FeatureMap fm = Factory.newFeatureMap();
+			fm.put(PARAM_MAPPING_FILE, getClass().getResource("/provenance-mapping.rdf"));
+			fm.put(PARAM_RDF_STORE_DIR, "");
+			fm.put(EXPORT_FILE_PATH, "/tmp/");
+			fm.put("provenanceMode", mode);
+			final LanguageAnalyser lodexpr = getPR(fm);
+			lodexpr.setDocument(doc);
+			lodexpr.setCorpus(corpus);
+			((ControllerAwarePR) lodexpr).controllerExecutionStarted(pipeline);
+			lodexpr.execute();
+			Factory.deleteResource(lodexpr);
+
+			final Model model = ModelFactory.createDefaultModel();
+			model.read(new FileInputStream("/tmp/" + doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE) + ".nq"), null, "N-TRIPLES");
+			final int persons = countInstances(model, "http://xmlns.com/foaf/0.1/Person");
+			assertThat(persons > 1, equalTo(true));
+			final List<Resource> subjects = model.listSubjectsWithProperty(creator, "ProvenancePipeline").toList();
+			assertThat(model.listStatements(null, created, (RDFNode) null).toList().size(), equalTo(subjects.size()));
+			if (mode == LODeXporter.ProvenanceMode.DOCUMENT) {
+				assertThat("Once for the document", subjects.size(), equalTo(1));
+				final Resource activity = subjects.get(0);
+				assertThat("The export session is the subject", activity.getURI(),
+						endsWith((String) doc.getFeatures().get(LODeXporter.LODEXPORTER_SESSION_FEATURE)));
+				assertThat(activity.hasProperty(RDF.type, model.createResource("http://www.w3.org/ns/prov#Activity")),
+						equalTo(true));
+				final List<Resource> documents = model.listSubjectsWithProperty(
+						model.createProperty("http://lod.semanticsoftware.info/pubo/pubo#hasExport"), activity).toList();
+				assertThat("The document links to its export", documents.size(), equalTo(1));
+				assertThat(model.contains(documents.get(0),
+						model.createProperty("http://lod.semanticsoftware.info/pubo/pubo#hasAnnotation")), equalTo(true));
+			} else {
+				assertThat("Once per annotation", subjects.size(), equalTo(persons));
+			}
+		}
+		Factory.deleteResource(corpus);
+		Factory.deleteResource(pipeline);
+	}
+
+	/**
+	 * Creates a TDB store directory holding the default mapping rules.
+	 * 
+	 * @return the store directory
+	 * @throws IOException if the directory cannot be created
+	 */
+	private Path createMappingStore() throws IOException {
+		final Path storeDir = Files.createTempDirectory("lodexporter-tdb");
+		final Dataset dataset = TDBFactory.createDataset(storeDir.toString());
+		dataset.begin(ReadWrite.WRITE);
+		RDFDataMgr.read(dataset.getDefaultModel(), MAPPING_FILE);
+		dataset.commit();
+		dataset.end();
+		return storeDir;
+	}
+
+	private int countTriples(final Model model, final String puboProperty) {
+		return model.listStatements((Resource) null,
+				model.createProperty("http://lod.semanticsoftware.info/pubo/pubo#" + puboProperty), (RDFNode) null)
+				.toList().size();
+	}
+
 	/**
 	 * Check that we got the triples that we expect.
 	 * 
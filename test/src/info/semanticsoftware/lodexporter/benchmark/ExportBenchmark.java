@@ -0,0 +1,280 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.tdb2.TDB2Factory;
+
+import gate.Corpus;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.SerialAnalyserController;
+import gate.creole.metadata.CreoleResource;
+
+/**
+ * End-to-end throughput benchmark running the LODeXporter PR in an embedded
+ * GATE controller over a {@link SyntheticCorpus}, in file export mode and in
+ * RDF store directory mode.
+ * 
+ * <p>
+ * Arguments are <tt>key=value</tt> pairs, all optional:
+ * </p>
+ * <ul>
+ * <li><tt>docs</tt> (200), <tt>warmup</tt> (20) documents;</li>
+ * <li><tt>sentences</tt> (20) per document, <tt>tokens</tt> (12),
+ * <tt>persons</tt> (2) and <tt>locations</tt> (1) per sentence,
+ * <tt>features</tt> (3) per person, ad-hoc <tt>relations</tt> (10) per
+ * document;</li>
+ * <li><tt>modes</tt> (<tt>file,store</tt>) and the <tt>store</tt> type for
+ * store mode (<tt>TDB</tt> or <tt>TDB2</tt>).</li>
+ * </ul>
+ * <p>
+ * It reports documents/s, exported triples/s (not counting the mapping
+ * rules), the p50/p99 latency of the LODeXporter
+ * PR per document and the peak heap usage, which includes the generated
+ * corpus. Run it with <tt>ant benchmark -Dbenchmark.args="docs=1000"</tt>.
+ * </p>
+ */
+public final class ExportBenchmark {
+
+    private static final String SESSION_FEATURE = "LODeXporterSession";
+
+    private ExportBenchmark() {
+    }
+
+    /**
+     * Measures the time the LODeXporter PR takes per document: one instance
+     * is added before and one after the PR.
+     */
+    @CreoleResource(name = "LODeXporter benchmark probe")
+    public static class LatencyProbe extends AbstractLanguageAnalyser {
+        private static final long serialVersionUID = 1L;
+        private transient Latencies latencies;
+        private boolean start;
+
+        /**
+         * @param myLatencies
+         *            the latencies shared by the start and end probes
+         * @param myStart
+         *            true for the probe before the PR
+         */
+        public void setup(final Latencies myLatencies, final boolean myStart) {
+            this.latencies = myLatencies;
+            this.start = myStart;
+        }
+
+        @Override
+        public void execute() throws ExecutionException {
+            if (start) {
+                latencies.start = System.nanoTime();
+            } else {
+                latencies.add(System.nanoTime() - latencies.start, document);
+            }
+        }
+    }
+
+    /** Per-document latencies and export sessions of a run. */
+    static final class Latencies {
+        private long start;
+        private final List<Long> nanos = new ArrayList<>();
+        private final List<String> sessions = new ArrayList<>();
+
+        void add(final long latency, final gate.Document document) {
+            nanos.add(latency);
+            sessions.add((String) document.getFeatures().get(SESSION_FEATURE));
+        }
+
+        double percentileMillis(final double percentile) {
+            final long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args
+     *            <tt>key=value</tt> arguments, see the class comment
+     * @throws Exception
+     *             if the benchmark fails
+     */
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            options.put(pair[0], pair[1]);
+        }
+        final int docs = Integer.parseInt(options.getOrDefault("docs", "200"));
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", "20"));
+        final SyntheticCorpus generator = new SyntheticCorpus(
+                Integer.parseInt(options.getOrDefault("sentences", "20")),
+                Integer.parseInt(options.getOrDefault("tokens", "12")),
+                Integer.parseInt(options.getOrDefault("persons", "2")),
+                Integer.parseInt(options.getOrDefault("locations", "1")),
+                Integer.parseInt(options.getOrDefault("features", "3")),
+                Integer.parseInt(options.getOrDefault("relations", "10")), 42L);
+        final String store = options.getOrDefault("store", "TDB");
+
+        Gate.runInSandbox(true);
+        Gate.init();
+        Gate.getCreoleRegister().registerDirectories(
+                Paths.get(System.getProperty("lodexporter.plugin.dir", ".")).toAbsolutePath().toUri().toURL());
+        Gate.getCreoleRegister().registerComponent(LatencyProbe.class);
+
+        final Path workDir = Files.createTempDirectory("lodexporter-benchmark");
+        final Path mappingFile = workDir.resolve("mapping.ttl");
+        generator.writeMappingFile(mappingFile);
+
+        System.out.println("mode   docs   triples    docs/s  triples/s  p50 ms  p99 ms  peak heap MB");
+        for (final String mode : options.getOrDefault("modes", "file,store").split(",")) {
+            if (warmup > 0) {
+                run(mode, store, generator, warmup, mappingFile, workDir.resolve(mode + "-warmup"), false);
+            }
+            run(mode, store, generator, docs, mappingFile, workDir.resolve(mode), true);
+        }
+        System.out.println("Output in " + workDir);
+    }
+
+    private static void run(final String mode, final String store, final SyntheticCorpus generator, final int docs,
+            final Path mappingFile, final Path outDir, final boolean report) throws Exception {
+        Files.createDirectories(outDir);
+        final boolean fileMode = "file".equals(mode);
+        if (!fileMode && !"store".equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if (!fileMode) {
+            loadMappingRules(store, mappingFile, outDir);
+        }
+
+        final Corpus corpus = Factory.newCorpus("benchmark");
+        for (int i = 0; i < docs; i++) {
+            corpus.add(generator.newDocument(i));
+        }
+
+        final FeatureMap params = Factory.newFeatureMap();
+        params.put("mappingFile", fileMode ? mappingFile.toUri().toURL() : "");
+        params.put("rdfStoreDir", fileMode ? "" : outDir.toString());
+        params.put("exportFilePath", outDir.toString());
+        params.put("tripleStoreType", store);
+        final LanguageAnalyser lodexporter = (LanguageAnalyser) Factory
+                .createResource("info.semanticsoftware.lodexporter.LODeXporter", params);
+        final Latencies latencies = new Latencies();
+        final LatencyProbe startProbe = (LatencyProbe) Factory.createResource(LatencyProbe.class.getName());
+        startProbe.setup(latencies, true);
+        final LatencyProbe endProbe = (LatencyProbe) Factory.createResource(LatencyProbe.class.getName());
+        endProbe.setup(latencies, false);
+
+        final SerialAnalyserController controller = (SerialAnalyserController) Factory
+                .createResource(SerialAnalyserController.class.getName());
+        controller.setPRs(Arrays.<ProcessingResource>asList(startProbe, lodexporter, endProbe));
+        controller.setCorpus(corpus);
+
+        System.gc();
+        final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        final long start = System.nanoTime();
+        controller.execute();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+
+        Factory.deleteResource(controller);
+        Factory.deleteResource(lodexporter);
+        Factory.deleteResource(startProbe);
+        Factory.deleteResource(endProbe);
+        Factory.deleteResource(corpus);
+
+        if (report) {
+            // without the mapping rules, which every export file repeats
+            final long rules = RDFDataMgr.loadModel(mappingFile.toUri().toString()).size();
+            final long triples = fileMode ? countFileTriples(outDir, latencies.sessions) - docs * rules
+                    : countStoreTriples(store, outDir) - rules;
+            System.out.printf("%-5s %5d %9d %9.1f %10.0f %7.2f %7.2f %13.1f%n", mode, docs, triples, docs / seconds,
+                    triples / seconds, latencies.percentileMillis(0.5), latencies.percentileMillis(0.99),
+                    peakHeap / 1e6);
+        }
+    }
+
+    private static Dataset openStore(final String store, final Path dir) {
+        return "TDB2".equals(store) ? TDB2Factory.connectDataset(dir.toString())
+                : TDBFactory.createDataset(dir.toString());
+    }
+
+    private static void loadMappingRules(final String store, final Path mappingFile, final Path dir) {
+        final Dataset dataset = openStore(store, dir);
+        dataset.begin(ReadWrite.WRITE);
+        RDFDataMgr.read(dataset.getDefaultModel(), mappingFile.toUri().toString());
+        dataset.commit();
+        dataset.end();
+    }
+
+    private static long countStoreTriples(final String store, final Path dir) {
+        final Dataset dataset = openStore(store, dir);
+        dataset.begin(ReadWrite.READ);
+        try {
+            return dataset.getDefaultModel().size();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    private static long countFileTriples(final Path dir, final List<String> sessions) throws IOException {
+        long triples = 0;
+        for (final String session : sessions) {
+            try (Stream<String> lines = Files.lines(dir.resolve(session + ".nq"))) {
+                triples += lines.count();
+            }
+        }
+        return triples;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.util.GateException;
+
+/**
+ * Generates synthetic GATE documents, and matching mapping rules, for
+ * benchmarking LODeXporter.
+ * 
+ * <p>
+ * Every document consists of sentences of tokens. Each sentence has
+ * <tt>Person</tt> and <tt>Location</tt> annotations over some of its tokens;
+ * persons carry a configurable number of features. The mapping rules export
+ * all annotation types, the person features, a <tt>contains</tt> relation
+ * from sentences to persons and a <tt>precedes</tt> relation from persons to
+ * locations. In addition, every document has a configurable number of ad-hoc
+ * <tt>RelationSet</tt> relations between persons and locations. The same
+ * seed generates the same corpus.
+ * </p>
+ */
+public final class SyntheticCorpus {
+
+    private static final String MAP = "http://lod.semanticsoftware.info/mapping/mapping#";
+    /** The class of mapping rules as matched by the default LODeXporter queries. */
+    private static final String MAPPING = "map:Mapping";
+    private static final String BENCH = "http://example.org/benchmark#";
+    private static final String PUBO = "http://lod.semanticsoftware.info/pubo/pubo#";
+    private static final String BASE_URI = "http://semanticsoftware.info/lodexporter/";
+    private static final String[] WORDS = { "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta",
+        "theta", };
+
+    private final int sentences;
+    private final int tokens;
+    private final int persons;
+    private final int locations;
+    private final int features;
+    private final int relations;
+    private final Random random;
+
+    /**
+     * Creates a generator.
+     * 
+     * @param mySentences
+     *            sentences per document
+     * @param myTokens
+     *            tokens per sentence
+     * @param myPersons
+     *            person annotations per sentence
+     * @param myLocations
+     *            location annotations per sentence
+     * @param myFeatures
+     *            features per person annotation
+     * @param myRelations
+     *            ad-hoc relations per document
+     * @param seed
+     *            the random seed
+     */
+    public SyntheticCorpus(final int mySentences, final int myTokens, final int myPersons, final int myLocations,
+            final int myFeatures, final int myRelations, final long seed) {
+        if (myTokens < myPersons + myLocations) {
+            throw new IllegalArgumentException("Need at least one token per person and location annotation");
+        }
+        this.sentences = mySentences;
+        this.tokens = myTokens;
+        this.persons = myPersons;
+        this.locations = myLocations;
+        this.features = myFeatures;
+        this.relations = myRelations;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates the next synthetic document.
+     * 
+     * @param number
+     *            the document number, used for its URL
+     * @return a new transient document
+     * @throws GateException
+     *             if the document cannot be created
+     * @throws IOException
+     *             if the document URL is invalid
+     */
+    public Document newDocument(final int number) throws GateException, IOException {
+        final StringBuilder text = new StringBuilder();
+        final List<long[]> tokenSpans = new ArrayList<>();
+        final List<long[]> sentenceSpans = new ArrayList<>();
+        for (int s = 0; s < sentences; s++) {
+            final long sentenceStart = text.length();
+            for (int t = 0; t < tokens; t++) {
+                final long start = text.length();
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+                tokenSpans.add(new long[] { start, text.length() });
+                text.append(t == tokens - 1 ? ". " : " ");
+            }
+            sentenceSpans.add(new long[] { sentenceStart, text.length() - 1 });
+        }
+
+        final Document doc = Factory.newDocument(text.toString());
+        doc.setSourceUrl(new URL("http://example.org/benchmark/doc" + number + "/doc.xml"));
+        final AnnotationSet annotations = doc.getAnnotations();
+        final List<Integer> personIds = new ArrayList<>();
+        final List<Integer> locationIds = new ArrayList<>();
+        for (int s = 0; s < sentences; s++) {
+            add(annotations, sentenceSpans.get(s), "Sentence", Factory.newFeatureMap());
+            for (int t = 0; t < tokens; t++) {
+                final long[] span = tokenSpans.get(s * tokens + t);
+                add(annotations, span, "Token", Factory.newFeatureMap());
+                // persons on the first tokens of a sentence, locations after them
+                if (t < persons) {
+                    final FeatureMap personFeatures = Factory.newFeatureMap();
+                    for (int f = 0; f < features; f++) {
+                        personFeatures.put("feat" + f, "value" + random.nextInt(100));
+                    }
+                    personIds.add(add(annotations, span, "Person", personFeatures));
+                } else if (t < persons + locations) {
+                    locationIds.add(add(annotations, span, "Location", Factory.newFeatureMap()));
+                }
+            }
+        }
+        if (!personIds.isEmpty() && !locationIds.isEmpty()) {
+            for (int r = 0; r < relations; r++) {
+                final FeatureMap relationFeatures = Factory.newFeatureMap();
+                relationFeatures.put("type", BENCH + "Mention");
+                annotations.getRelations().addRelation("mention",
+                        personIds.get(random.nextInt(personIds.size())),
+                        locationIds.get(random.nextInt(locationIds.size()))).setFeatures(relationFeatures);
+            }
+        }
+        return doc;
+    }
+
+    private static Integer add(final AnnotationSet annotations, final long[] span, final String type,
+            final FeatureMap featureMap) throws GateException {
+        return annotations.add(span[0], span[1], type, featureMap);
+    }
+
+    /**
+     * Writes the mapping rules for the generated documents.
+     * 
+     * @param file
+     *            the Turtle file to write
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public void writeMappingFile(final Path file) throws IOException {
+        final Model rules = ModelFactory.createDefaultModel();
+        final Resource mapping = rules.createResource(MAPPING);
+        final Property type = rules.createProperty(MAP, "type");
+        final Property hasMapping = rules.createProperty(MAP, "hasMapping");
+
+        final Resource sentence = subject(rules, "Sentence", PUBO + "Sentence");
+        final Resource token = subject(rules, "Token", PUBO + "Token");
+        final Resource person = subject(rules, "Person", "http://xmlns.com/foaf/0.1/Person");
+        subject(rules, "Location", "http://xmlns.com/foaf/0.1/Location");
+        for (final Resource annotation : new Resource[] { sentence, token, person }) {
+            annotation.addProperty(hasMapping, property(rules, "GATEStartOffset", "http://purl.org/dc/terms/start",
+                    "GATEattribute", "startOffset"));
+        }
+        person.addProperty(hasMapping, property(rules, "GATEContent", "http://purl.org/dc/terms/chunk",
+                "GATEattribute", "content"));
+        for (int f = 0; f < features; f++) {
+            person.addProperty(hasMapping, property(rules, "GATEFeature" + f, BENCH + "feat" + f, "GATEfeature",
+                    "feat" + f));
+        }
+
+        rules.createResource(MAP + "SentenceContainsPerson", mapping).addProperty(type, rules.createResource(
+                PUBO + "containsNE")).addProperty(rules.createProperty(MAP, "domain"), sentence)
+                .addProperty(rules.createProperty(MAP, "range"), person)
+                .addProperty(rules.createProperty(MAP, "GATEattribute"), "contains");
+        rules.createResource(MAP + "PersonPrecedesLocation", mapping).addProperty(type, rules.createResource(
+                PUBO + "precedes")).addProperty(rules.createProperty(MAP, "domain"), person)
+                .addProperty(rules.createProperty(MAP, "range"), rules.createResource(MAP + "GATEAnnoLocation"))
+                .addProperty(rules.createProperty(MAP, "GATEattribute"), "precedes")
+                .addProperty(rules.createProperty(MAP, "maxDistance"), "50", XSDDatatype.XSDinteger);
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            RDFDataMgr.write(out, rules, Lang.TURTLE);
+        }
+    }
+
+    private static Resource subject(final Model rules, final String gateType, final String rdfType) {
+        return rules.createResource(MAP + "GATEAnno" + gateType, rules.createResource(MAPPING))
+                .addProperty(rules.createProperty(MAP, "baseURI"), rules.createResource(BASE_URI))
+                .addProperty(rules.createProperty(MAP, "type"), rules.createResource(rdfType))
+                .addProperty(rules.createProperty(MAP, "GATEtype"), gateType);
+    }
+
+    private static Resource property(final Model rules, final String name, final String rdfType,
+            final String gateProperty, final String gateName) {
+        return rules.createResource(MAP + name, rules.createResource(MAPPING))
+                .addProperty(rules.createProperty(MAP, "type"), rules.createResource(rdfType))
+                .addProperty(rules.createProperty(MAP, gateProperty), gateName);
+    }
+}
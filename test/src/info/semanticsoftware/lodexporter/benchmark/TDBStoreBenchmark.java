@@ -0,0 +1,119 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import info.semanticsoftware.lodexporter.TripleStoreInterface;
+import info.semanticsoftware.lodexporter.TripleStoreInterface.TransactionType;
+import info.semanticsoftware.lodexporter.tdb.TDBTripleStoreImpl;
+import info.semanticsoftware.lodexporter.tdb2.TDB2TripleStoreImpl;
+
+/**
+ * Compares the ingest rate and on-disk size of the TDB and TDB2 stores. Every
+ * synthetic document is written in its own transaction, the way LODeXporter
+ * writes to an RDF store directory.
+ * 
+ * <p>
+ * Usage: <tt>TDBStoreBenchmark [documents] [relations per document]</tt>, or
+ * <tt>ant benchmark.tdb</tt>.
+ * </p>
+ */
+public final class TDBStoreBenchmark {
+
+    private static final String BASE = "http://example.org/benchmark/";
+
+    private TDBStoreBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args
+     *            number of documents and relations per document
+     * @throws Exception
+     *             if a store cannot be written
+     */
+    public static void main(final String[] args) throws Exception {
+        final int documents = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int relations = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+        Gate.runInSandbox(true);
+        Gate.init();
+
+        System.out.println("store  docs  triples  seconds  triples/s  size (MB)");
+        run("TDB", new TDBTripleStoreImpl(), documents, relations);
+        final TDB2TripleStoreImpl tdb2 = new TDB2TripleStoreImpl();
+        final Path tdb2Dir = run("TDB2", tdb2, documents, relations);
+        tdb2.connect(tdb2Dir.toString());
+        tdb2.compact();
+        tdb2.disconnect();
+        // compaction writes a new Data-NNNN generation and leaves the old one for deletion
+        try (Stream<Path> generations = Files.list(tdb2Dir)) {
+            final Path current = generations.filter(Files::isDirectory).max(Path::compareTo).get();
+            System.out.printf("TDB2 after compaction: %.1f MB%n", size(current) / 1e6);
+        }
+    }
+
+    private static Path run(final String name, final TripleStoreInterface store, final int documents,
+            final int relations) throws IOException {
+        final Path dir = Files.createTempDirectory("lodexporter-" + name.toLowerCase());
+        final FeatureMap feats = Factory.newFeatureMap();
+        feats.put("type", BASE + "Relation");
+
+        store.connect(dir.toString());
+        store.beginTransaction(TransactionType.WRITE);
+        store.initModel();
+        store.endTransaction();
+        final long start = System.nanoTime();
+        for (int doc = 0; doc < documents; doc++) {
+            final String docURL = BASE + "doc" + doc;
+            store.beginTransaction(TransactionType.WRITE);
+            for (int rel = 0; rel < relations; rel++) {
+                final String prefix = docURL + "#";
+                store.storeTriple(docURL, prefix + "r" + rel, feats, prefix + "a" + rel, prefix + "a" + (rel + 1));
+            }
+            store.storeExportSession(docURL, "session" + doc);
+            store.endTransaction();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        store.disconnect();
+
+        final long triples = (long) documents * (relations * 4 + 1);
+        System.out.printf("%-5s %5d %8d %8.1f %10.0f %10.1f%n", name, documents, triples, seconds, triples / seconds,
+                size(dir) / 1e6);
+        return dir;
+    }
+
+    private static long size(final Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * LODeXporter -- http://www.semanticsoftware.info/lodexporter
+ *
+ * This file is part of the LODeXporter component.
+ *
+ * Copyright (c) 2015, 2016, 2017 Semantic Software Lab, http://www.semanticsoftware.info
+ *    René Witte
+ *    Bahar Sateli
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package info.semanticsoftware.lodexporter.jena;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.shared.PrefixMapping;
+import org.junit.Test;
+
+/**
+ * JUnit tests for {@link TermDictionary}.
+ */
+public class TermDictionaryTest {
+	private static final String FOAF = "http://xmlns.com/foaf/0.1/";
+
+	private final PrefixMapping prefixes = PrefixMapping.Factory.create().setNsPrefix("foaf", FOAF);
+
+	/**
+	 * Test that a full URI and a prefixed name with the same text stay apart,
+	 * whichever is looked up first.
+	 */
+	@Test
+	public final void testCallOrder() {
+		final TermDictionary expandedFirst = new TermDictionary(10);
+		assertThat(expandedFirst.expandedURI("foaf:Person", prefixes).getURI(), equalTo(FOAF + "Person"));
+		assertThat(expandedFirst.uri("foaf:Person").getURI(), equalTo("foaf:Person"));
+
+		final TermDictionary uriFirst = new TermDictionary(10);
+		assertThat(uriFirst.uri("foaf:Person").getURI(), equalTo("foaf:Person"));
+		assertThat(uriFirst.expandedURI("foaf:Person", prefixes).getURI(), equalTo(FOAF + "Person"));
+	}
+
+	/**
+	 * Test that a term is created once and shared by both kinds of lookup.
+	 */
+	@Test
+	public final void testSharedNodes() {
+		final TermDictionary terms = new TermDictionary(10);
+		final Node person = terms.expandedURI("foaf:Person", prefixes);
+		assertThat(terms.expandedURI("foaf:Person", prefixes), sameInstance(person));
+		assertThat(terms.uri(FOAF + "Person"), sameInstance(person));
+		assertThat(terms.size(), equalTo(2));
+		assertThat("Only the first lookup misses", terms.getHitRate(), equalTo(2.0 / 3));
+	}
+
+	/**
+	 * Test that the least recently used terms are evicted.
+	 */
+	@Test
+	public final void testEviction() {
+		final TermDictionary terms = new TermDictionary(2);
+		final Node first = terms.uri("http://example.org/1");
+		terms.uri("http://example.org/2");
+		terms.uri("http://example.org/1");
+		terms.uri("http://example.org/3");
+		assertThat(terms.size(), equalTo(2));
+		assertThat("Recently used terms stay", terms.uri("http://example.org/1"), sameInstance(first));
+		assertThat(terms.getStatistics().endsWith("1 evictions"), equalTo(true));
+	}
+
+	/**
+	 * Test that threads looking up the same terms share their nodes, and that
+	 * the dictionary is back within its capacity once they are done.
+	 * 
+	 * @throws Exception Exception
+	 */
+	@Test
+	public final void testConcurrentLookups() throws Exception {
+		final TermDictionary terms = new TermDictionary(50);
+		final ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Node[]>> results = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				results.add(threads.submit(() -> {
+					final Node[] nodes = new Node[5];
+					for (int i = 0; i < 2000; i++) {
+						final int recurring = i % nodes.length;
+						nodes[recurring] = terms.uri("http://example.org/recurring/" + recurring);
+						terms.uri("http://example.org/unique/" + Thread.currentThread().getId() + "/" + i);
+					}
+					return nodes;
+				}));
+			}
+			final Node[] first = results.get(0).get();
+			for (final Future<Node[]> result : results) {
+				final Node[] nodes = result.get();
+				for (int i = 0; i < nodes.length; i++) {
+					assertThat(nodes[i].getURI(), equalTo("http://example.org/recurring/" + i));
+				}
+			}
+			assertThat("Recurring terms stay in the dictionary", terms.uri("http://example.org/recurring/0"),
+					sameInstance(first[0]));
+		} finally {
+			threads.shutdown();
+		}
+		terms.uri("http://example.org/last");
+		assertThat(terms.size() <= 50, equalTo(true));
+	}
+}